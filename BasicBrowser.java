@@ -1,22 +1,109 @@
+import org.jsoup.HttpStatusException;
 import org.jsoup.Jsoup;
+import org.jsoup.UnsupportedMimeTypeException;
+import org.jsoup.nodes.Node;
+import org.jsoup.nodes.TextNode;
 import org.jsoup.safety.Cleaner;
 import org.jsoup.safety.Whitelist;
 
+import javax.imageio.ImageIO;
+import javax.management.JMException;
+import javax.management.ObjectName;
 import javax.swing.*;
 import javax.swing.event.*;
+import javax.swing.text.AbstractDocument;
+import javax.swing.text.AttributeSet;
+import javax.swing.text.BadLocationException;
+import javax.swing.text.Document;
+import javax.swing.text.Element;
+import javax.swing.text.Position;
+import javax.swing.text.StyleConstants;
+import javax.swing.text.View;
+import javax.swing.text.ViewFactory;
 import javax.swing.text.html.FormSubmitEvent;
+import javax.swing.text.html.HTML;
+import javax.swing.text.html.HTMLDocument;
 import javax.swing.text.html.HTMLEditorKit;
 import java.awt.*;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.awt.event.KeyEvent;
+import java.awt.event.MouseAdapter;
+import java.awt.event.MouseEvent;
+import java.awt.geom.Rectangle2D;
+import java.awt.image.BufferedImage;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
 import java.io.File;
+import java.io.FilterInputStream;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.UncheckedIOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.net.ConnectException;
+import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
+import java.net.URI;
+import java.net.URISyntaxException;
 import java.net.URL;
+import java.net.UnknownHostException;
+import java.net.http.HttpClient;
+import java.net.http.HttpHeaders;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.UnresolvedAddressException;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
 import java.util.*;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.InflaterInputStream;
 import java.util.function.Consumer;
+import java.util.function.Function;
 import java.util.prefs.BackingStoreException;
 import java.util.prefs.Preferences;
 
@@ -31,6 +118,9 @@ public class BasicBrowser extends JPanel implements DocumentListener {
     static final String closeTabStr = "Close Tab";
     static final String openLastClosedStr = "Open Last Closed";
     static final String changeSearchStr = "Change Search";
+    static final String morePartsStr = "More";
+    static final String downloadsStr = "Downloads";
+    static final String loadTimingsButtonStr = "Timings";
     static final String openAllStr = "Open All";
     static final String untitledStr = "Untitled";
     static final String quickSearchKey = "quickSearch";
@@ -46,8 +136,100 @@ public class BasicBrowser extends JPanel implements DocumentListener {
     static final String cannotCloseLastTabStr = "Can't close last tab.";
     static final String memoryStr = "memory (MB) used %d, total %d, free %d, max %d";
     static final String urlTookStr = "Url |%s| took %s seconds to load.";
+    static final String firstContentStr = " First content after %s seconds.";
+    static final String edtBusyStr = " Showing it took %.1f ms on the event thread.";
+    static final String phasesStr = " Phases in ms: connect %d, transfer %d (%d KB), parse %d (%d elements), clean %d, "
+            + "images %d (%d), html %d, document %d.";
+    static final String loadTimingsStr = "Load Timings";
+    static final String loadTimingsStatisticsStr = "timed loads %d, hosts %d";
+    static final String metricsObjectName = "BasicBrowser:type=BrowserMetrics";
+    static final String metricsErrorStr = "Cannot register metrics |%s| because of |%s|.";
+    static final String edtTimeoutStr = "The event thread did not run the operation within %d ms.";
+    static final String partsShownStr = " Showing part %d of %d, scroll to the end or press Ctrl+M for more.";
     static final String exceptionStr = "Exception |%s| for url |%s|.";
+    static final String loadBudgetStr = "Url |%s| was not loaded because %s.";
+    static final String bodyTooLargeStr = "it is larger than %d KB";
+    static final String tooSlowStr = "it took longer than %.0f s";
+    static final String tooManyElementsStr = "it has more than %d elements";
+    static final String notPageStr = "its content type |%s| is not a page";
+    static final String loadBudgetStatisticsStr = "loads over budget: too large %d, too slow %d, too many elements %d, "
+            + "not a page %d";
+    static final String downloadStartedStr = "Url |%s| is not a page, downloading it to |%s|.";
+    static final String downloadingStr = "%s: %s at %.2f MB/s in %d parts";
+    static final String downloadStoppedStr = "%s: stopped at %s, double click to resume";
+    static final String downloadFailedStr = "%s: failed at %s because of |%s|, double click to resume";
+    static final String downloadDoneStr = "%s: done, %s";
+    static final String downloadProgressStr = "%.0f%%, %.1f of %.1f MB";
+    static final String downloadedBytesStr = "%.1f MB";
+    static final String downloadEndedStr = "Download ended at byte %d of %d";
+    static final String downloadStatisticsStr = "downloads started %d, resumed %d, completed %d, failed %d";
+    static final String downloadDirectoryKey = "downloadDirectory";
+    static final String downloadSegmentsKey = "downloadSegments";
+    static final String downloadSegmentKilobytesKey = "downloadSegmentKilobytes";
+    static final String downloadDirectoryName = "Downloads";
+    static final String downloadFileName = "download";
+    static final String partSuffix = ".part";
+    static final String progressSuffix = ".progress";
     static final String workerExistsErrorStr = "Cannot update url |%s| at index %d because previous update not done.";
+    static final String pageCacheStatisticsStr = "page cache entries %d, KB %d of %d, hits %d, misses %d, evictions %d";
+    static final String pageCacheMegabytesKey = "pageCacheMegabytes";
+    static final String diskCacheStatisticsStr =
+            "disk cache entries %d, MB %d of %d, segments %d, hits %d, misses %d, writes %d, compactions %d";
+    static final String diskCacheErrorStr = "Cannot open disk cache |%s| because of |%s|.";
+    static final String offlineCopyStr = "Url |%s| could not be loaded, showing copy saved on %s.";
+    static final String diskCacheMegabytesKey = "diskCacheMegabytes";
+    static final String diskCacheMaxAgeMinutesKey = "diskCacheMaxAgeMinutes";
+    static final String offlineFallbackKey = "offlineFallback";
+    static final String streamingLoadsKey = "streamingLoads";
+    static final String latestNavigationWinsKey = "latestNavigationWins";
+    static final String prefetchKey = "prefetch";
+    static final String prefetchMaxLoadsKey = "prefetchMaxLoads";
+    static final String prefetchMegabytesKey = "prefetchMegabytes";
+    static final String prefetchHostIntervalMillisKey = "prefetchHostIntervalMillis";
+    static final String prefetchStatisticsStr = "prefetch requested %d, started %d, skipped %d, completed %d, "
+            + "failed %d, used %d, expired %d, hit rate %.0f%%";
+    static final String deferBackgroundTabsKey = "deferBackgroundTabs";
+    static final String deferredTabLookAheadKey = "deferredTabLookAhead";
+    static final String hibernateTabsKey = "hibernateTabs";
+    static final String hibernateHeapPercentKey = "hibernateHeapPercent";
+    static final String hibernateIdleMinutesKey = "hibernateIdleMinutes";
+    static final String hibernationStatisticsStr = "hibernated tabs %d, hibernations %d, restores %d, KB reclaimed %d";
+    static final String maxClosedTabsKey = "maxClosedTabs";
+    static final String closedTabPagesKey = "closedTabPages";
+    static final String historyErrorStr = "Cannot open history |%s| because of |%s|.";
+    static final String historyStatisticsStr =
+            "history entries %d, visits %d, log KB %d, records %d, compactions %d, evictions %d";
+    static final String historyMaxEntriesKey = "historyMaxEntries";
+    static final String backForwardCacheEntriesKey = "backForwardCacheEntries";
+    static final String backForwardCacheMegabytesKey = "backForwardCacheMegabytes";
+    static final String backForwardCacheStatisticsStr =
+            "back-forward cache documents %d, KB %d of %d, stores %d, hits %d, evictions %d";
+    static final String backForwardCacheHitStr = "Url |%s| shown from the back-forward cache.";
+    static final String suggestionStatisticsStr = "suggestions requested %d, computed %d, stale %d, shown %d";
+    static final String largeDocumentKiloCharsKey = "largeDocumentKiloChars";
+    static final String documentPartKiloCharsKey = "documentPartKiloChars";
+    static final String imageCacheMegabytesKey = "imageCacheMegabytes";
+    static final String lazyImagesKey = "lazyImages";
+    static final String imageStatisticsStr =
+            "images cached %d, KB %d of %d, requests %d, hits %d, fetches %d, failures %d, evictions %d, canceled %d";
+    static final String connectTimeoutSecondsKey = "connectTimeoutSeconds";
+    static final String readTimeoutSecondsKey = "readTimeoutSeconds";
+    static final String pageFreshSecondsKey = "pageFreshSeconds";
+    static final String maxPageKilobytesKey = "maxPageKilobytes";
+    static final String loadDeadlineSecondsKey = "loadDeadlineSeconds";
+    static final String maxPageElementsKey = "maxPageElements";
+    static final String fetcherStatisticsStr = "http requests %d, HTTP/2 %d, KB received %d, "
+            + "KB saved by compression %d, errors %d, not modified %d";
+    static final String readTimedOutStr = "Read timed out after %d ms";
+    static final String connectionRefusedStr = System.getProperty("os.name", "").startsWith("Windows")
+            ? "Connection refused: no further information" : "Connection refused";
+    static final String maxLoadsKey = "maxLoads";
+    static final String maxLoadsPerHostKey = "maxLoadsPerHost";
+    static final String maxBackgroundLoadsPerHostKey = "maxBackgroundLoadsPerHost";
+    static final String loadQueuedStr = "Url |%s| is waiting at position %d of the load queue.";
+    static final String loadExecutorStatisticsStr =
+            "loads %s threads, running %d, queued %d, max queued %d, started %d, wait ms average %.1f max %.1f";
+    static final String cacheDirectoryName = "BasicBrowser";
     static final String[] addRemoveStrings = {"Add/Remove A", "Add/Remove B", "Add/Remove C"};
     static final String[] bookmarkKeys = {"bookmarksA", "bookmarksB", "bookmarksC"};
     static final int urlColumns = 80;
@@ -55,8 +237,61 @@ public class BasicBrowser extends JPanel implements DocumentListener {
     static final int defaultHeight = 480;
     static final int mnemonicCount = 9;
     static final int defaultMaxHistoryCount = 10;
+    static final int defaultPageCacheMegabytes = 64;
+    static final int defaultDiskCacheMegabytes = 256;
+    static final int defaultDiskCacheMaxAgeMinutes = 60;
+    static final int defaultMaxLoads = 16;
+    static final int defaultConnectTimeoutSeconds = 10;
+    static final int defaultReadTimeoutSeconds = 30;
+    static final int defaultPageFreshSeconds = 60;
+    static final int defaultMaxPageKilobytes = 16384;
+    static final int defaultLoadDeadlineSeconds = 60;
+    static final int defaultMaxPageElements = 1_000_000;
+    static final int defaultDownloadSegments = 4;
+    static final int defaultDownloadSegmentKilobytes = 1024;
+    static final int transferChunkBytes = 1 << 20;
+    static final int downloadsRefreshMillis = 500;
+    static final int loadSamplesPerHost = 256;
+    static final int maxLoadTimingHosts = 64;
+    static final int metricsRefreshMillis = 1000;
+    static final int metricsEdtTimeoutMillis = 5000;
+    static final int defaultMaxLoadsPerHost = 4;
+    static final int defaultMaxBackgroundLoadsPerHost = 2;
+    static final int coalesceMillis = 150;
+    static final int prefetchDwellMillis = 300;
+    static final int prefetchLifetimeMillis = 30_000;
+    static final int maxPrefetchHosts = 256;
+    static final int defaultPrefetchMaxLoads = 2;
+    static final int defaultPrefetchMegabytes = 8;
+    static final int defaultPrefetchHostIntervalMillis = 1000;
+    static final int defaultHibernateHeapPercent = 80;
+    static final int defaultHibernateIdleMinutes = 30;
+    static final int hibernationCheckMillis = 10_000;
+    static final int defaultHistoryMaxEntries = 100_000;
+    static final int defaultBackForwardCacheEntries = 3;
+    static final int defaultBackForwardCacheMegabytes = 32;
+    static final int suggestionDebounceMillis = 50;
+    static final long frecencyHalfLifeMillis = 7L * 24 * 60 * 60 * 1000;
+    static final int maxEdtDocumentChars = 65_536;
+    static final int defaultLargeDocumentKiloChars = 1024;
+    static final int defaultImageCacheMegabytes = 32;
+    static final int maxImageBytes = 8 << 20;
+    static final int maxImageDimension = 2048;
+    static final int maxFailedUrls = 1024;
+    static final int imagePlaceholderSize = 38;
+    static final int lazyImageMarginScreens = 1;
+    static final int defaultDocumentPartKiloChars = 64;
+    static final int maxEntityChars = 33;
+    static final int documentBytesPerChar = 3;
+    static final int documentBytesPerElement = 96;
+    static final int streamingFirstChars = 8192;
+    static final int streamingReadChars = 8192;
+    static final int bodyReadBytes = 8 << 10;
+    static final int charsetSniffBytes = 5 << 10;
     static final int shiftBytesToMBytes = 20;
     int maxHistoryCount;
+    int maxClosedTabs;
+    boolean closedTabPages;
     JToolBar navigationBar;
     JToolBar bookmarksBar;
     JTextField urlField;
@@ -64,14 +299,41 @@ public class BasicBrowser extends JPanel implements DocumentListener {
     JTextField statusField;
     JTabbedPane tabsPane;
     ArrayList<HtmlTab> tabs;
-    Deque<HtmlTab> closedTabs;
+    Deque<ClosedTab> closedTabs;
+    PageCache pageCache;
+    BackForwardCache backForwardCache;
+    boolean streamingLoads;
+    int largeDocumentChars;
+    int documentPartChars;
+    ImageService imageService;
+    Fetcher fetcher;
+    boolean lazyImages;
+    PageLoadExecutor loadExecutor;
+    boolean latestNavigationWins;
+    Prefetcher prefetcher;
+    boolean deferBackgroundTabs;
+    int deferredTabLookAhead;
+    TabHibernator hibernator;
+    javax.swing.Timer hibernationTimer;
+    DownloadManager downloads;
+    LoadTimings loadTimings;
+    BrowserMetrics metrics;
+    javax.swing.Timer metricsTimer;
+    DefaultListModel<String> downloadsModel;
+    JList<String> downloadsList;
+    JScrollPane downloadsPane;
+    javax.swing.Timer downloadsTimer;
     Preferences preferences;
     LinkedList<Preferences> bookmarkPreferences;
-    String[] quickSearches;
-    JButton back, forward, reload, newTab, closeTab, openLastClosedTab, changeSearch;
+    InputClassifier inputClassifier;
+    JButton back, forward, reload, newTab, closeTab, openLastClosedTab, changeSearch, moreParts,
+            downloadsButton, loadTimingsButton;
     JButton[] addRemove;
     boolean[] addRemoveIsRunning;
     LinkedList<JComboBox<String>> bookmarkBoxes;
+    BookmarkIndex bookmarkIndex;
+    HistoryStore history;
+    SuggestionService suggestions;
     int iCurrentTab;
 
     public static void main(String[] args) {
@@ -86,13 +348,33 @@ public class BasicBrowser extends JPanel implements DocumentListener {
 
     static void startGui() throws MalformedURLException, BackingStoreException {
         JFrame frame = new JFrame(titleStr);
-        frame.add(new BasicBrowser(Preferences.userRoot().node(BasicBrowser.class.getName()), defaultMaxHistoryCount));
+        BasicBrowser browser =
+                new BasicBrowser(Preferences.userRoot().node(BasicBrowser.class.getName()), defaultMaxHistoryCount);
+        browser.openDiskCache(cacheDirectory());
+        browser.openHistory(cacheDirectory());
+        browser.registerMetrics(metricsObjectName);
+        frame.add(browser);
         frame.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
         frame.setSize(new Dimension(defaultWidth, defaultHeight));
         frame.setLocationRelativeTo(null);
         frame.setVisible(true);
     }
 
+    static File cacheDirectory() {
+        String base = System.getenv("LOCALAPPDATA"); // Windows
+        if (base == null) {
+            base = System.getenv("XDG_CACHE_HOME");
+        }
+        if (base == null) {
+            base = System.getProperty("user.home") + File.separator + ".cache";
+        }
+        return new File(base, cacheDirectoryName);
+    }
+
+    static File downloadDirectory() {
+        return new File(System.getProperty("user.home"), downloadDirectoryName);
+    }
+
     static void log(String s) {
         // System.out.println(Thread.currentThread() + " " + s);
     }
@@ -108,15 +390,23 @@ public class BasicBrowser extends JPanel implements DocumentListener {
         forward = newButton(forwardStr, KeyEvent.VK_RIGHT, KeyEvent.CTRL_DOWN_MASK, navigationBar,
                 e -> tabs.get(iCurrentTab).goForward());
         reload = newButton(reloadStr, KeyEvent.VK_R, KeyEvent.CTRL_DOWN_MASK, navigationBar,
-                e -> urlUpdate(urlField.getText()));
+                e -> urlUpdate(urlField.getText(), true));
         newTab = newButton(newTabStr, KeyEvent.VK_N, KeyEvent.CTRL_DOWN_MASK, navigationBar, e -> addTab());
         closeTab = newButton(closeTabStr, KeyEvent.VK_W, KeyEvent.CTRL_DOWN_MASK, navigationBar, e -> closeTab());
         openLastClosedTab = newButton(openLastClosedStr, KeyEvent.VK_T,
                 KeyEvent.CTRL_DOWN_MASK | KeyEvent.SHIFT_DOWN_MASK, navigationBar, e -> openLastClosedTab());
         changeSearch = newButton(changeSearchStr, KeyEvent.VK_G, KeyEvent.CTRL_DOWN_MASK, navigationBar,
                 e -> changeSearch());
+        moreParts = newButton(morePartsStr, KeyEvent.VK_M, KeyEvent.CTRL_DOWN_MASK, navigationBar,
+                e -> tabs.get(iCurrentTab).showNextPart());
+        downloadsButton = newButton(downloadsStr, KeyEvent.VK_J, KeyEvent.CTRL_DOWN_MASK, navigationBar,
+                e -> showDownloads(!downloadsPane.isVisible()));
+        loadTimingsButton = newButton(loadTimingsButtonStr, KeyEvent.VK_I, KeyEvent.CTRL_DOWN_MASK, navigationBar,
+                e -> showLoadTimings());
         this.preferences = preferences;
         loadPreferences(); // Initializes bookmarkBoxes, needs to be called before creating urlField.
+        history = new HistoryStore(preferences.getInt(historyMaxEntriesKey, defaultHistoryMaxEntries));
+        suggestions = new SuggestionService(bookmarkIndex, history);
         urlField = new JTextField(urlColumns);
         urlField.addActionListener(e -> urlUpdate(e.getActionCommand()));
         urlField.setFocusAccelerator('L');
@@ -137,8 +427,65 @@ public class BasicBrowser extends JPanel implements DocumentListener {
 
         statusField = new JTextField();
         statusField.setEditable(false);
-        add(statusField, BorderLayout.PAGE_END);
+        JPanel bottom = new JPanel(new BorderLayout());
+        add(bottom, BorderLayout.PAGE_END);
+        downloadsModel = new DefaultListModel<>();
+        downloadsList = new JList<>(downloadsModel);
+        downloadsList.setVisibleRowCount(4);
+        downloadsList.addMouseListener(new MouseAdapter() {
+            @Override
+            public void mouseClicked(MouseEvent e) {
+                int index = downloadsList.locationToIndex(e.getPoint());
+                if (e.getClickCount() == 2 && index >= 0) {
+                    toggleDownload(index);
+                }
+            }
+        });
+        downloadsPane = new JScrollPane(downloadsList);
+        downloadsPane.setVisible(false);
+        bottom.add(downloadsPane, BorderLayout.CENTER);
+        bottom.add(statusField, BorderLayout.PAGE_END);
+        downloadsTimer = new javax.swing.Timer(downloadsRefreshMillis, e -> refreshDownloads());
         maxHistoryCount = historyCount;
+        maxClosedTabs = preferences.getInt(maxClosedTabsKey, historyCount);
+        closedTabPages = preferences.getBoolean(closedTabPagesKey, true);
+        pageCache = new PageCache(
+                (long) preferences.getInt(pageCacheMegabytesKey, defaultPageCacheMegabytes) << shiftBytesToMBytes);
+        pageCache.offlineFallback = preferences.getBoolean(offlineFallbackKey, true);
+        backForwardCache = new BackForwardCache(
+                preferences.getInt(backForwardCacheEntriesKey, defaultBackForwardCacheEntries),
+                (long) preferences.getInt(backForwardCacheMegabytesKey, defaultBackForwardCacheMegabytes)
+                        << shiftBytesToMBytes);
+        streamingLoads = preferences.getBoolean(streamingLoadsKey, true);
+        largeDocumentChars = preferences.getInt(largeDocumentKiloCharsKey, defaultLargeDocumentKiloChars) << 10;
+        documentPartChars = preferences.getInt(documentPartKiloCharsKey, defaultDocumentPartKiloChars) << 10;
+        fetcher = new Fetcher(preferences.getInt(connectTimeoutSecondsKey, defaultConnectTimeoutSeconds) * 1000,
+                preferences.getInt(readTimeoutSecondsKey, defaultReadTimeoutSeconds) * 1000);
+        fetcher.defaultFreshMillis = preferences.getInt(pageFreshSecondsKey, defaultPageFreshSeconds) * 1000L;
+        fetcher.budget.maxBodyBytes = (long) preferences.getInt(maxPageKilobytesKey, defaultMaxPageKilobytes) << 10;
+        fetcher.budget.deadlineMillis = preferences.getInt(loadDeadlineSecondsKey, defaultLoadDeadlineSeconds) * 1000L;
+        fetcher.budget.maxElements = preferences.getInt(maxPageElementsKey, defaultMaxPageElements);
+        downloads = new DownloadManager(fetcher,
+                new File(preferences.get(downloadDirectoryKey, downloadDirectory().getPath())),
+                preferences.getInt(downloadSegmentsKey, defaultDownloadSegments),
+                (long) preferences.getInt(downloadSegmentKilobytesKey, defaultDownloadSegmentKilobytes) << 10);
+        loadTimings = new LoadTimings();
+        loadExecutor = PageLoadExecutor.create(preferences.getInt(maxLoadsKey, defaultMaxLoads),
+                preferences.getInt(maxLoadsPerHostKey, defaultMaxLoadsPerHost),
+                preferences.getInt(maxBackgroundLoadsPerHostKey, defaultMaxBackgroundLoadsPerHost));
+        imageService = new ImageService(loadExecutor, fetcher,
+                (long) preferences.getInt(imageCacheMegabytesKey, defaultImageCacheMegabytes) << shiftBytesToMBytes);
+        lazyImages = preferences.getBoolean(lazyImagesKey, false);
+        latestNavigationWins = preferences.getBoolean(latestNavigationWinsKey, true);
+        deferBackgroundTabs = preferences.getBoolean(deferBackgroundTabsKey, false);
+        deferredTabLookAhead = preferences.getInt(deferredTabLookAheadKey, 0);
+        prefetcher = null;
+        if (preferences.getBoolean(prefetchKey, false)) {
+            prefetcher = new Prefetcher(pageCache, loadExecutor, fetcher,
+                    preferences.getInt(prefetchMaxLoadsKey, defaultPrefetchMaxLoads),
+                    (long) preferences.getInt(prefetchMegabytesKey, defaultPrefetchMegabytes) << shiftBytesToMBytes,
+                    preferences.getInt(prefetchHostIntervalMillisKey, defaultPrefetchHostIntervalMillis));
+        }
         tabsPane = new JTabbedPane();
         tabsPane.setTabLayoutPolicy(JTabbedPane.SCROLL_TAB_LAYOUT);
         tabs = new ArrayList<>();
@@ -147,6 +494,16 @@ public class BasicBrowser extends JPanel implements DocumentListener {
         iCurrentTab = tabsPane.getSelectedIndex();
         add(tabsPane, BorderLayout.CENTER);
         tabsPane.addChangeListener(event -> changeActiveTab());
+        hibernator = new TabHibernator(preferences.getInt(hibernateHeapPercentKey, defaultHibernateHeapPercent),
+                (long) preferences.getInt(hibernateIdleMinutesKey, defaultHibernateIdleMinutes) * 60_000);
+        hibernationTimer = new javax.swing.Timer(hibernationCheckMillis, e -> hibernator.check(tabs, iCurrentTab));
+        if (preferences.getBoolean(hibernateTabsKey, false)) {
+            hibernationTimer.start();
+        }
+        metrics = new BrowserMetrics(this);
+        metrics.snapshot();
+        metricsTimer = new javax.swing.Timer(metricsRefreshMillis, e -> metrics.refresh());
+        metricsTimer.start();
         KeyStroke pageUpStroke = KeyStroke.getKeyStroke(KeyEvent.VK_PAGE_UP, KeyEvent.CTRL_DOWN_MASK);
         KeyStroke pageDownStroke = KeyStroke.getKeyStroke(KeyEvent.VK_PAGE_DOWN, KeyEvent.CTRL_DOWN_MASK);
         tabsPane.getInputMap(JComponent.WHEN_IN_FOCUSED_WINDOW).put(pageUpStroke, "navigatePageUp");
@@ -176,54 +533,150 @@ public class BasicBrowser extends JPanel implements DocumentListener {
         return button;
     }
 
-    String translate(String url) {
-        String result = null;
-        if (url == null || url.isBlank()) {
-            result = "";
-        } else if (isFile(url) || url.startsWith("http://") || url.startsWith("https://")) {
-            result = url;
-        } else if (isUrl(url)) {
-                result = "http://" + url;
-        } else {
-            // quickSearches[0] is the default, after that pairs of tokens and search urls, which are checked first.
-            for (int i = 1; i < quickSearches.length; i += 2) {
-                String prefix = quickSearches[i] + " ";
-                if (url.startsWith(prefix)) {
-                    result = quickSearches[i + 1] + url.substring(prefix.length());
-                    break;
-                }
-            }
-            if (result == null) {
-                result = quickSearches[0] + url;
-            }
+    void openDiskCache(File directory) {
+        long maxBytes =
+                (long) preferences.getInt(diskCacheMegabytesKey, defaultDiskCacheMegabytes) << shiftBytesToMBytes;
+        try {
+            pageCache.diskCache = DiskCache.open(directory, maxBytes);
+            pageCache.diskMaxAgeMillis =
+                    preferences.getInt(diskCacheMaxAgeMinutesKey, defaultDiskCacheMaxAgeMinutes) * 60_000L;
+        } catch (IOException e) {
+            statusField.setText(diskCacheErrorStr.formatted(directory, e.toString()));
+        }
+    }
+
+    void openHistory(File directory) {
+        try {
+            history.open(directory);
+        } catch (IOException e) {
+            statusField.setText(historyErrorStr.formatted(directory, e.toString()));
         }
-        return result;
+    }
+
+    // Registers the metrics with the platform MBean server, where JConsole finds them under name.
+    void registerMetrics(String name) {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(metrics, new ObjectName(name));
+        } catch (JMException e) {
+            statusField.setText(metricsErrorStr.formatted(name, e.toString()));
+        }
+    }
+
+    String translate(String url) {
+        return inputClassifier.translate(url);
     }
 
     void urlUpdate(String url) {
+        urlUpdate(url, false);
+    }
+
+    void urlUpdate(String url, boolean revalidate) {
         String newUrl = translate(url);
         if (!url.equals(newUrl)) {
             urlField.setText(newUrl);
         }
         if (!newUrl.isBlank()) {
-            tabs.get(iCurrentTab).urlUpdate(newUrl, iCurrentTab);
+            int space = url.indexOf(' ');
+            if (space > 0 && inputClassifier.quickSearches.containsKey(url.substring(0, space))) {
+                suggestions.recordSearch(url.substring(0, space + 1));
+            }
+            tabs.get(iCurrentTab).urlUpdate(newUrl, iCurrentTab, revalidate);
         }
     }
 
     void changeActiveTab() {
         log("changeActiveTab iCT %d selI %d".formatted(iCurrentTab, tabsPane.getSelectedIndex()));
         tabs.get(iCurrentTab).setUrl(urlField.getText());
+        tabs.get(iCurrentTab).lastActiveMillis = System.currentTimeMillis();
         iCurrentTab = tabsPane.getSelectedIndex();
         urlField.setText(tabs.get(iCurrentTab).getUrl());
+        hibernator.restore(tabs.get(iCurrentTab), iCurrentTab);
+        // Deferred tabs start loading when selected, and optionally when one of the tabs before them is selected.
+        for (int i = iCurrentTab; i < tabs.size() && i <= iCurrentTab + deferredTabLookAhead; i++) {
+            tabs.get(i).loadDeferred(i);
+        }
+    }
+
+    HtmlTab newTab() {
+        HtmlTab tab = new HtmlTab(urlField, statusField, tabsPane, this::openInNewTab,
+                maxHistoryCount, pageCache, backForwardCache, streamingLoads, loadExecutor, latestNavigationWins,
+                prefetcher, history, imageService, fetcher);
+        tab.largeDocumentChars = largeDocumentChars;
+        tab.documentPartChars = documentPartChars;
+        tab.download = this::download;
+        tab.loadTimings = loadTimings;
+        if (lazyImages) {
+            tab.kit.lazyViews = new ArrayList<>();
+        }
+        return tab;
+    }
+
+    // Called by a page load that found url is not a page. Returns the file it is downloaded to.
+    File download(String url) {
+        DownloadManager.Download download = downloads.start(url);
+        SwingUtilities.invokeLater(() -> showDownloads(true));
+        return download.file;
+    }
+
+    // Opens a tab with the percentiles of each load phase by host.
+    void showLoadTimings() {
+        addTab();
+        tabs.get(iCurrentTab).showReport(loadTimingsStr, loadTimings.report(), iCurrentTab);
+    }
+
+    void showDownloads(boolean visible) {
+        downloadsPane.setVisible(visible);
+        if (visible) {
+            refreshDownloads();
+            downloadsTimer.start();
+        } else {
+            downloadsTimer.stop();
+        }
+        revalidate();
+    }
+
+    void refreshDownloads() {
+        List<DownloadManager.Download> all = downloads.getDownloads();
+        for (int i = 0; i < all.size(); i++) {
+            String description = all.get(i).describe();
+            if (i < downloadsModel.size()) {
+                downloadsModel.set(i, description);
+            } else {
+                downloadsModel.addElement(description);
+            }
+        }
+    }
+
+    // Stops a running download, or resumes a stopped or failed one.
+    void toggleDownload(int index) {
+        DownloadManager.Download download = downloads.getDownloads().get(index);
+        if (download.getState() == DownloadManager.Download.State.DOWNLOADING) {
+            downloads.stop(download);
+        } else {
+            downloads.resume(download);
+        }
+        refreshDownloads();
+    }
+
+    void openInNewTab(URL url) {
+        if (deferBackgroundTabs) {
+            addDeferredTab(url.toString(), url.toString());
+        } else {
+            addTab();
+            urlField.setText(url.toString());
+            urlUpdate(url.toString());
+        }
     }
 
     void addTab() {
-        HtmlTab tab = new HtmlTab(urlField, statusField, tabsPane,
-                (URL url) -> { addTab(); urlField.setText(url.toString()); urlUpdate(url.toString()); },
-                maxHistoryCount);
-        addTab(tab);
+        addTab(newTab());
     }
+
     void addTab(HtmlTab tab) {
+        addTab(tab, true);
+    }
+
+    void addTab(HtmlTab tab, boolean select) {
         int index = tabs.size();
         log("addTab " + index);
         tabs.add(tab);
@@ -231,7 +684,15 @@ public class BasicBrowser extends JPanel implements DocumentListener {
         if (index < mnemonicCount) {
             tabsPane.setMnemonicAt(index, KeyEvent.VK_1 + index);
         }
-        tabsPane.setSelectedIndex(index);
+        if (select) {
+            tabsPane.setSelectedIndex(index);
+        }
+    }
+
+    void addDeferredTab(String url, String title) {
+        HtmlTab tab = newTab();
+        addTab(tab, false);
+        tab.defer(url, title, tabs.size() - 1);
     }
 
     void openLastClosedTab() {
@@ -239,8 +700,9 @@ public class BasicBrowser extends JPanel implements DocumentListener {
         if (closedTabs.isEmpty()) {
             statusField.setText(noLastCloseTabsStr);
         } else {
-            HtmlTab tab = closedTabs.pop();
+            HtmlTab tab = newTab();
             addTab(tab);
+            tab.reopen(closedTabs.pop(), tabs.size() - 1);
         }
     }
 
@@ -249,12 +711,17 @@ public class BasicBrowser extends JPanel implements DocumentListener {
             statusField.setText(cannotCloseLastTabStr);
         } else {
             int indexToRemove = iCurrentTab;
-            tabs.get(indexToRemove).tryStoppingUpdater();
+            HtmlTab closingTab = tabs.get(indexToRemove);
+            closingTab.tryStoppingUpdater();
+            closingTab.hoverTimer.stop();
+            ClosedTab closed = closingTab.close(closedTabPages);
+            closingTab.history.dropDocuments();
             tabsPane.remove(indexToRemove); // Needs to be before tabs.remove since accesses tab that will be removed.
-            closedTabs.push(tabs.remove(indexToRemove));
+            tabs.remove(indexToRemove);
+            closedTabs.push(closed);
             // Calling tabsPane.remove first results in incorrect urlField. Need to fix that here.
             urlField.setText(tabs.get(iCurrentTab).getUrl());
-            if (closedTabs.size() > maxHistoryCount) {
+            if (closedTabs.size() > maxClosedTabs) {
                 closedTabs.removeLast();
             }
             log("closeTab old iCT %d new iCT %d".formatted(indexToRemove, iCurrentTab));
@@ -263,7 +730,9 @@ public class BasicBrowser extends JPanel implements DocumentListener {
             long freeMemory = runtime.freeMemory() >> shiftBytesToMBytes;
             long usedMemory = totalMemory - freeMemory;
             long maxMemory = runtime.maxMemory() >> shiftBytesToMBytes;
-            statusField.setText(String.format(memoryStr, usedMemory, totalMemory, freeMemory, maxMemory));
+            statusField.setText(String.format(memoryStr, usedMemory, totalMemory, freeMemory, maxMemory)
+                    + ", " + imageService.getStatistics() + ", " + fetcher.budget.getStatistics() + ", "
+                    + hibernator.getStatistics(tabs));
             // After tabsPane.remove(), the change listener that updates iCurrentTab is called. Use that index now.
             for (int i = iCurrentTab; i < mnemonicCount && i < tabsPane.getTabCount(); i++) {
                 tabsPane.setMnemonicAt(i, KeyEvent.VK_1 + i);
@@ -276,61 +745,30 @@ public class BasicBrowser extends JPanel implements DocumentListener {
         String[] pair = url.split(" ");
         if (pair.length == 1) {
             if (isUrl(url)) {
-                if (quickSearches == null || quickSearches.length == 0) {
-                    quickSearches = new String[1];
-                }
-                quickSearches[0] = url;
-            } else { // Need to delete something.
-                int i;
-                for (i = 1; i < quickSearches.length; i += 2) {
-                    if (pair[0].equals(quickSearches[i])) {
-                        break;
-                    }
-                }
-                if (i < quickSearches.length) {
-                    int iRemove = i;
-                    String[] oldSearches = quickSearches;
-                    quickSearches = new String[quickSearches.length - 2];
-                    for (i = 0; i < iRemove; i++) {
-                        quickSearches[i] = oldSearches[i];
-                    }
-                    for (; i < quickSearches.length; i++) {
-                        quickSearches[i] = oldSearches[i + 2];
-                    }
-                } else {
-                    statusField.setText(quickSearchToDeleteNotFoundErrorStr);
-                    return;
-                }
+                inputClassifier.defaultSearch = url;
+            } else if (inputClassifier.quickSearches.remove(pair[0]) == null) { // Need to delete something.
+                statusField.setText(quickSearchToDeleteNotFoundErrorStr);
+                return;
             }
         } else if (pair.length == 2) {
-            if (quickSearches == null || quickSearches.length == 0) {
+            if (inputClassifier.defaultSearch == null) {
                 statusField.setText(needBaseQuickSearchErrorStr);
                 return;
             } else {
-                int i;
-                for (i = 1; i < quickSearches.length; i += 2) {
-                    if (pair[0].equals(quickSearches[i])) {
-                        break;
-                    }
-                }
-                if (i >= quickSearches.length) {
-                    quickSearches = Arrays.copyOf(quickSearches, quickSearches.length + 2);
-                    quickSearches[i] = pair[0];
-                }
-                quickSearches[i + 1] = pair[1];
+                inputClassifier.quickSearches.put(pair[0], pair[1]);
             }
         } else {
             statusField.setText(url + quickSearchUrlFormatErrorStr);
             return;
         }
-        String searches = String.join(" ", quickSearches);
+        String searches = inputClassifier.toPreference();
         preferences.put(quickSearchKey, searches);
         statusField.setText(searches);
     }
 
     void loadPreferences() throws MalformedURLException, BackingStoreException {
         String quickSearchString = preferences.get(quickSearchKey, defaultQuickSearchStr);
-        quickSearches = quickSearchString.split(" ");
+        inputClassifier = new InputClassifier(quickSearchString);
         bookmarkBoxes = new LinkedList<>();
         bookmarkPreferences = new LinkedList<>();
         for (String key : bookmarkKeys) {
@@ -346,6 +784,7 @@ public class BasicBrowser extends JPanel implements DocumentListener {
             comboBox.addActionListener(this::openBookmarkEvent);
             bookmarkBoxes.add(comboBox);
         }
+        bookmarkIndex = new BookmarkIndex(bookmarkBoxes);
     }
 
     void addOrRemoveEvent(ActionEvent event) {
@@ -383,6 +822,8 @@ public class BasicBrowser extends JPanel implements DocumentListener {
                         box.addItem(openAllStr);
                         bookmarkNode.put(url.toString(), title);
                     }
+                    bookmarkIndex = new BookmarkIndex(bookmarkBoxes);
+                    suggestions.bookmarkIndex = bookmarkIndex;
                 } catch (MalformedURLException e) {
                     statusField.setText(exceptionStr.formatted(e.toString(), urlString));
                 } finally {
@@ -407,9 +848,14 @@ public class BasicBrowser extends JPanel implements DocumentListener {
                 if (selected.equals(openAllStr)) {
                     log("Open all");
                     for (int iEntry = 0; iEntry < (box.getItemCount() - 1); iEntry++) {
+                        String url = box.getItemAt(iEntry);
+                        if (deferBackgroundTabs && iEntry < (box.getItemCount() - 2)) {
+                            String title = bookmarkPreferences.get(i).get(url, "");
+                            addDeferredTab(url, title.isEmpty() ? url : title);
+                            continue;
+                        }
                         addTab();
                         int index = tabs.size() - 1;
-                        String url = box.getItemAt(iEntry);
                         urlField.setText(url);
                         tabs.get(index).urlUpdate(url, index);
                     }
@@ -425,8 +871,26 @@ public class BasicBrowser extends JPanel implements DocumentListener {
     static boolean isFile(String url) {
         return url.startsWith("C:\\") || url.startsWith("D:\\");
     }
+    // Same as url.matches("\\S+[.:]\\w+/?\\S*") in one pass: no whitespace, and a '.' or ':' after the first
+    // character that is followed by a word character.
     static boolean isUrl(String url) {
-        return url.matches("\\S+[.:]\\w+/?\\S*");
+        boolean separatorFound = false;
+        int length = url.length();
+        for (int i = 0; i < length; i++) {
+            char c = url.charAt(i);
+            if (c == ' ' || (c >= '\t' && c <= '\r')) {
+                return false;
+            }
+            if (!separatorFound && i > 0 && (c == '.' || c == ':') && i + 1 < length
+                    && isWordChar(url.charAt(i + 1))) {
+                separatorFound = true;
+            }
+        }
+        return separatorFound;
+    }
+
+    static boolean isWordChar(char c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '_';
     }
 
     @Override
@@ -442,234 +906,4551 @@ public class BasicBrowser extends JPanel implements DocumentListener {
         if (fillingUrlField) {
             fillingUrlField = false;
         } else {
-            FillTask task = getTaskToFillUrlWithBookmark(urlField.getText());
-            if (task != null) {
-                SwingUtilities.invokeLater(task);
-            }
+            String text = urlField.getText();
+            suggestions.request(text, List.copyOf(inputClassifier.quickSearches.keySet()), suggestion -> {
+                // Typing since the request makes the suggestion stale.
+                if (urlField.getText().equals(text)) {
+                    suggestions.shown++;
+                    new FillTask(suggestion.url, suggestion.caretLocation).run();
+                }
+            });
         }
     }
 
-    FillTask getTaskToFillUrlWithBookmark(String text) {
-        for (String prefix : new String[]{"", "http://", "https://"}) {
-            for (var box : bookmarkBoxes) {
-                for (int i = box.getItemCount() - 2; i >= 0; i--) { // skip open all entry
-                    String bookmark = box.getItemAt(i);
-                    String fullUrl = prefix + text;
-                    int fullUrlLength = fullUrl.length();
-                    if (bookmark.startsWith(fullUrl)) {
-                        return new FillTask(bookmark, fullUrlLength);
+    // Classifies what was typed in the url field and turns it into the url to load. Quick searches are kept in a hash
+    // table by their token, in the order they are saved under quickSearchKey: the default search url followed by
+    // pairs of tokens and search urls.
+    static class InputClassifier {
+        enum Kind { EMPTY, LOCATION, HOST, SEARCH }
+
+        String defaultSearch;
+        LinkedHashMap<String, String> quickSearches;
+
+        InputClassifier(String preference) {
+            String[] tokens = preference.split(" ");
+            defaultSearch = tokens.length == 0 ? null : tokens[0];
+            quickSearches = new LinkedHashMap<>();
+            for (int i = 1; i + 1 < tokens.length; i += 2) {
+                quickSearches.putIfAbsent(tokens[i], tokens[i + 1]);
+            }
+        }
+
+        String toPreference() {
+            StringBuilder preference = new StringBuilder(defaultSearch == null ? "" : defaultSearch);
+            for (var entry : quickSearches.entrySet()) {
+                preference.append(' ').append(entry.getKey()).append(' ').append(entry.getValue());
+            }
+            return preference.toString();
+        }
+
+        static Kind classify(String input) {
+            if (input == null || input.isBlank()) {
+                return Kind.EMPTY;
+            } else if (isFile(input) || input.startsWith("http://") || input.startsWith("https://")) {
+                return Kind.LOCATION;
+            } else if (isUrl(input)) {
+                return Kind.HOST;
+            }
+            return Kind.SEARCH;
+        }
+
+        static Kind[] classifyAll(List<String> inputs) {
+            Kind[] kinds = new Kind[inputs.size()];
+            for (int i = 0; i < kinds.length; i++) {
+                kinds[i] = classify(inputs.get(i));
+            }
+            return kinds;
+        }
+
+        String translate(String input) {
+            switch (classify(input)) {
+                case EMPTY:
+                    return "";
+                case LOCATION:
+                    return input;
+                case HOST:
+                    return "http://" + input;
+                default:
+                    int space = input.indexOf(' ');
+                    if (space >= 0) {
+                        String search = quickSearches.get(input.substring(0, space));
+                        if (search != null) {
+                            return search + input.substring(space + 1);
+                        }
                     }
-                }
+                    return (defaultSearch == null ? "" : defaultSearch) + input;
+            }
+        }
+
+        List<String> translateAll(List<String> inputs) {
+            ArrayList<String> urls = new ArrayList<>(inputs.size());
+            for (String input : inputs) {
+                urls.add(translate(input));
             }
+            return urls;
         }
-        return null;
     }
 
-    class FillTask implements Runnable {
-        String bookmark;
+    static class Suggestion {
+        String url;
         int caretLocation;
-        FillTask(String bookmark, int caretLocation) {
-            this.bookmark = bookmark;
+        double score;
+        int order;
+
+        Suggestion(String url, int caretLocation, double score, int order) {
+            this.url = url;
             this.caretLocation = caretLocation;
+            this.score = score;
+            this.order = order;
         }
 
-        @Override
-        public void run() {
-            fillingUrlField = true;
-            urlField.setText(bookmark);
-            urlField.setCaretPosition(bookmark.length());
-            urlField.moveCaretPosition(caretLocation);
+        boolean isBetterThan(Suggestion other) {
+            return other == null || score > other.score || (score == other.score && order < other.order);
         }
     }
 
-    static class HtmlTab implements HyperlinkListener {
-        LinkedList<String> history;
-        int iHistory;
-        int maxHistoryCount;
+    // Completes the url field from bookmarks, quick search tokens and the global history. Requests from the EDT are
+    // debounced by suggestionDebounceMillis and computed on a background thread. Each request makes all earlier ones
+    // stale: their computation stops at the next check and their result is dropped, so only the freshest suggestion
+    // reaches the EDT. Candidates are ranked by frecency, see HistoryEntry, plus one for being a bookmark or a quick
+    // search. Ties go to the bookmark the old bookmark-only completion would have chosen.
+    static class SuggestionService {
+        static final String[] schemes = {"", "http://", "https://"};
+        static final int checkInterval = 1024;
+        static final int maxHistoryCandidates = 10_000;
+        volatile BookmarkIndex bookmarkIndex;
+        HistoryStore history;
+        ConcurrentHashMap<String, HistoryEntry> searches; // Uses of quick search tokens, with a space appended.
+        ExecutorService executor;
+        javax.swing.Timer debounceTimer;
+        AtomicLong generation;
+        Future<?> running;
+        String pendingText;
+        List<String> pendingTokens;
+        Consumer<Suggestion> pendingConsumer;
+        long requested;
+        volatile long computed; // Only written by the suggestions thread.
+        AtomicLong stale;
+        long shown;
+
+        SuggestionService(BookmarkIndex bookmarkIndex, HistoryStore history) {
+            this.bookmarkIndex = bookmarkIndex;
+            this.history = history;
+            searches = new ConcurrentHashMap<>();
+            executor = Executors.newSingleThreadExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "suggestions");
+                thread.setDaemon(true);
+                return thread;
+            });
+            debounceTimer = new javax.swing.Timer(suggestionDebounceMillis, e -> submit());
+            debounceTimer.setRepeats(false);
+            generation = new AtomicLong();
+            stale = new AtomicLong();
+        }
+
+        void recordSearch(String search) {
+            long now = System.currentTimeMillis();
+            searches.compute(search, (key, entry) -> new HistoryEntry(search, "",
+                    entry == null ? 1 : entry.visits + 1, now));
+        }
+
+        // Called on the EDT for every change of the url field. consumer is called on the EDT.
+        void request(String text, List<String> quickSearchTokens, Consumer<Suggestion> consumer) {
+            requested++;
+            generation.incrementAndGet();
+            pendingText = text;
+            pendingTokens = quickSearchTokens;
+            pendingConsumer = consumer;
+            debounceTimer.restart();
+        }
+
+        void submit() {
+            long requestGeneration = generation.get();
+            String text = pendingText;
+            List<String> tokens = pendingTokens;
+            Consumer<Suggestion> consumer = pendingConsumer;
+            if (running != null) {
+                running.cancel(true);
+            }
+            running = executor.submit(() -> {
+                Suggestion suggestion = suggest(text, tokens, requestGeneration);
+                if (suggestion != null) {
+                    SwingUtilities.invokeLater(() -> {
+                        if (requestGeneration == generation.get()) {
+                            consumer.accept(suggestion);
+                        } else {
+                            stale.incrementAndGet();
+                        }
+                    });
+                }
+            });
+        }
+
+        boolean isStale(long requestGeneration) {
+            if (requestGeneration != generation.get()) {
+                stale.incrementAndGet();
+                return true;
+            }
+            return false;
+        }
+
+        // Returns the best completion for the first scheme prefix that has any, or null if there is none or the
+        // request became stale.
+        Suggestion suggest(String text, List<String> quickSearchTokens, long requestGeneration) {
+            long now = System.currentTimeMillis();
+            BookmarkIndex index = bookmarkIndex;
+            int n = index.bookmarks.length;
+            for (String scheme : schemes) {
+                String fullUrl = scheme + text;
+                int caretLocation = fullUrl.length();
+                Suggestion best = null;
+                int to = index.firstIndex(fullUrl, true);
+                for (int i = index.firstIndex(fullUrl, false); i < to; i++) {
+                    if (i % checkInterval == 0 && isStale(requestGeneration)) {
+                        return null;
+                    }
+                    String url = index.bookmarks[i];
+                    Suggestion candidate = new Suggestion(url, caretLocation, 1 + history.frecency(url, now),
+                            index.orders[n + i]);
+                    if (candidate.isBetterThan(best)) {
+                        best = candidate;
+                    }
+                }
+                for (HistoryEntry entry : history.withPrefix(fullUrl, maxHistoryCandidates)) {
+                    Suggestion candidate = new Suggestion(entry.url, caretLocation, entry.frecency(now),
+                            Integer.MAX_VALUE);
+                    if (candidate.isBetterThan(best)) {
+                        best = candidate;
+                    }
+                }
+                if (scheme.isEmpty()) {
+                    for (String token : quickSearchTokens) {
+                        String search = token + " ";
+                        if (search.startsWith(fullUrl)) {
+                            HistoryEntry uses = searches.get(search);
+                            Suggestion candidate = new Suggestion(search, caretLocation,
+                                    1 + (uses == null ? 0 : uses.frecency(now)), Integer.MAX_VALUE);
+                            if (candidate.isBetterThan(best)) {
+                                best = candidate;
+                            }
+                        }
+                    }
+                }
+                if (isStale(requestGeneration)) {
+                    return null;
+                }
+                if (best != null) {
+                    computed++;
+                    return best;
+                }
+            }
+            computed++;
+            return null;
+        }
+
+        String getStatistics() {
+            return suggestionStatisticsStr.formatted(requested, computed, stale.get(), shown);
+        }
+    }
+
+    static class HistoryEntry {
+        String url;
         String title;
-        JTextField urlField;
-        JTextField statusField;
-        JTabbedPane tabsPane;
-        HTMLEditorKit kit;
-        JEditorPane editorPane;
-        JScrollPane scrollPane;
-        Consumer<URL> addTabWithUrl;
-        SwingWorker<String[], Void> worker;
+        long visits;
+        long lastVisitMillis;
 
-        HtmlTab(JTextField urlField, JTextField statusField, JTabbedPane tabsPane,
-                Consumer<URL> addTabWithUrlLambda, int historyCount) {
-            history = new LinkedList<>();
-            history.add("");
-            maxHistoryCount = historyCount;
-            title = untitledStr;
-            iHistory = 0;
-            this.urlField = urlField;
-            this.statusField = statusField;
-            this.tabsPane = tabsPane;
-            addTabWithUrl = addTabWithUrlLambda;
-            worker = null;
-            kit = new HTMLEditorKit();
-            kit.setAutoFormSubmission(false);
-            editorPane = new JEditorPane("text/html", "");
-            editorPane.addHyperlinkListener(this);
-            editorPane.setEditable(false);
-            editorPane.setEditorKit(kit);
-            scrollPane = new JScrollPane(editorPane);
+        HistoryEntry(String url, String title, long visits, long lastVisitMillis) {
+            this.url = url;
+            this.title = title;
+            this.visits = visits;
+            this.lastVisitMillis = lastVisitMillis;
         }
 
-        String getTitle() {
-            return title;
+        HistoryEntry copy() {
+            return new HistoryEntry(url, title, visits, lastVisitMillis);
         }
 
-        String getUrl() {
-            log("getUrl iH %d h %s".formatted(iHistory, Arrays.toString(history.toArray())));
-            return history.get(iHistory);
+        // Visits weighted by recency, halving every frecencyHalfLifeMillis.
+        double frecency(long now) {
+            return visits * Math.pow(0.5, (double) (now - lastVisitMillis) / frecencyHalfLifeMillis);
         }
+    }
 
-        void setUrl(String newUrl) {
-            log("setUrl iH %d newUrl %s old h %s".formatted(iHistory, newUrl, Arrays.toString(history.toArray())));
-            history.set(iHistory, newUrl);
-            log("done setUrl iH %d new h %s".formatted(iHistory, Arrays.toString(history.toArray())));
+    // Global browsing history: an index of url -> visits, last visit and title in memory, backed by an append-only
+    // log on disk once opened. A record adds visits to a url and may set its title. Records carry a checksum, so
+    // replaying the log after a crash stops at a torn record, which is then cut off. Recording runs on a background
+    // thread and never blocks the EDT. The index keeps the maxEntries most recently visited urls, and when the log
+    // holds compactionFactor times more records than that, it is rewritten with one record per url. Queries return
+    // copies of the entries.
+    static class HistoryStore {
+        static final int recordMagic = 0x42424853;
+        static final int recordHeaderBytes = 12; // magic, payload length, payload crc
+        static final int compactionFactor = 4;
+        static final int minCompactionRecords = 1024;
+        static final String logFileName = "history.log";
+        int maxEntries;
+        TreeMap<String, HistoryEntry> byUrl;
+        LinkedHashMap<String, HistoryEntry> byRecency; // Least recently visited first.
+        ExecutorService writer;
+        File directory;
+        FileChannel logChannel;
+        long logRecords;
+        long totalVisits;
+        long compactions;
+        long evictions;
+
+        HistoryStore(int maxEntries) {
+            this.maxEntries = maxEntries;
+            byUrl = new TreeMap<>();
+            byRecency = new LinkedHashMap<>();
+            writer = Executors.newSingleThreadExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "history");
+                thread.setDaemon(true);
+                return thread;
+            });
         }
 
-        void tryStoppingUpdater() {
-            if (worker != null) {
-                log("tryStoppingUpdater");
-                worker.cancel(true);
-                worker = null;
+        // Replays the log in directory and appends to it from now on.
+        synchronized void open(File directory) throws IOException {
+            Files.createDirectories(directory.toPath());
+            this.directory = directory;
+            File file = new File(directory, logFileName);
+            logChannel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE);
+            long validSize = replay();
+            if (validSize < logChannel.size()) {
+                log("HistoryStore cut torn tail of %s at %d".formatted(file, validSize));
+                logChannel.truncate(validSize);
             }
+            logChannel.position(validSize);
         }
 
-        static String[] updaterDoInBackground(String url) {
-            log("updaterDoInBackground " + url);
-            String[] result = {"", "", ""};
-            long t0 = System.nanoTime();
-            try {
-                org.jsoup.nodes.Document soupDoc;
-                if (isFile(url)) {
-                    soupDoc = Jsoup.parse(new File(url), "UTF-8");
-                } else {
-                    soupDoc = Jsoup.connect(url).get();
-                }
-		Whitelist whitelist = Whitelist.relaxed();
-		whitelist.removeTags("div"); // div tags may prevent line wrapping.
-                Cleaner cleaner = new Cleaner(whitelist);
-                var cleanDoc = cleaner.clean(soupDoc);
-                result[0] = soupDoc.title();
-		// Avoid non-images that may reload and cause 100% CPU utilization.
-                var images = cleanDoc.getElementsByTag("img");
-                for (var image : images) {
-                    String src = image.attr("src");
-                    if (!(src.contains(".jpg") || src.contains(".png") || src.contains(".gif"))) {
-                        image.attr("src", "");
-                    }
-                }
-                result[1] = cleanDoc.html();
-            } catch (IOException e) {
-                result[0] = String.format(exceptionStr, e.toString(), url);
-            } finally {
-                result[2] = String.format("%.2f", (System.nanoTime() - t0) * 1e-9);
+        long replay() throws IOException {
+            long size = logChannel.size();
+            ByteBuffer header = ByteBuffer.allocate(recordHeaderBytes);
+            long offset = 0;
+            while (offset + recordHeaderBytes <= size) {
+                readFully(header.clear(), offset);
+                int length = header.getInt(4);
+                if (header.getInt(0) != recordMagic || length <= 0 || offset + recordHeaderBytes + length > size) {
+                    break;
+                }
+                ByteBuffer payload = ByteBuffer.allocate(length);
+                readFully(payload, offset + recordHeaderBytes);
+                CRC32 crc = new CRC32();
+                crc.update(payload.array());
+                if ((int) crc.getValue() != header.getInt(8)) {
+                    break;
+                }
+                payload.flip();
+                long visits = payload.getLong();
+                long time = payload.getLong();
+                apply(DiskCache.readString(payload), DiskCache.readString(payload), visits, time);
+                logRecords++;
+                offset += recordHeaderBytes + length;
             }
-            return result;
+            return offset;
         }
 
-        void updaterDone(String url, int index, String[] text) {
-            log("updaterDone url |%s| index %d text sizes %d %d %d".formatted(
-                    url, index, text[0].length(), text[1].length(), text[2].length()));
-            String body = text[1];
-            if (body.isEmpty()) {
-                statusField.setText(text[0]);
-            } else {
-                title = text[0];
-                tabsPane.setTitleAt(index, title);
-                editorPane.setText(body);
-                editorPane.setCaretPosition(0);
-                statusField.setText(String.format(urlTookStr, url, text[2]));
+        // Only called for ranges inside the file.
+        void readFully(ByteBuffer buffer, long position) throws IOException {
+            while (buffer.hasRemaining()) {
+                position += logChannel.read(buffer, position);
             }
         }
 
-        void updaterRunFinally(String url, String error) {
-            log("updaterRunFinally url |%s| error |%s|".formatted(url, error));
-            if (error != null && !error.isEmpty()) {
-                statusField.setText(String.format(exceptionStr, error, url));
+        void recordVisit(String url) {
+            long now = System.currentTimeMillis();
+            writer.execute(() -> record(url, "", 1, now));
+        }
+
+        void recordTitle(String url, String title) {
+            long now = System.currentTimeMillis();
+            writer.execute(() -> record(url, title, 0, now));
+        }
+
+        // Waits until everything recorded so far is in the index and the log.
+        void flush() {
+            try {
+                writer.submit(() -> { }).get();
+            } catch (InterruptedException | ExecutionException e) {
+                log("HistoryStore flush " + e);
             }
-            worker = null;
         }
 
-        void urlUpdate(String url, int index) {
-            log("urlUpdate %s %d".formatted(url, index));
-            if (worker != null) {
-                String error = workerExistsErrorStr.formatted(url, index);
-                log(error);
-                statusField.setText(error);
+        synchronized void record(String url, String title, long visits, long time) {
+            apply(url, title, visits, time);
+            if (logChannel == null) {
                 return;
             }
-            setUrl(url);
-            worker = new SwingWorker<>() {
-                @Override
-                protected String[] doInBackground() {
-                    return updaterDoInBackground(url);
+            try {
+                append(logChannel, url, title, visits, time);
+                logRecords++;
+                if (logRecords > minCompactionRecords && logRecords > (long) compactionFactor * byUrl.size()) {
+                    compact();
                 }
+            } catch (IOException e) {
+                log("HistoryStore record " + e);
+            }
+        }
 
-                @Override
-                public void done() {
-                    String error = "";
-                    try {
-                        updaterDone(url, index, get());
-                    } catch (InterruptedException | ExecutionException e) {
-                        error = e.toString();
-                    } finally {
-                        updaterRunFinally(url, error);
-                    }
+        void apply(String url, String title, long visits, long time) {
+            HistoryEntry entry = byUrl.get(url);
+            if (entry == null) {
+                entry = new HistoryEntry(url, "", 0, 0);
+                byUrl.put(url, entry);
+            }
+            if (!title.isEmpty()) {
+                entry.title = title;
+            }
+            if (visits > 0) {
+                entry.visits += visits;
+                entry.lastVisitMillis = Math.max(entry.lastVisitMillis, time);
+                totalVisits += visits;
+                byRecency.remove(url);
+            }
+            byRecency.put(url, entry);
+            if (byRecency.size() > maxEntries) {
+                String eldest = byRecency.keySet().iterator().next();
+                byRecency.remove(eldest);
+                byUrl.remove(eldest);
+                evictions++;
+            }
+        }
+
+        static void append(FileChannel channel, String url, String title, long visits, long time)
+                throws IOException {
+            byte[] urlBytes = url.getBytes(StandardCharsets.UTF_8);
+            byte[] titleBytes = title.getBytes(StandardCharsets.UTF_8);
+            int payloadLength = 2 * 8 + 2 * 4 + urlBytes.length + titleBytes.length;
+            ByteBuffer record = ByteBuffer.allocate(recordHeaderBytes + payloadLength);
+            record.putInt(recordMagic).putInt(payloadLength).putInt(0).putLong(visits).putLong(time);
+            record.putInt(urlBytes.length).put(urlBytes).putInt(titleBytes.length).put(titleBytes);
+            CRC32 crc = new CRC32();
+            crc.update(record.array(), recordHeaderBytes, payloadLength);
+            record.putInt(8, (int) crc.getValue()).flip();
+            while (record.hasRemaining()) {
+                channel.write(record);
+            }
+        }
+
+        // Writes one record per entry, least recently visited first so that replaying keeps the order, to a new
+        // file that then replaces the log. The log is closed for the move, which Windows refuses on an open file, and
+        // reopened even when the move fails, so that later visits are still appended to the old log. Only when it
+        // cannot be reopened does the store go on in memory.
+        void compact() throws IOException {
+            log("HistoryStore compact " + directory);
+            File compacted = new File(directory, logFileName + ".tmp");
+            try (FileChannel channel = FileChannel.open(compacted.toPath(), StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                for (HistoryEntry entry : byRecency.values()) {
+                    append(channel, entry.url, entry.title, entry.visits, entry.lastVisitMillis);
                 }
-            };
-            worker.execute();
+                channel.force(true);
+            }
+            logChannel.close();
+            logChannel = null;
+            try {
+                Files.move(compacted.toPath(), new File(directory, logFileName).toPath(),
+                        StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                logRecords = byRecency.size();
+                compactions++;
+            } finally {
+                logChannel = FileChannel.open(new File(directory, logFileName).toPath(), StandardOpenOption.READ,
+                        StandardOpenOption.WRITE);
+                logChannel.position(logChannel.size());
+            }
         }
 
-        void goBack() {
-            if (iHistory <= 0) {
-                return;
+        synchronized void close() throws IOException {
+            if (logChannel != null) {
+                logChannel.close();
+                logChannel = null;
             }
-            iHistory--;
-            String url = history.get(iHistory);
-            urlField.setText(url);
-            urlUpdate(url, tabsPane.getSelectedIndex());
         }
 
-        void goForward() {
-            if (iHistory >= (history.size() - 1)) {
-                return;
+        synchronized HistoryEntry get(String url) {
+            HistoryEntry entry = byUrl.get(url);
+            return entry == null ? null : entry.copy();
+        }
+
+        synchronized double frecency(String url, long now) {
+            HistoryEntry entry = byUrl.get(url);
+            return entry == null ? 0 : entry.frecency(now);
+        }
+
+        // Entries whose url starts with prefix, in url order.
+        synchronized List<HistoryEntry> withPrefix(String prefix, int limit) {
+            ArrayList<HistoryEntry> entries = new ArrayList<>();
+            for (HistoryEntry entry : byUrl.tailMap(prefix).values()) {
+                if (entries.size() >= limit || !entry.url.startsWith(prefix)) {
+                    break;
+                }
+                entries.add(entry.copy());
             }
-            iHistory++;
-            String url = history.get(iHistory);
-            urlField.setText(url);
-            urlUpdate(url, tabsPane.getSelectedIndex());
+            return entries;
         }
 
-        @Override
-        public void hyperlinkUpdate(HyperlinkEvent event) {
-            if (!(event instanceof FormSubmitEvent)) {
-                // else log("data |%s| url |%s| desc |%s| event type |%s|".formatted(((FormSubmitEvent)fse).getData(), fse.getURL(), fse.getDescription(), fse.getEventType()));
-                URL url = event.getURL();
+        // Entries whose url or title contains text, most recently visited first.
+        synchronized List<HistoryEntry> containing(String text, int limit) {
+            ArrayList<HistoryEntry> entries = new ArrayList<>();
+            HistoryEntry[] recent = byRecency.values().toArray(new HistoryEntry[0]);
+            for (int i = recent.length - 1; i >= 0 && entries.size() < limit; i--) {
+                if (recent[i].url.contains(text) || recent[i].title.contains(text)) {
+                    entries.add(recent[i].copy());
+                }
+            }
+            return entries;
+        }
+
+        synchronized List<HistoryEntry> mostRecent(int limit) {
+            return containing("", limit);
+        }
+
+        synchronized List<HistoryEntry> mostFrequent(int limit) {
+            Comparator<HistoryEntry> byVisits = Comparator.comparingLong(entry -> entry.visits);
+            PriorityQueue<HistoryEntry> top = new PriorityQueue<>(byVisits);
+            for (HistoryEntry entry : byUrl.values()) {
+                top.add(entry);
+                if (top.size() > limit) {
+                    top.poll();
+                }
+            }
+            ArrayList<HistoryEntry> entries = new ArrayList<>();
+            while (!top.isEmpty()) {
+                entries.add(top.poll().copy());
+            }
+            Collections.reverse(entries);
+            return entries;
+        }
+
+        synchronized String getStatistics() {
+            long logBytes = 0;
+            try {
+                logBytes = logChannel == null ? 0 : logChannel.size();
+            } catch (IOException e) {
+                log("HistoryStore getStatistics " + e);
+            }
+            return historyStatisticsStr.formatted(byUrl.size(), totalVisits, logBytes >> 10, logRecords, compactions,
+                    evictions);
+        }
+    }
+
+    // Finds the first bookmark that starts with a prefix, where first means the order in which the boxes are
+    // searched: box by box, and within a box from the newest entry to the oldest. The bookmarks are sorted so that
+    // those starting with the prefix form one range, found by binary search. A segment tree over the search order
+    // of the sorted bookmarks then gives the first of them in O(log n).
+    static class BookmarkIndex {
+        String[] bookmarks;
+        int[] orders; // Segment tree, leaves start at bookmarks.length.
+        int[] sortedIndexes; // By search order.
+
+        BookmarkIndex(List<JComboBox<String>> boxes) {
+            ArrayList<String> searchOrder = new ArrayList<>();
+            for (var box : boxes) {
+                for (int i = box.getItemCount() - 2; i >= 0; i--) { // skip open all entry
+                    searchOrder.add(box.getItemAt(i));
+                }
+            }
+            Integer[] sorted = new Integer[searchOrder.size()];
+            for (int i = 0; i < sorted.length; i++) {
+                sorted[i] = i;
+            }
+            Arrays.sort(sorted, Comparator.comparing(searchOrder::get));
+            int n = sorted.length;
+            bookmarks = new String[n];
+            orders = new int[2 * n];
+            sortedIndexes = new int[n];
+            for (int i = 0; i < n; i++) {
+                bookmarks[i] = searchOrder.get(sorted[i]);
+                orders[n + i] = sorted[i];
+                sortedIndexes[sorted[i]] = i;
+            }
+            for (int i = n - 1; i > 0; i--) {
+                orders[i] = Math.min(orders[2 * i], orders[2 * i + 1]);
+            }
+        }
+
+        String find(String prefix) {
+            int from = firstIndex(prefix, false);
+            int to = firstIndex(prefix, true);
+            if (from >= to) {
+                return null;
+            }
+            int n = bookmarks.length;
+            int first = Integer.MAX_VALUE;
+            for (int l = from + n, r = to + n; l < r; l >>= 1, r >>= 1) {
+                if ((l & 1) == 1) {
+                    first = Math.min(first, orders[l++]);
+                }
+                if ((r & 1) == 1) {
+                    first = Math.min(first, orders[--r]);
+                }
+            }
+            return bookmarks[sortedIndexes[first]];
+        }
+
+        // Returns the index of the first bookmark not less than prefix, or with pastPrefix the index of the first
+        // bookmark after the ones that start with prefix.
+        int firstIndex(String prefix, boolean pastPrefix) {
+            int lo = 0;
+            int hi = bookmarks.length;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                String bookmark = bookmarks[mid];
+                if (bookmark.compareTo(prefix) < 0 || (pastPrefix && bookmark.startsWith(prefix))) {
+                    lo = mid + 1;
+                } else {
+                    hi = mid;
+                }
+            }
+            return lo;
+        }
+    }
+
+    class FillTask implements Runnable {
+        String bookmark;
+        int caretLocation;
+        FillTask(String bookmark, int caretLocation) {
+            this.bookmark = bookmark;
+            this.caretLocation = caretLocation;
+        }
+
+        @Override
+        public void run() {
+            fillingUrlField = true;
+            urlField.setText(bookmark);
+            urlField.setCaretPosition(bookmark.length());
+            urlField.moveCaretPosition(caretLocation);
+        }
+    }
+
+    // A cleaned page with the validators of its response. Pages without a known freshness lifetime, such as files,
+    // stay fresh while they are cached.
+    static class CachedPage {
+        String url;
+        String title;
+        String body;
+        long bytes;
+        long storedMillis;
+        String etag;
+        String lastModified;
+        long expiresMillis;
+
+        CachedPage(String url, String title, String body) {
+            this.url = url;
+            this.title = title;
+            this.body = body;
+            bytes = 2L * (url.length() + title.length() + body.length()); // Strings are mostly stored as UTF-16.
+            storedMillis = System.currentTimeMillis();
+            etag = null;
+            lastModified = null;
+            expiresMillis = Long.MAX_VALUE;
+        }
+
+        boolean isFresh(long nowMillis) {
+            return nowMillis < expiresMillis;
+        }
+
+        boolean hasValidators() {
+            return etag != null || lastModified != null;
+        }
+
+        void setValidators(Fetcher.Response response) {
+            etag = response.etag;
+            lastModified = response.lastModified;
+            expiresMillis = response.expiresMillis;
+        }
+
+        // The same page stored again after a 304 Not Modified response, which may update the validators.
+        CachedPage revalidated(Fetcher.Response response) {
+            CachedPage page = new CachedPage(url, title, body);
+            page.etag = response.etag != null ? response.etag : etag;
+            page.lastModified = response.lastModified != null ? response.lastModified : lastModified;
+            page.expiresMillis = response.expiresMillis;
+            return page;
+        }
+    }
+
+    // Cleaned pages shared by all tabs and keyed by the translated url. The size is bounded by the estimated bytes of
+    // the cached strings rather than the number of pages. Used from both the event thread and the workers. Pages
+    // missing from memory are looked up by the workers in the optional disk cache if they were saved within
+    // diskMaxAgeMillis.
+    static class PageCache {
+        LinkedHashMap<String, CachedPage> pages;
+        long maxBytes;
+        long bytes;
+        long hits;
+        long misses;
+        long evictions;
+        DiskCache diskCache;
+        long diskMaxAgeMillis;
+        boolean offlineFallback;
+
+        PageCache(long maxBytes) {
+            pages = new LinkedHashMap<>(16, 0.75f, true); // Access order, so the eldest entry is least recently used.
+            this.maxBytes = maxBytes;
+            bytes = 0;
+            diskCache = null;
+            diskMaxAgeMillis = 0;
+            offlineFallback = false;
+        }
+
+        // Reads and checks the saved record, which is too slow for the event thread.
+        CachedPage getFromDisk(String url) {
+            if (diskCache == null) {
+                return null;
+            }
+            CachedPage page = diskCache.get(url, System.currentTimeMillis() - diskMaxAgeMillis);
+            if (page != null) {
+                putInMemory(page);
+            }
+            return page;
+        }
+
+        // Any saved copy regardless of age, used when the url cannot be fetched.
+        CachedPage getOffline(String url) {
+            if (!offlineFallback || diskCache == null) {
+                return null;
+            }
+            return diskCache.get(url, 0);
+        }
+
+        void put(CachedPage page) {
+            putInMemory(page);
+            if (diskCache != null) {
+                diskCache.putLater(page);
+            }
+        }
+
+        synchronized boolean containsInMemory(String url) {
+            return pages.containsKey(url);
+        }
+
+        synchronized CachedPage remove(String url) {
+            CachedPage page = pages.remove(url);
+            if (page != null) {
+                bytes -= page.bytes;
+            }
+            return page;
+        }
+
+        synchronized CachedPage getFromMemory(String url) {
+            CachedPage page = pages.get(url);
+            if (page == null) {
+                misses++;
+            } else {
+                hits++;
+            }
+            return page;
+        }
+
+        synchronized void putInMemory(CachedPage page) {
+            CachedPage old = pages.remove(page.url);
+            if (old != null) {
+                bytes -= old.bytes;
+            }
+            if (page.bytes > maxBytes) {
+                return;
+            }
+            pages.put(page.url, page);
+            bytes += page.bytes;
+            var iterator = pages.values().iterator();
+            while (bytes > maxBytes && iterator.hasNext()) {
+                bytes -= iterator.next().bytes;
+                iterator.remove();
+                evictions++;
+            }
+        }
+
+        synchronized void clear() {
+            pages.clear();
+            bytes = 0;
+        }
+
+        synchronized String getStatistics() {
+            return pageCacheStatisticsStr.formatted(pages.size(), bytes >> 10, maxBytes >> 10, hits, misses, evictions);
+        }
+    }
+
+    // Cleaned pages kept between runs. Records are appended to segment files and found through a memory-mapped open
+    // addressing index of url hash -> segment, offset, length and time. Each record has a checksum, so a record torn by
+    // a crash is ignored, and the torn tail of the last segment is cut off when the cache is opened. Once the segments
+    // exceed maxBytes, the newest records are copied to new segments and the old segments are deleted. The browser
+    // saves pages with putLater on the writer thread, which nothing interrupts, since an interrupted write closes the
+    // channel; a channel closed by an interrupted read is opened again.
+    static class DiskCache {
+        static final int recordMagic = 0x42425052;
+        static final int indexMagic = 0x42424958;
+        static final int recordHeaderBytes = 12; // magic, payload length, payload crc
+        static final int indexHeaderBytes = 16; // magic, slot count, live count, dirty flag
+        static final int slotBytes = 32; // url hash, offset, time, segment, length
+        static final int indexSlots = 1 << 16;
+        static final int maxLiveCount = indexSlots * 7 / 10;
+        static final long maxSegmentBytes = 16 << shiftBytesToMBytes;
+        static final double compactedFraction = 0.75;
+        static final String indexFileName = "index.dat";
+        static final String segmentFileFormat = "segment-%06d.dat";
+        static final String segmentFilePattern = "segment-\\d{6}\\.dat";
+        File directory;
+        long maxBytes;
+        FileChannel indexChannel;
+        MappedByteBuffer index;
+        TreeMap<Integer, Segment> segments;
+        int liveCount;
+        ReentrantLock writeLock; // Held by put, so compaction copies without the monitor while no record is appended.
+        ExecutorService writer;
+        long hits;
+        long misses;
+        long writes;
+        long compactions;
+
+        static class Segment {
+            int number;
+            File file;
+            FileChannel channel;
+            long size;
+            MappedByteBuffer map;
+
+            boolean closed;
+
+            Segment(int number, File file) throws IOException {
+                this.number = number;
+                this.file = file;
+                channel = open(file);
+                size = channel.size();
+                map = null;
+                closed = false;
+            }
+
+            static FileChannel open(File file) throws IOException {
+                return FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+                        StandardOpenOption.WRITE);
+            }
+
+            // Mapping in a worker that is interrupted closes the channel for every thread, so it is opened again.
+            synchronized FileChannel channel() throws IOException {
+                if (closed) {
+                    throw new ClosedChannelException();
+                }
+                if (!channel.isOpen()) {
+                    log("DiskCache reopen " + file);
+                    channel = open(file);
+                    map = null;
+                }
+                return channel;
+            }
+
+            // Mapping again after appends is cheap compared to reading the record through the channel.
+            synchronized ByteBuffer mapped(long end) throws IOException {
+                if (end > size) {
+                    return null;
+                }
+                if (map == null || map.capacity() < end) {
+                    map = channel().map(FileChannel.MapMode.READ_ONLY, 0, size);
+                }
+                return map.duplicate();
+            }
+
+            synchronized void close() throws IOException {
+                closed = true;
+                map = null;
+                channel.close();
+            }
+        }
+
+        static class Location {
+            long hash;
+            long offset;
+            long time;
+            int segment;
+            int length;
+
+            Location(long hash, long offset, long time, int segment, int length) {
+                this.hash = hash;
+                this.offset = offset;
+                this.time = time;
+                this.segment = segment;
+                this.length = length;
+            }
+        }
+
+        static DiskCache open(File directory, long maxBytes) throws IOException {
+            Files.createDirectories(directory.toPath());
+            return new DiskCache(directory, maxBytes);
+        }
+
+        DiskCache(File directory, long maxBytes) throws IOException {
+            this.directory = directory;
+            this.maxBytes = maxBytes;
+            segments = new TreeMap<>();
+            writeLock = new ReentrantLock();
+            writer = Executors.newSingleThreadExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "disk-cache");
+                thread.setDaemon(true);
+                return thread;
+            });
+            File[] files = directory.listFiles((dir, name) -> name.matches(segmentFilePattern));
+            for (File file : files == null ? new File[0] : files) {
+                int number = Integer.parseInt(file.getName().replaceAll("\\D", ""));
+                segments.put(number, new Segment(number, file));
+            }
+            if (segments.isEmpty()) {
+                addSegment();
+            } else {
+                Segment last = segments.lastEntry().getValue();
+                long validSize = scan(last, null);
+                if (validSize < last.size) {
+                    log("DiskCache cut torn tail of %s at %d".formatted(last.file, validSize));
+                    last.channel.truncate(validSize);
+                    last.size = validSize;
+                }
+            }
+            File indexFile = new File(directory, indexFileName);
+            indexChannel = FileChannel.open(indexFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE);
+            long indexBytes = indexHeaderBytes + (long) indexSlots * slotBytes;
+            boolean existed = indexChannel.size() == indexBytes;
+            index = indexChannel.map(FileChannel.MapMode.READ_WRITE, 0, indexBytes);
+            if (!existed || index.getInt(0) != indexMagic || index.getInt(4) != indexSlots || index.getInt(12) != 0) {
+                rebuildIndex();
+            } else {
+                liveCount = index.getInt(8);
+                deleteUnreferencedSegments();
+            }
+        }
+
+        static long hash(String url) {
+            long hash = 0xcbf29ce484222325L; // 64-bit FNV-1a
+            for (int i = 0; i < url.length(); i++) {
+                hash = (hash ^ url.charAt(i)) * 0x100000001b3L;
+            }
+            return hash == 0 ? 1 : hash; // 0 marks an empty slot.
+        }
+
+        static int slotPosition(int slot) {
+            return indexHeaderBytes + slot * slotBytes;
+        }
+
+        Location readSlot(int slot) {
+            int position = slotPosition(slot);
+            return new Location(index.getLong(position), index.getLong(position + 8), index.getLong(position + 16),
+                    index.getInt(position + 24), index.getInt(position + 28));
+        }
+
+        void writeSlot(int slot, Location location) {
+            int position = slotPosition(slot);
+            index.putLong(position + 8, location.offset);
+            index.putLong(position + 16, location.time);
+            index.putInt(position + 24, location.segment);
+            index.putInt(position + 28, location.length);
+            index.putLong(position, location.hash); // Last, so a half written new slot is still empty.
+        }
+
+        // Returns the slot holding hash, or the empty slot where it belongs. Terminates since liveCount < indexSlots.
+        int findSlot(long hash) {
+            int mask = indexSlots - 1;
+            int slot = (int) hash & mask;
+            while (true) {
+                long slotHash = index.getLong(slotPosition(slot));
+                if (slotHash == 0 || slotHash == hash) {
+                    return slot;
+                }
+                slot = (slot + 1) & mask;
+            }
+        }
+
+        void setLiveCount(int count) {
+            liveCount = count;
+            index.putInt(8, count);
+        }
+
+        void clearIndex(boolean dirty) {
+            index.putInt(0, indexMagic);
+            index.putInt(4, indexSlots);
+            for (int slot = 0; slot < indexSlots; slot++) {
+                index.putLong(slotPosition(slot), 0);
+            }
+            setLiveCount(0);
+            index.putInt(12, dirty ? 1 : 0);
+        }
+
+        void index(Location location) {
+            int slot = findSlot(location.hash);
+            if (readSlot(slot).hash == 0) {
+                setLiveCount(liveCount + 1);
+            }
+            writeSlot(slot, location);
+        }
+
+        // Later records replace earlier ones for the same url, so segments are indexed from oldest to newest.
+        void rebuildIndex() throws IOException {
+            log("DiskCache rebuildIndex " + directory);
+            clearIndex(true);
+            for (Segment segment : segments.values()) {
+                scan(segment, this::index);
+            }
+            index.putInt(12, 0);
+        }
+
+        void deleteUnreferencedSegments() throws IOException {
+            Set<Integer> referenced = new HashSet<>();
+            referenced.add(segments.lastKey());
+            for (int slot = 0; slot < indexSlots; slot++) {
+                Location location = readSlot(slot);
+                if (location.hash != 0) {
+                    referenced.add(location.segment);
+                }
+            }
+            for (var iterator = segments.values().iterator(); iterator.hasNext(); ) {
+                Segment segment = iterator.next();
+                if (!referenced.contains(segment.number)) {
+                    segment.close();
+                    Files.deleteIfExists(segment.file.toPath());
+                    iterator.remove();
+                }
+            }
+        }
+
+        // Returns the length of the valid prefix of the segment, passing the location of each record to consumer.
+        long scan(Segment segment, Consumer<Location> consumer) throws IOException {
+            long offset = 0;
+            while (offset + recordHeaderBytes <= segment.size) {
+                ByteBuffer buffer = segment.mapped(segment.size);
+                int length = recordHeaderBytes + buffer.getInt((int) offset + 4);
+                if (!isValidRecord(segment, offset, length)) {
+                    break;
+                }
+                if (consumer != null) {
+                    buffer.position((int) offset + recordHeaderBytes);
+                    long time = buffer.getLong();
+                    String url = readString(buffer);
+                    consumer.accept(new Location(hash(url), offset, time, segment.number, length));
+                }
+                offset += length;
+            }
+            return offset;
+        }
+
+        boolean isValidRecord(Segment segment, long offset, int length) throws IOException {
+            if (length <= recordHeaderBytes || offset + length > segment.size) {
+                return false;
+            }
+            ByteBuffer buffer = segment.mapped(offset + length);
+            if (buffer == null || buffer.getInt((int) offset) != recordMagic
+                    || buffer.getInt((int) offset + 4) != length - recordHeaderBytes) {
+                return false;
+            }
+            CRC32 crc = new CRC32();
+            crc.update(buffer.limit((int) offset + length).position((int) offset + recordHeaderBytes));
+            return (int) crc.getValue() == buffer.getInt((int) offset + 8);
+        }
+
+        static String readString(ByteBuffer buffer) {
+            byte[] bytes = new byte[buffer.getInt()];
+            buffer.get(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        Segment addSegment() throws IOException {
+            int number = segments.isEmpty() ? 0 : segments.lastKey() + 1;
+            Segment segment = new Segment(number, new File(directory, segmentFileFormat.formatted(number)));
+            segments.put(number, segment);
+            return segment;
+        }
+
+        long totalBytes() {
+            long total = 0;
+            for (Segment segment : segments.values()) {
+                total += segment.size;
+            }
+            return total;
+        }
+
+        // Returns the page if it was saved at or after notBefore.
+        synchronized CachedPage get(String url, long notBefore) {
+            try {
+                Location location = readSlot(findSlot(hash(url)));
+                Segment segment = segments.get(location.segment);
+                if (location.hash != 0 && location.time >= notBefore && segment != null
+                        && isValidRecord(segment, location.offset, location.length)) {
+                    ByteBuffer buffer = segment.mapped(location.offset + location.length);
+                    buffer.position((int) location.offset + recordHeaderBytes);
+                    long time = buffer.getLong();
+                    if (url.equals(readString(buffer))) {
+                        CachedPage page = new CachedPage(url, readString(buffer), readString(buffer));
+                        page.storedMillis = time;
+                        if (buffer.position() < location.offset + location.length) {
+                            String etag = readString(buffer);
+                            String lastModified = readString(buffer);
+                            page.etag = etag.isEmpty() ? null : etag;
+                            page.lastModified = lastModified.isEmpty() ? null : lastModified;
+                            page.expiresMillis = buffer.getLong();
+                        }
+                        hits++;
+                        return page;
+                    }
+                }
+            } catch (IOException e) {
+                log("DiskCache get " + e);
+            }
+            misses++;
+            return null;
+        }
+
+        // Saves the page on the writer thread, so no event thread or interruptible worker writes or compacts.
+        void putLater(CachedPage page) {
+            writer.execute(() -> put(page));
+        }
+
+        void put(CachedPage page) {
+            writeLock.lock();
+            try {
+                if (append(page)) {
+                    compact();
+                }
+            } catch (IOException e) {
+                log("DiskCache put " + e);
+            } finally {
+                writeLock.unlock();
+            }
+        }
+
+        // Returns whether the segments are over the limits.
+        synchronized boolean append(CachedPage page) throws IOException {
+            // The validators follow the body, so records written without them can still be read.
+            String[] values = {page.url, page.title, page.body, page.etag == null ? "" : page.etag,
+                    page.lastModified == null ? "" : page.lastModified};
+            byte[][] strings = new byte[values.length][];
+            int payloadLength = 8 + 8;
+            for (int i = 0; i < values.length; i++) {
+                strings[i] = values[i].getBytes(StandardCharsets.UTF_8);
+                payloadLength += 4 + strings[i].length;
+            }
+            ByteBuffer record = ByteBuffer.allocate(recordHeaderBytes + payloadLength);
+            record.putInt(recordMagic).putInt(payloadLength).putInt(0).putLong(page.storedMillis);
+            for (byte[] bytes : strings) {
+                record.putInt(bytes.length).put(bytes);
+            }
+            record.putLong(page.expiresMillis);
+            CRC32 crc = new CRC32();
+            crc.update(record.array(), recordHeaderBytes, payloadLength);
+            record.putInt(8, (int) crc.getValue()).flip();
+            Segment segment = segments.lastEntry().getValue();
+            if (segment.size > 0 && segment.size + record.limit() > maxSegmentBytes) {
+                segment = addSegment();
+            }
+            long offset = segment.size;
+            while (record.hasRemaining()) {
+                segment.channel().write(record, offset + record.position());
+            }
+            segment.size += record.limit();
+            index(new Location(hash(page.url), offset, page.storedMillis, segment.number, record.limit()));
+            writes++;
+            return totalBytes() > maxBytes || liveCount > maxLiveCount;
+        }
+
+        // Copies the newest records into new segments until they fill compactedFraction of the limits. Called with
+        // writeLock held. Only taking the snapshot of the index and switching to the new segments hold the monitor, so
+        // lookups go on while the records are copied.
+        void compact() throws IOException {
+            log("DiskCache compact " + directory);
+            ArrayList<Location> locations;
+            TreeMap<Integer, Segment> sources;
+            synchronized (this) {
+                locations = new ArrayList<>(liveCount);
+                for (int slot = 0; slot < indexSlots; slot++) {
+                    Location location = readSlot(slot);
+                    if (location.hash != 0) {
+                        locations.add(location);
+                    }
+                }
+                index.putInt(12, 1); // A crash before the end rebuilds the index from all segments.
+                sources = new TreeMap<>(segments);
+            }
+            locations.sort(Comparator.comparingLong((Location location) -> location.time).reversed());
+            int number = sources.lastKey() + 1;
+            Segment target = new Segment(number, new File(directory, segmentFileFormat.formatted(number)));
+            ArrayList<Segment> targets = new ArrayList<>(List.of(target));
+            ArrayList<Location> kept = new ArrayList<>();
+            long keptBytes = 0;
+            for (Location location : locations) {
+                Segment source = sources.get(location.segment);
+                if (keptBytes + location.length > maxBytes * compactedFraction
+                        || kept.size() >= maxLiveCount * compactedFraction) {
+                    break;
+                }
+                if (source == null || !isValidRecord(source, location.offset, location.length)) {
+                    continue;
+                }
+                if (target.size > 0 && target.size + location.length > maxSegmentBytes) {
+                    number++;
+                    target = new Segment(number, new File(directory, segmentFileFormat.formatted(number)));
+                    targets.add(target);
+                }
+                long copied = 0;
+                while (copied < location.length) {
+                    copied += source.channel().transferTo(location.offset + copied, location.length - copied,
+                            target.channel().position(target.size + copied));
+                }
+                kept.add(new Location(location.hash, target.size, location.time, target.number, location.length));
+                target.size += location.length;
+                keptBytes += location.length;
+            }
+            synchronized (this) {
+                clearIndex(true);
+                for (Location location : kept) {
+                    index(location);
+                }
+                index.putInt(12, 0);
+                for (Segment segment : targets) {
+                    segments.put(segment.number, segment);
+                }
+                for (Segment segment : sources.values()) {
+                    segment.close();
+                    segments.remove(segment.number);
+                    if (!segment.file.delete()) {
+                        log("DiskCache could not delete " + segment.file); // Mapped files on Windows, deleted at open.
+                    }
+                }
+                compactions++;
+            }
+        }
+
+        // Waits for the pages still to be saved.
+        void close() throws IOException {
+            writer.shutdown();
+            try {
+                writer.awaitTermination(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            synchronized (this) {
+                for (Segment segment : segments.values()) {
+                    segment.close();
+                }
+                index.force();
+                indexChannel.close();
+            }
+        }
+
+        synchronized String getStatistics() {
+            return diskCacheStatisticsStr.formatted(liveCount, totalBytes() >> shiftBytesToMBytes,
+                    maxBytes >> shiftBytesToMBytes, segments.size(), hits, misses, writes, compactions);
+        }
+    }
+
+    // Runs the page loads instead of the SwingWorker pool, which has only ten threads for the whole application.
+    // Loads wait in a queue until fewer than maxLoads are running and fewer than maxLoadsPerHost for their host, so a
+    // slow host cannot hold up the others. Background loads only start when no other load is waiting and leave one
+    // load free. They count against their own maxBackgroundLoadsPerHost, so the images of a page cannot take the
+    // slots its host has for page loads. Used from the event thread and the load threads.
+    static class PageLoadExecutor {
+        Executor executor; // Tests use Runnable::run to load synchronously.
+        boolean virtualThreads;
+        int maxLoads;
+        int maxLoadsPerHost;
+        int maxBackgroundLoadsPerHost;
+        ArrayDeque<PendingLoad> queue;
+        ArrayDeque<PendingLoad> backgroundQueue;
+        HashMap<String, Integer> runningPerHost;
+        HashMap<String, Integer> backgroundPerHost;
+        int running;
+        int maxQueueDepth;
+        long started;
+        long totalWaitNanos;
+        long maxWaitNanos;
+
+        static class PendingLoad {
+            String host;
+            Runnable task;
+            long queuedNanos;
+
+            PendingLoad(String host, Runnable task) {
+                this.host = host;
+                this.task = task;
+                queuedNanos = System.nanoTime();
+            }
+        }
+
+        PageLoadExecutor(Executor executor, boolean virtualThreads, int maxLoads, int maxLoadsPerHost,
+                int maxBackgroundLoadsPerHost) {
+            this.executor = executor;
+            this.virtualThreads = virtualThreads;
+            this.maxLoads = Math.max(1, maxLoads);
+            this.maxLoadsPerHost = Math.max(1, maxLoadsPerHost);
+            this.maxBackgroundLoadsPerHost = Math.max(1, maxBackgroundLoadsPerHost);
+            queue = new ArrayDeque<>();
+            backgroundQueue = new ArrayDeque<>();
+            runningPerHost = new HashMap<>();
+            backgroundPerHost = new HashMap<>();
+            running = 0;
+        }
+
+        // Virtual threads if the runtime has them (Java 21 and later), otherwise a pool of platform threads.
+        static PageLoadExecutor create(int maxLoads, int maxLoadsPerHost, int maxBackgroundLoadsPerHost) {
+            try {
+                var method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+                return new PageLoadExecutor((ExecutorService) method.invoke(null), true, maxLoads, maxLoadsPerHost,
+                        maxBackgroundLoadsPerHost);
+            } catch (ReflectiveOperationException e) {
+                ExecutorService executor = Executors.newCachedThreadPool(runnable -> {
+                    Thread thread = new Thread(runnable, "page-load");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+                return new PageLoadExecutor(executor, false, maxLoads, maxLoadsPerHost, maxBackgroundLoadsPerHost);
+            }
+        }
+
+        static String hostOf(String url) {
+            if (isFile(url)) {
+                return "";
+            }
+            try {
+                return new URL(url).getHost().toLowerCase();
+            } catch (MalformedURLException e) {
+                return "";
+            }
+        }
+
+        // Returns 0 if the task started, else its position among the waiting loads counting from 1.
+        synchronized int submit(String url, Runnable task) {
+            PendingLoad load = new PendingLoad(hostOf(url), task);
+            queue.add(load);
+            dispatch();
+            maxQueueDepth = Math.max(maxQueueDepth, queue.size());
+            int position = 1;
+            for (PendingLoad waiting : queue) {
+                if (waiting == load) {
+                    return position;
+                }
+                position++;
+            }
+            return 0;
+        }
+
+        synchronized void submitBackground(String url, Runnable task) {
+            backgroundQueue.add(new PendingLoad(hostOf(url), task));
+            dispatch();
+        }
+
+        // Returns false if the task is not waiting, because it has started or was never submitted.
+        synchronized boolean remove(Runnable task) {
+            return queue.removeIf(load -> load.task == task) | backgroundQueue.removeIf(load -> load.task == task);
+        }
+
+        void dispatch() {
+            dispatch(queue, maxLoads, runningPerHost, maxLoadsPerHost);
+            if (queue.isEmpty()) {
+                dispatch(backgroundQueue, Math.max(1, maxLoads - 1), backgroundPerHost, maxBackgroundLoadsPerHost);
+            }
+        }
+
+        // The loads are started after the queue is walked, because an executor that runs them right away dispatches
+        // again when they finish.
+        void dispatch(ArrayDeque<PendingLoad> pending, int limit, HashMap<String, Integer> perHost, int maxPerHost) {
+            ArrayList<PendingLoad> starting = new ArrayList<>();
+            for (var iterator = pending.iterator(); iterator.hasNext() && running < limit; ) {
+                PendingLoad load = iterator.next();
+                int hostRunning = perHost.getOrDefault(load.host, 0);
+                if (hostRunning < maxPerHost) {
+                    iterator.remove();
+                    running++;
+                    perHost.put(load.host, hostRunning + 1);
+                    long waitNanos = System.nanoTime() - load.queuedNanos;
+                    started++;
+                    totalWaitNanos += waitNanos;
+                    maxWaitNanos = Math.max(maxWaitNanos, waitNanos);
+                    starting.add(load);
+                }
+            }
+            for (PendingLoad load : starting) {
+                executor.execute(() -> {
+                    try {
+                        load.task.run();
+                    } finally {
+                        finished(load.host, perHost);
+                    }
+                });
+            }
+        }
+
+        synchronized void finished(String host, HashMap<String, Integer> perHost) {
+            running--;
+            perHost.merge(host, -1, (count, decrement) -> count + decrement == 0 ? null : count + decrement);
+            dispatch();
+        }
+
+        synchronized int getQueueDepth() {
+            return queue.size();
+        }
+
+        synchronized String getStatistics() {
+            return loadExecutorStatisticsStr.formatted(virtualThreads ? "virtual" : "platform", running, queue.size(),
+                    maxQueueDepth, started, started == 0 ? 0.0 : totalWaitNanos * 1e-6 / started, maxWaitNanos * 1e-6);
+        }
+    }
+
+    // The one HTTP client of the browser, shared by page loads, prefetches and images, so that connections are pooled
+    // and kept alive between loads, HTTP/2 is used where the server offers it, and responses may be compressed with
+    // gzip or deflate. The body is handed back as a decoded stream, each read of which fails after readTimeout without
+    // data. HttpClient does not tell which connection carried a response, so reuse is not counted; the statistics keep
+    // what can be observed: requests, HTTP/2 responses, bytes received and saved, errors and 304s. Thread safe.
+    static class Fetcher {
+        HttpClient client;
+        Duration readTimeout;
+        long requests;
+        long http2Responses;
+        long bytesReceived;
+        long bytesDecoded;
+        long errors;
+        long notModified;
+        long defaultFreshMillis;
+        LoadBudget budget;
+
+        static class Response {
+            int status;
+            String url;
+            String contentType;
+            String charset;
+            long contentLength;
+            long totalLength;
+            InputStream body;
+            String etag;
+            String lastModified;
+            long expiresMillis;
+            boolean storable;
+        }
+
+        Fetcher(int connectTimeoutMillis, int readTimeoutMillis) {
+            readTimeout = Duration.ofMillis(readTimeoutMillis);
+            client = HttpClient.newBuilder()
+                    .version(HttpClient.Version.HTTP_2)
+                    .followRedirects(HttpClient.Redirect.NORMAL)
+                    .connectTimeout(Duration.ofMillis(connectTimeoutMillis))
+                    .build();
+            defaultFreshMillis = defaultPageFreshSeconds * 1000L;
+            budget = new LoadBudget((long) defaultMaxPageKilobytes << 10, defaultLoadDeadlineSeconds * 1000L,
+                    defaultMaxPageElements);
+        }
+
+        Response fetch(String url) throws IOException {
+            return fetch(url, null);
+        }
+
+        // Returns the response with a decoded body, which the caller has to close. Throws HttpStatusException for
+        // error statuses. With a cached page the request is conditional, and a 304 response has an empty body.
+        Response fetch(String url, CachedPage cached) throws IOException {
+            URI uri = toUri(url);
+            HttpRequest.Builder builder = HttpRequest.newBuilder(uri)
+                    .timeout(readTimeout)
+                    .header("Accept-Encoding", "gzip, deflate");
+            if (cached != null && cached.etag != null) {
+                builder.header("If-None-Match", cached.etag);
+            }
+            if (cached != null && cached.lastModified != null) {
+                builder.header("If-Modified-Since", cached.lastModified);
+            }
+            HttpResponse<InputStream> response = send(builder.build());
+            Response result = new Response();
+            result.status = response.statusCode();
+            result.url = response.uri().toString();
+            HttpHeaders headers = response.headers();
+            result.contentType = headers.firstValue("Content-Type").orElse("");
+            result.charset = charsetOf(result.contentType);
+            result.contentLength = headers.firstValueAsLong("Content-Length").orElse(-1);
+            result.etag = headers.firstValue("ETag").orElse(null);
+            result.lastModified = headers.firstValue("Last-Modified").orElse(null);
+            setFreshness(result, headers, System.currentTimeMillis());
+            if (result.status == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                response.body().close();
+                finished(0, 0, false);
+                synchronized (this) {
+                    notModified++;
+                }
+                result.body = InputStream.nullInputStream();
+                return result;
+            }
+            CountingStream received = new CountingStream(new ReadTimeoutStream(response.body(), readTimeout));
+            String encoding = headers.firstValue("Content-Encoding").orElse("").trim();
+            InputStream decoded;
+            if (encoding.equalsIgnoreCase("gzip")) {
+                decoded = new GZIPInputStream(received);
+            } else if (encoding.equalsIgnoreCase("deflate")) {
+                decoded = new InflaterInputStream(received);
+            } else {
+                decoded = received;
+            }
+            result.body = new CountingStream(decoded) {
+                boolean closed = false;
+
+                @Override
+                public void close() throws IOException {
+                    super.close();
+                    if (!closed) {
+                        closed = true;
+                        finished(received.count, count, false);
+                    }
+                }
+            };
+            return result;
+        }
+
+        // Requests the bytes of url from first on, without content encoding so that the offsets are those of the
+        // file. last is the last byte wanted, or -1 for all the rest. A server without range support answers 200 with
+        // the whole body. totalLength is the length of the whole file if the server tells it, else -1.
+        Response fetchRange(String url, long first, long last) throws IOException {
+            URI uri = toUri(url);
+            HttpRequest request = HttpRequest.newBuilder(uri)
+                    .timeout(readTimeout)
+                    .header("Range", "bytes=%d-%s".formatted(first, last < 0 ? "" : Long.toString(last)))
+                    .build();
+            HttpResponse<InputStream> response = send(request);
+            Response result = new Response();
+            result.status = response.statusCode();
+            result.url = response.uri().toString();
+            HttpHeaders headers = response.headers();
+            result.contentType = headers.firstValue("Content-Type").orElse("");
+            result.contentLength = headers.firstValueAsLong("Content-Length").orElse(-1);
+            result.totalLength = result.contentLength;
+            if (result.status == HttpURLConnection.HTTP_PARTIAL) {
+                String range = headers.firstValue("Content-Range").orElse("");
+                String total = range.substring(range.lastIndexOf('/') + 1).trim();
+                result.totalLength = total.matches("\\d+") ? Long.parseLong(total) : -1;
+            }
+            result.body = new CountingStream(new ReadTimeoutStream(response.body(), readTimeout)) {
+                boolean closed = false;
+
+                @Override
+                public void close() throws IOException {
+                    super.close();
+                    if (!closed) {
+                        closed = true;
+                        finished(count, count, false);
+                    }
+                }
+            };
+            return result;
+        }
+
+        // Urls typed or built from a search may hold spaces or other characters a URI does not allow. Like jsoup's
+        // encodeUrl, such a url is split by URL and put together again by the multi-argument URI constructor, which
+        // percent-encodes them. A valid URI is kept as it is so that its escapes are not encoded twice.
+        static URI toUri(String url) throws MalformedURLException {
+            try {
+                URI uri;
+                try {
+                    uri = new URI(url);
+                } catch (URISyntaxException e) {
+                    URL parsed = new URL(url);
+                    uri = new URI(parsed.getProtocol(), parsed.getUserInfo(), parsed.getHost(), parsed.getPort(),
+                            parsed.getPath(), parsed.getQuery(), parsed.getRef());
+                }
+                return new URI(uri.toASCIIString());
+            } catch (URISyntaxException e) {
+                throw new MalformedURLException(e.getMessage());
+            }
+        }
+
+        // Sends request and counts it. Error statuses throw HttpStatusException.
+        HttpResponse<InputStream> send(HttpRequest request) throws IOException {
+            started();
+            HttpResponse<InputStream> response;
+            try {
+                response = client.send(request, HttpResponse.BodyHandlers.ofInputStream());
+            } catch (IOException e) {
+                finished(0, 0, true);
+                throw describe(e, request.uri());
+            } catch (InterruptedException e) {
+                finished(0, 0, true);
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException(request.uri().toString());
+            }
+            connected(response.version() == HttpClient.Version.HTTP_2);
+            if (response.statusCode() >= 400) {
+                response.body().close();
+                finished(0, 0, true);
+                throw new HttpStatusException("HTTP error fetching URL", response.statusCode(),
+                        request.uri().toString());
+            }
+            return response;
+        }
+
+        // Fetches and parses an html or xml page like Jsoup.connect(url).get().
+        org.jsoup.nodes.Document fetchDocument(String url) throws IOException {
+            return parse(fetch(url));
+        }
+
+        static org.jsoup.nodes.Document parse(Response response) throws IOException {
+            try (InputStream body = response.body) {
+                if (!isPageType(response.contentType)) {
+                    throw new UnsupportedMimeTypeException("Unhandled content type", response.contentType,
+                            response.url);
+                }
+                return Jsoup.parse(body, response.charset, response.url);
+            }
+        }
+
+        // html, xml, other text, or not given.
+        static boolean isPageType(String contentType) {
+            String type = contentType.toLowerCase();
+            return type.isEmpty() || type.startsWith("text/") || type.contains("xml");
+        }
+
+        byte[] fetchBytes(String url, int maxBytes) throws IOException {
+            try (InputStream body = fetch(url).body) {
+                byte[] data = body.readNBytes(maxBytes + 1);
+                if (data.length > maxBytes) {
+                    throw new IOException("Body of |%s| is larger than %d bytes".formatted(url, maxBytes));
+                }
+                return data;
+            }
+        }
+
+        // Sets when the response stops being fresh: from Cache-Control max-age, else from Expires, else a tenth of the
+        // time since Last-Modified as browsers estimate it, else after defaultFreshMillis. no-cache makes the response
+        // stale at once, and no-store keeps it from being cached.
+        void setFreshness(Response response, HttpHeaders headers, long nowMillis) {
+            response.storable = true;
+            long lifetimeMillis = -1;
+            for (String value : headers.allValues("Cache-Control")) {
+                for (String directive : value.toLowerCase().split(",")) {
+                    directive = directive.trim();
+                    if (directive.equals("no-store")) {
+                        response.storable = false;
+                        lifetimeMillis = 0;
+                    } else if (directive.equals("no-cache")) {
+                        lifetimeMillis = 0;
+                    } else if (directive.startsWith("max-age=") && lifetimeMillis != 0) {
+                        try {
+                            lifetimeMillis = Long.parseLong(directive.substring(8).replace("\"", "")) * 1000;
+                        } catch (NumberFormatException e) {
+                            lifetimeMillis = 0;
+                        }
+                    }
+                }
+            }
+            long dateMillis = headers.firstValue("Date").map(Fetcher::parseDate).orElse(nowMillis);
+            if (lifetimeMillis < 0 && headers.firstValue("Expires").isPresent()) {
+                lifetimeMillis = Math.max(0, parseDate(headers.firstValue("Expires").get()) - dateMillis);
+            }
+            if (lifetimeMillis < 0 && response.lastModified != null) {
+                long modifiedMillis = parseDate(response.lastModified);
+                lifetimeMillis = modifiedMillis > 0 ? Math.max(0, dateMillis - modifiedMillis) / 10 : 0;
+            }
+            if (lifetimeMillis < 0) {
+                lifetimeMillis = defaultFreshMillis;
+            }
+            response.expiresMillis = nowMillis + lifetimeMillis;
+        }
+
+        // Returns 0 for an invalid date, which is in the past.
+        static long parseDate(String date) {
+            try {
+                return ZonedDateTime.parse(date.trim(), DateTimeFormatter.RFC_1123_DATE_TIME).toInstant()
+                        .toEpochMilli();
+            } catch (DateTimeParseException e) {
+                return 0;
+            }
+        }
+
+        static String charsetOf(String contentType) {
+            for (String parameter : contentType.split(";")) {
+                String[] nameValue = parameter.trim().split("=", 2);
+                if (nameValue.length == 2 && nameValue[0].trim().equalsIgnoreCase("charset")) {
+                    String charset = nameValue[1].trim().replace("\"", "");
+                    return Charset.isSupported(charset) ? charset : null;
+                }
+            }
+            return null;
+        }
+
+        // HttpClient throws a ConnectException without a message, and leaves the reason as the type of its cause:
+        // a closed channel when the connection was refused, an unresolved address for an unknown host.
+        static IOException describe(IOException e, URI uri) {
+            if (!(e instanceof ConnectException) || e.getMessage() != null) {
+                return e;
+            }
+            for (Throwable cause = e.getCause(); cause != null; cause = cause.getCause()) {
+                if (cause instanceof UnresolvedAddressException) {
+                    UnknownHostException unknown = new UnknownHostException(uri.getHost());
+                    unknown.initCause(e);
+                    return unknown;
+                } else if (cause instanceof ClosedChannelException) {
+                    ConnectException refused = new ConnectException(connectionRefusedStr);
+                    refused.initCause(e);
+                    return refused;
+                }
+            }
+            return e;
+        }
+
+        synchronized void started() {
+            requests++;
+        }
+
+        synchronized void connected(boolean http2) {
+            if (http2) {
+                http2Responses++;
+            }
+        }
+
+        synchronized void finished(long receivedBytes, long decodedBytes, boolean error) {
+            bytesReceived += receivedBytes;
+            bytesDecoded += decodedBytes;
+            if (error) {
+                errors++;
+            }
+        }
+
+        synchronized String getStatistics() {
+            return fetcherStatisticsStr.formatted(requests, http2Responses, bytesReceived >> 10,
+                    Math.max(0, bytesDecoded - bytesReceived) >> 10, errors, notModified);
+        }
+    }
+
+    // Fails a read that gets no data within timeout, since HttpRequest.timeout only limits the wait for the response
+    // headers. The blocked read is woken by closing the stream from the timer thread, as the stream of HttpClient keeps
+    // waiting when its thread is interrupted.
+    static class ReadTimeoutStream extends FilterInputStream {
+        static final ScheduledThreadPoolExecutor timer = createTimer();
+        long timeoutMillis;
+        volatile boolean timedOut;
+
+        ReadTimeoutStream(InputStream in, Duration timeout) {
+            super(in);
+            timeoutMillis = timeout.toMillis();
+        }
+
+        static ScheduledThreadPoolExecutor createTimer() {
+            ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(1, runnable -> {
+                Thread thread = new Thread(runnable, "read-timeout");
+                thread.setDaemon(true);
+                return thread;
+            });
+            timer.setRemoveOnCancelPolicy(true);
+            return timer;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            ScheduledFuture<?> timeout = timer.schedule(this::timeOut, timeoutMillis, TimeUnit.MILLISECONDS);
+            try {
+                return super.read(buffer, offset, length);
+            } catch (IOException e) {
+                if (timedOut) {
+                    // Not SocketTimeoutException, which jsoup takes as a sign to try the read again.
+                    throw new IOException(readTimedOutStr.formatted(timeoutMillis), e);
+                }
+                throw e;
+            } finally {
+                timeout.cancel(false);
+            }
+        }
+
+        void timeOut() {
+            timedOut = true;
+            try {
+                in.close();
+            } catch (IOException e) {
+                log("ReadTimeoutStream close " + e);
+            }
+        }
+    }
+
+    static class CountingStream extends FilterInputStream {
+        long count;
+
+        CountingStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                count++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            int read = super.read(buffer, offset, length);
+            if (read > 0) {
+                count += read;
+            }
+            return read;
+        }
+    }
+
+    // What a page load got, and what each phase of it cost in nanoseconds: connect until the response headers
+    // arrived, transfer of the body, parse by jsoup, clean by the Cleaner, filtering the images, serializing the html,
+    // building the Swing document off the EDT, and showing it on the EDT. Phases that did not run stay 0. message
+    // replaces the page when there is none, as for an error or a download.
+    static class LoadResult {
+        static final String[] phaseNames = {"total", "connect", "transfer", "parse", "clean", "images", "html",
+                "document", "show"};
+
+        String url;
+        String title;
+        String body;
+        String message;
+        boolean fetched;
+        long startNanos;
+        long totalNanos;
+        long firstContentNanos;
+        long connectNanos;
+        long transferNanos;
+        long parseNanos;
+        long cleanNanos;
+        long imagesNanos;
+        long serializeNanos;
+        long documentNanos;
+        long showNanos;
+        long bytes;
+        int elements;
+        int images;
+
+        LoadResult(String url) {
+            this.url = url;
+            title = "";
+            body = "";
+            message = "";
+            fetched = false;
+            startNanos = System.nanoTime();
+            firstContentNanos = -1;
+        }
+
+        // A page that was already loaded, shown after startNanos.
+        static LoadResult of(String url, String title, String body, long startNanos) {
+            LoadResult result = new LoadResult(url);
+            result.title = title;
+            result.body = body;
+            result.startNanos = startNanos;
+            result.finish();
+            return result;
+        }
+
+        void finish() {
+            totalNanos = System.nanoTime() - startNanos;
+        }
+
+        // In the order of phaseNames.
+        long[] phases() {
+            return new long[]{totalNanos, connectNanos, transferNanos, parseNanos, cleanNanos, imagesNanos,
+                    serializeNanos, documentNanos, showNanos};
+        }
+
+        String seconds() {
+            return String.format("%.2f", totalNanos * 1e-9);
+        }
+
+        String describe() {
+            return phasesStr.formatted(connectNanos / 1_000_000, transferNanos / 1_000_000, bytes >> 10,
+                    parseNanos / 1_000_000, elements, cleanNanos / 1_000_000, imagesNanos / 1_000_000, images,
+                    serializeNanos / 1_000_000, documentNanos / 1_000_000);
+        }
+    }
+
+    // The phases of the last loadSamplesPerHost loads from each of the maxLoadTimingHosts hosts loaded most recently,
+    // and of the last loadSamplesPerHost loads from any host, for percentiles of each phase. A load is recorded once
+    // it is shown. Thread safe.
+    static class LoadTimings {
+        LinkedHashMap<String, HostSamples> hosts;
+        HostSamples all;
+        long recorded;
+        long totalNanos;
+        long showNanos;
+
+        static class HostSamples {
+            long[][] samples;
+            int count;
+            int next;
+
+            HostSamples() {
+                samples = new long[LoadResult.phaseNames.length][loadSamplesPerHost];
+                count = 0;
+                next = 0;
+            }
+
+            void add(long[] phases) {
+                for (int i = 0; i < phases.length; i++) {
+                    samples[i][next] = phases[i];
+                }
+                next = (next + 1) % loadSamplesPerHost;
+                count = Math.min(count + 1, loadSamplesPerHost);
+            }
+
+            // Nearest rank percentile, q from 0 to 1.
+            long percentile(int phase, double q) {
+                long[] sorted = Arrays.copyOf(samples[phase], count);
+                Arrays.sort(sorted);
+                return sorted[Math.max(0, (int) Math.ceil(q * count) - 1)];
+            }
+        }
+
+        LoadTimings() {
+            hosts = new LinkedHashMap<>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, HostSamples> eldest) {
+                    return size() > maxLoadTimingHosts;
+                }
+            };
+            all = new HostSamples();
+            recorded = 0;
+            totalNanos = 0;
+            showNanos = 0;
+        }
+
+        // Local files are under the host "file".
+        static String hostOf(String url) {
+            if (isFile(url)) {
+                return "file";
+            }
+            try {
+                String host = Fetcher.toUri(url).getHost();
+                return host == null ? "" : host;
+            } catch (MalformedURLException e) {
+                return "";
+            }
+        }
+
+        synchronized void record(LoadResult result) {
+            long[] phases = result.phases();
+            hosts.computeIfAbsent(hostOf(result.url), host -> new HostSamples()).add(phases);
+            all.add(phases);
+            recorded++;
+            totalNanos += result.totalNanos;
+            showNanos += result.showNanos;
+        }
+
+        // The nanoseconds of the phase named as in LoadResult.phaseNames at quantile q, or -1 without samples. A null
+        // host is any host.
+        synchronized long percentile(String host, String phase, double q) {
+            HostSamples samples = host == null ? (all.count == 0 ? null : all) : hosts.get(host);
+            int index = Arrays.asList(LoadResult.phaseNames).indexOf(phase);
+            return samples == null || index < 0 ? -1 : samples.percentile(index, q);
+        }
+
+        // An html page with a table of the p50, p95 and p99 milliseconds of each phase by host, most recent first.
+        synchronized String report() {
+            StringBuilder html = new StringBuilder("<html><head><title>").append(loadTimingsStr)
+                    .append("</title></head><body>");
+            List<String> names = new ArrayList<>(hosts.keySet());
+            Collections.reverse(names);
+            for (String host : names) {
+                HostSamples samples = hosts.get(host);
+                html.append("<h3>").append(org.jsoup.nodes.Entities.escape(host)).append(" (")
+                        .append(samples.count).append(" loads)</h3><table><tr><th>ms</th>");
+                for (String phase : LoadResult.phaseNames) {
+                    html.append("<th>").append(phase).append("</th>");
+                }
+                html.append("</tr>");
+                for (double q : new double[]{0.5, 0.95, 0.99}) {
+                    html.append("<tr><td>p").append(Math.round(q * 100)).append("</td>");
+                    for (int i = 0; i < LoadResult.phaseNames.length; i++) {
+                        html.append("<td>").append(samples.percentile(i, q) / 1_000_000).append("</td>");
+                    }
+                    html.append("</tr>");
+                }
+                html.append("</table>");
+            }
+            return html.append("</body></html>").toString();
+        }
+
+        synchronized double getAverageMillis() {
+            return recorded == 0 ? 0 : totalNanos * 1e-6 / recorded;
+        }
+
+        synchronized String getStatistics() {
+            return loadTimingsStatisticsStr.formatted(recorded, hosts.size());
+        }
+    }
+
+    // A page load that broke its LoadBudget. The message is the reason shown in the status.
+    static class BudgetException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        BudgetException(String reason) {
+            super(reason);
+        }
+    }
+
+    // Limits of every page load, so that one huge or slow url cannot take over a worker or the heap: a maximum body
+    // size counted while the body is read, a total deadline after which the body is closed and the loading thread is
+    // interrupted, and a maximum number of elements after parsing. The content type and length are checked from the
+    // headers before the body is read. Loads over budget are counted by reason. Thread safe.
+    static class LoadBudget {
+        long maxBodyBytes;
+        long deadlineMillis;
+        int maxElements;
+        ScheduledExecutorService scheduler;
+        long tooLarge;
+        long tooSlow;
+        long tooManyElements;
+        long notPage;
+
+        // Closes the watched body and interrupts its thread when the load runs past the deadline. The HttpClient
+        // body ignores interrupts, and closing it is what wakes a blocked read, as in ReadTimeoutStream. cancel
+        // closes the body of a load that is no longer wanted. end has to be called on the loading thread, and clears
+        // the interrupt if it came.
+        static class Deadline {
+            LoadBudget budget;
+            Thread thread;
+            ScheduledFuture<?> interrupt;
+            Closeable body;
+            boolean expired;
+            boolean cancelled;
+            boolean ended;
+
+            synchronized void expire() {
+                if (!ended) {
+                    expired = true;
+                    thread.interrupt();
+                    closeBody();
+                }
+            }
+
+            synchronized void cancel() {
+                if (!ended) {
+                    cancelled = true;
+                    closeBody();
+                }
+            }
+
+            // body is closed right away when the load has already expired or been cancelled.
+            synchronized void watch(Closeable body) {
+                this.body = body;
+                if (expired || cancelled) {
+                    closeBody();
+                }
+            }
+
+            void closeBody() {
+                if (body != null) {
+                    try {
+                        body.close();
+                    } catch (IOException e) {
+                        log("closeBody " + e);
+                    }
+                }
+            }
+
+            synchronized boolean isExpired() {
+                return expired;
+            }
+
+            // Called between reads, so that a body that keeps trickling in stops at the deadline.
+            synchronized void check() throws BudgetException {
+                if (expired) {
+                    throw budget.tooSlow();
+                }
+            }
+
+            synchronized void end() {
+                ended = true;
+                interrupt.cancel(false);
+                if (expired) {
+                    Thread.interrupted();
+                }
+            }
+        }
+
+        LoadBudget(long maxBodyBytes, long deadlineMillis, int maxElements) {
+            this.maxBodyBytes = maxBodyBytes;
+            this.deadlineMillis = deadlineMillis;
+            this.maxElements = maxElements;
+            scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "load-deadline");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+
+        Deadline start() {
+            return start(new Deadline());
+        }
+
+        // Starts a deadline made beforehand, so that its load can be cancelled before it runs.
+        Deadline start(Deadline deadline) {
+            deadline.budget = this;
+            deadline.thread = Thread.currentThread();
+            deadline.interrupt = scheduler.schedule(deadline::expire, deadlineMillis, TimeUnit.MILLISECONDS);
+            return deadline;
+        }
+
+        // Called once the response headers are known. Closes the body of a response that is not accepted.
+        void checkResponse(Fetcher.Response response) throws IOException {
+            if (!Fetcher.isPageType(response.contentType)) {
+                response.body.close();
+                throw violation(() -> notPage++, notPageStr.formatted(response.contentType));
+            }
+            if (response.contentLength > maxBodyBytes) {
+                response.body.close();
+            }
+            checkBodyBytes(response.contentLength);
+            response.body = new CountingStream(response.body) {
+                @Override
+                public int read() throws IOException {
+                    int b = super.read();
+                    checkBodyBytes(count);
+                    return b;
+                }
+
+                @Override
+                public int read(byte[] buffer, int offset, int length) throws IOException {
+                    int read = super.read(buffer, offset, length);
+                    checkBodyBytes(count);
+                    return read;
+                }
+            };
+        }
+
+        void checkBodyBytes(long bytes) throws BudgetException {
+            if (bytes > maxBodyBytes) {
+                throw violation(() -> tooLarge++, bodyTooLargeStr.formatted(maxBodyBytes >> 10));
+            }
+        }
+
+        void checkElements(int elements) throws BudgetException {
+            if (elements > maxElements) {
+                throw violation(() -> tooManyElements++, tooManyElementsStr.formatted(maxElements));
+            }
+        }
+
+        BudgetException tooSlow() {
+            return violation(() -> tooSlow++, tooSlowStr.formatted(deadlineMillis / 1000.0));
+        }
+
+        synchronized BudgetException violation(Runnable counter, String reason) {
+            counter.run();
+            return new BudgetException(reason);
+        }
+
+        synchronized String getStatistics() {
+            return loadBudgetStatisticsStr.formatted(tooLarge, tooSlow, tooManyElements, notPage);
+        }
+    }
+
+    // Downloads responses that are not pages to files in directory. The body goes from the connection to the file with
+    // FileChannel.transferFrom, through a small transfer buffer and never a buffer the size of the file. A file of
+    // at least 2 * minSegmentBytes from a server that accepts ranges is fetched by up to maxSegments parallel range
+    // requests. Until it is done the data is in name.part, and name.part.progress records the url, the length, and
+    // how far each segment got, so that a stopped or failed download, or one left by an earlier run, resumes where
+    // it was. Thread safe.
+    static class DownloadManager {
+        Fetcher fetcher;
+        File directory;
+        int maxSegments;
+        long minSegmentBytes;
+        ExecutorService executor;
+        List<Download> downloads;
+        long started;
+        long resumed;
+        long completed;
+        long failed;
+
+        static class Download {
+            enum State { DOWNLOADING, STOPPED, FAILED, DONE }
+
+            String url;
+            File file;
+            File partFile;
+            File progressFile;
+            long length;
+            boolean ranged;
+            long[] starts;
+            long[] positions;
+            long[] ends;
+            State state;
+            String error;
+            boolean stopping;
+            long startNanos;
+            long receivedAtStart;
+            Future<?> task;
+            List<Future<?>> segmentTasks;
+            List<InputStream> bodies;
+
+            Download(String url, File file) {
+                this.url = url;
+                this.file = file;
+                partFile = new File(file.getPath() + partSuffix);
+                progressFile = new File(file.getPath() + partSuffix + progressSuffix);
+                length = -1;
+                ranged = false;
+                starts = new long[0];
+                positions = new long[0];
+                ends = new long[0];
+                state = State.STOPPED;
+                error = "";
+                stopping = false;
+                segmentTasks = new ArrayList<>();
+                bodies = new ArrayList<>();
+            }
+
+            synchronized long received() {
+                long received = 0;
+                for (int i = 0; i < positions.length; i++) {
+                    received += positions[i] - starts[i];
+                }
+                return received;
+            }
+
+            synchronized State getState() {
+                return state;
+            }
+
+            // Bytes per second since the download was last started.
+            synchronized double throughput() {
+                double seconds = (System.nanoTime() - startNanos) * 1e-9;
+                return seconds <= 0 ? 0 : (received() - receivedAtStart) / seconds;
+            }
+
+            synchronized String describe() {
+                long received = received();
+                String progress = length < 0 ? downloadedBytesStr.formatted(received / 1048576.0)
+                        : downloadProgressStr.formatted(100.0 * received / Math.max(1, length), received / 1048576.0,
+                        length / 1048576.0);
+                return switch (state) {
+                    case DOWNLOADING -> downloadingStr.formatted(file.getName(), progress,
+                            throughput() / 1048576.0, positions.length);
+                    case STOPPED -> downloadStoppedStr.formatted(file.getName(), progress);
+                    case FAILED -> downloadFailedStr.formatted(file.getName(), progress, error);
+                    case DONE -> downloadDoneStr.formatted(file.getName(), progress);
+                };
+            }
+
+            // One segment from start to end, exclusive. end is Long.MAX_VALUE while the length is not known.
+            synchronized void restart(long length, boolean ranged, int segments) {
+                this.length = length;
+                this.ranged = ranged;
+                starts = new long[segments];
+                positions = new long[segments];
+                ends = new long[segments];
+                long size = length < 0 ? 0 : (length + segments - 1) / segments;
+                for (int i = 0; i < segments; i++) {
+                    starts[i] = positions[i] = i * size;
+                    ends[i] = length < 0 ? Long.MAX_VALUE : Math.min(length, (i + 1) * size);
+                }
+            }
+
+            // The first segment that is not done, or -1 when all are.
+            synchronized int firstIncomplete() {
+                for (int i = 0; i < positions.length; i++) {
+                    if (positions[i] < ends[i]) {
+                        return i;
+                    }
+                }
+                return positions.length == 0 ? 0 : -1;
+            }
+
+            synchronized boolean isResumable(long length, boolean ranged) {
+                return this.ranged && ranged && length >= 0 && length == this.length;
+            }
+
+            synchronized void saveProgress() throws IOException {
+                StringBuilder progress = new StringBuilder(url).append('\n').append(length).append(' ')
+                        .append(ranged).append('\n');
+                for (int i = 0; i < positions.length; i++) {
+                    progress.append(starts[i]).append(' ').append(positions[i]).append(' ').append(ends[i])
+                            .append('\n');
+                }
+                Files.writeString(progressFile.toPath(), progress);
+            }
+
+            // Reads the progress left by an earlier run. Returns false, and leaves nothing loaded, when the file is
+            // missing, for another url, or damaged.
+            synchronized boolean loadProgress() {
+                try {
+                    List<String> lines = Files.readAllLines(progressFile.toPath());
+                    if (lines.size() < 3 || !lines.get(0).equals(url)) {
+                        return false;
+                    }
+                    String[] header = lines.get(1).split(" ");
+                    int segments = lines.size() - 2;
+                    long[] segmentStarts = new long[segments];
+                    long[] segmentPositions = new long[segments];
+                    long[] segmentEnds = new long[segments];
+                    for (int i = 0; i < segments; i++) {
+                        String[] fields = lines.get(i + 2).split(" ");
+                        segmentStarts[i] = Long.parseLong(fields[0]);
+                        segmentPositions[i] = Long.parseLong(fields[1]);
+                        segmentEnds[i] = Long.parseLong(fields[2]);
+                    }
+                    length = Long.parseLong(header[0]);
+                    ranged = Boolean.parseBoolean(header[1]);
+                    starts = segmentStarts;
+                    positions = segmentPositions;
+                    ends = segmentEnds;
+                    return true;
+                } catch (IOException | RuntimeException e) {
+                    return false;
+                }
+            }
+        }
+
+        DownloadManager(Fetcher fetcher, File directory, int maxSegments, long minSegmentBytes) {
+            this.fetcher = fetcher;
+            this.directory = directory;
+            this.maxSegments = maxSegments;
+            this.minSegmentBytes = minSegmentBytes;
+            executor = Executors.newCachedThreadPool(runnable -> {
+                Thread thread = new Thread(runnable, "download");
+                thread.setDaemon(true);
+                return thread;
+            });
+            downloads = new ArrayList<>();
+        }
+
+        // Starts downloading url, or resumes it when an earlier run left its part file. A url already in the list is
+        // resumed or returned as it is, and a file that another download in the list writes gets a new name.
+        synchronized Download start(String url) {
+            for (Download listed : downloads) {
+                if (listed.url.equals(url) && listed.getState() != Download.State.DONE) {
+                    resume(listed);
+                    return listed;
+                }
+            }
+            String name = fileName(url);
+            Download download = new Download(url, new File(directory, name));
+            if (isListed(download.file) || !download.partFile.exists() || !download.loadProgress()) {
+                for (int i = 1; download.file.exists() || download.partFile.exists() || isListed(download.file);
+                        i++) {
+                    download = new Download(url, new File(directory, numbered(name, i)));
+                }
+            }
+            downloads.add(download);
+            started++;
+            submit(download);
+            return download;
+        }
+
+        static String numbered(String name, int i) {
+            int dot = name.lastIndexOf('.') > 0 ? name.lastIndexOf('.') : name.length();
+            return "%s (%d)%s".formatted(name.substring(0, dot), i, name.substring(dot));
+        }
+
+        // Renames the finished part file. A resumed download may find that a file of its name was written since it
+        // started, which is kept, and the download gets the next free numbered name instead.
+        void moveToFile(Download download) throws IOException {
+            String name = download.file.getName();
+            int i = 1;
+            while (true) {
+                try {
+                    Files.move(download.partFile.toPath(), download.file.toPath());
+                    return;
+                } catch (FileAlreadyExistsException e) {
+                    synchronized (this) {
+                        File numbered = new File(directory, numbered(name, i++));
+                        while (numbered.exists() || isListed(numbered)) {
+                            numbered = new File(directory, numbered(name, i++));
+                        }
+                        synchronized (download) {
+                            download.file = numbered;
+                        }
+                    }
+                }
+            }
+        }
+
+        synchronized boolean isListed(File file) {
+            for (Download listed : downloads) {
+                if (listed.file.equals(file)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        synchronized void resume(Download download) {
+            if (download.getState() == Download.State.STOPPED || download.getState() == Download.State.FAILED) {
+                resumed++;
+                submit(download);
+            }
+        }
+
+        // Stops download keeping its part file, so that it can be resumed. The bodies are closed because interrupts
+        // do not wake a thread blocked reading them.
+        void stop(Download download) {
+            synchronized (download) {
+                if (download.state != Download.State.DOWNLOADING) {
+                    return;
+                }
+                download.stopping = true;
+                download.task.cancel(true);
+                for (Future<?> segment : download.segmentTasks) {
+                    segment.cancel(true);
+                }
+                for (InputStream body : download.bodies) {
+                    try {
+                        body.close();
+                    } catch (IOException e) {
+                        log("DownloadManager stop " + e);
+                    }
+                }
+            }
+        }
+
+        synchronized List<Download> getDownloads() {
+            return new ArrayList<>(downloads);
+        }
+
+        synchronized String getStatistics() {
+            return downloadStatisticsStr.formatted(started, resumed, completed, failed);
+        }
+
+        void submit(Download download) {
+            synchronized (download) {
+                download.state = Download.State.DOWNLOADING;
+                download.error = "";
+                download.stopping = false;
+                download.startNanos = System.nanoTime();
+                download.receivedAtStart = download.received();
+                download.task = executor.submit(() -> run(download));
+            }
+        }
+
+        void run(Download download) {
+            Download.State state = Download.State.DONE;
+            String error = "";
+            try {
+                directory.mkdirs();
+                try (FileChannel channel = FileChannel.open(download.partFile.toPath(), StandardOpenOption.CREATE,
+                        StandardOpenOption.WRITE)) {
+                    transferAll(download, channel);
+                }
+                moveToFile(download);
+                Files.deleteIfExists(download.progressFile.toPath());
+            } catch (IOException e) {
+                synchronized (download) {
+                    state = download.stopping ? Download.State.STOPPED : Download.State.FAILED;
+                }
+                error = e.toString();
+            }
+            synchronized (this) {
+                if (state == Download.State.DONE) {
+                    completed++;
+                } else if (state == Download.State.FAILED) {
+                    failed++;
+                }
+            }
+            synchronized (download) {
+                download.state = state;
+                download.error = error;
+                download.segmentTasks.clear();
+                download.bodies.clear();
+            }
+        }
+
+        // The first request also tells whether the server accepts ranges and how long the file is. If the download
+        // cannot go on from its progress, it starts over in as many segments as the length allows.
+        void transferAll(Download download, FileChannel channel) throws IOException {
+            int probe = download.ranged ? download.firstIncomplete() : 0;
+            if (probe < 0) {
+                return;
+            }
+            long first = download.ranged ? download.positions[probe] : 0;
+            Fetcher.Response response = fetcher.fetchRange(download.url, first, -1);
+            boolean ranged = response.status == HttpURLConnection.HTTP_PARTIAL;
+            long length = ranged ? response.totalLength : response.contentLength;
+            if (!download.isResumable(length, ranged)) {
+                probe = 0;
+                if (first != 0) {
+                    response.body.close();
+                    response = fetcher.fetchRange(download.url, 0, -1);
+                    ranged = response.status == HttpURLConnection.HTTP_PARTIAL;
+                    length = ranged ? response.totalLength : response.contentLength;
+                }
+                int segments = !ranged || length < 0 ? 1
+                        : (int) Math.max(1, Math.min(maxSegments, length / minSegmentBytes));
+                download.restart(length, ranged, segments);
+                channel.truncate(0);
+            }
+            // transferFrom writes nothing past the end of the file, so the ranges after the first need it full size.
+            if (length > 0 && channel.size() < length) {
+                channel.write(ByteBuffer.allocate(1), length - 1);
+            }
+            download.saveProgress();
+            List<Future<?>> segmentTasks = new ArrayList<>();
+            synchronized (download) {
+                for (int i = 0; i < download.positions.length; i++) {
+                    if (i != probe && download.positions[i] < download.ends[i]) {
+                        int segment = i;
+                        long from = download.positions[i];
+                        long last = download.ends[i] - 1;
+                        segmentTasks.add(executor.submit(() -> {
+                            transfer(download, segment, fetcher.fetchRange(download.url, from, last), channel);
+                            return null;
+                        }));
+                    }
+                }
+                download.segmentTasks = segmentTasks;
+            }
+            try {
+                transfer(download, probe, response, channel);
+                for (Future<?> segment : segmentTasks) {
+                    segment.get();
+                }
+            } catch (InterruptedException | CancellationException e) {
+                throw new InterruptedIOException(download.url);
+            } catch (ExecutionException e) {
+                throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+            } finally {
+                for (Future<?> segment : segmentTasks) {
+                    segment.cancel(true);
+                }
+            }
+        }
+
+        // Writes the segment from response to the file, and records the progress after each transferChunkBytes.
+        void transfer(Download download, int segment, Fetcher.Response response, FileChannel channel)
+                throws IOException {
+            synchronized (download) {
+                download.bodies.add(response.body);
+            }
+            try (ReadableByteChannel source = Channels.newChannel(response.body)) {
+                while (true) {
+                    long position;
+                    long end;
+                    synchronized (download) {
+                        if (download.stopping) {
+                            throw new InterruptedIOException(download.url);
+                        }
+                        position = download.positions[segment];
+                        end = download.ends[segment];
+                    }
+                    if (position >= end) {
+                        return;
+                    }
+                    long transferred = channel.transferFrom(source, position, Math.min(transferChunkBytes,
+                            end - position));
+                    synchronized (download) {
+                        if (transferred == 0 && end != Long.MAX_VALUE) {
+                            throw new EOFException(downloadEndedStr.formatted(position, end));
+                        } else if (transferred == 0) {
+                            download.ends[segment] = position;
+                            download.length = position;
+                        } else {
+                            download.positions[segment] += transferred;
+                        }
+                        download.saveProgress();
+                    }
+                }
+            }
+        }
+
+        // The last part of the url path with only safe characters, or downloadFileName.
+        static String fileName(String url) {
+            String path;
+            try {
+                path = Fetcher.toUri(url).getPath();
+            } catch (MalformedURLException e) {
+                path = null;
+            }
+            String name = path == null ? "" : path.substring(path.lastIndexOf('/') + 1);
+            name = name.replaceAll("[^\\w.\\- ()]", "_").replaceAll("^\\.+", "");
+            return name.isEmpty() ? downloadFileName : name;
+        }
+    }
+
+    // Loads hovered links in the background so that clicking them is fast. The pages are parked in their own small
+    // cache and moved to the page cache when the link is followed within prefetchLifetimeMillis. Budgets limit the
+    // number of running prefetches, the parked bytes, and how often a host is prefetched from.
+    static class Prefetcher {
+        PageCache pageCache;
+        PageCache parked;
+        PageLoadExecutor loadExecutor;
+        Fetcher fetcher;
+        int maxLoads;
+        long hostIntervalMillis;
+        LinkedHashMap<String, Long> lastHostMillis;
+        HashSet<String> loading;
+        long requested;
+        long started;
+        long skipped;
+        long completed;
+        long failed;
+        long used;
+        long expired;
+
+        Prefetcher(PageCache pageCache, PageLoadExecutor loadExecutor, Fetcher fetcher, int maxLoads, long maxBytes,
+                   long hostIntervalMillis) {
+            this.pageCache = pageCache;
+            parked = new PageCache(maxBytes);
+            this.loadExecutor = loadExecutor;
+            this.fetcher = fetcher;
+            this.maxLoads = maxLoads;
+            this.hostIntervalMillis = hostIntervalMillis;
+            // Only the recently used hosts, as any other was prefetched from too long ago to be held back.
+            lastHostMillis = new LinkedHashMap<>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+                    return size() > maxPrefetchHosts;
+                }
+            };
+            loading = new HashSet<>();
+        }
+
+        synchronized void prefetch(String url) {
+            requested++;
+            if (isFile(url) || loading.contains(url) || parked.containsInMemory(url)
+                    || pageCache.containsInMemory(url)) {
+                return;
+            }
+            String host = PageLoadExecutor.hostOf(url);
+            long now = System.currentTimeMillis();
+            Long lastMillis = lastHostMillis.get(host);
+            if (loading.size() >= maxLoads || (lastMillis != null && now - lastMillis < hostIntervalMillis)) {
+                skipped++;
+                return;
+            }
+            log("prefetch " + url);
+            lastHostMillis.put(host, now);
+            loading.add(url);
+            started++;
+            loadExecutor.submitBackground(url, () -> {
+                boolean loaded = false;
+                try {
+                    loaded = !HtmlTab.updaterDoInBackground(fetcher, url, parked::put).body.isEmpty();
+                } finally {
+                    finished(url, loaded);
+                }
+            });
+        }
+
+        synchronized void finished(String url, boolean loaded) {
+            loading.remove(url);
+            if (loaded) {
+                completed++;
+            } else {
+                failed++;
+            }
+        }
+
+        // Returns the parked page for url and moves it to the page cache, or null.
+        CachedPage take(String url) {
+            CachedPage page;
+            synchronized (this) {
+                page = parked.remove(url);
+                if (page == null) {
+                    return null;
+                }
+                if (System.currentTimeMillis() - page.storedMillis > prefetchLifetimeMillis) {
+                    expired++;
+                    return null;
+                }
+                used++;
+            }
+            pageCache.putInMemory(page);
+            return page;
+        }
+
+        synchronized String getStatistics() {
+            return prefetchStatisticsStr.formatted(requested, started, skipped, completed, failed, used, expired,
+                    completed == 0 ? 0.0 : 100.0 * used / completed);
+        }
+    }
+
+    // Discards the rendered document of tabs that have not been selected for idleMillis, and of the least recently
+    // selected tabs while the heap is above heapPercent of the maximum. The url, title, history and view position
+    // stay in the tab, and the page is shown again from the page cache, or reloaded, when the tab is selected.
+    // A value of 0 turns the corresponding rule off. The heap is measured as it was after the last collection, since
+    // the used heap at any other time also counts garbage. The checks run only when hibernateTabs is set.
+    static class TabHibernator {
+        int heapPercent;
+        long idleMillis;
+        long hibernations;
+        long restores;
+        long reclaimedBytes;
+
+        TabHibernator(int heapPercent, long idleMillis) {
+            this.heapPercent = heapPercent;
+            this.idleMillis = idleMillis;
+        }
+
+        void check(List<HtmlTab> tabs, int iCurrentTab) {
+            long excessBytes = heapUsedAfterCollection() - Runtime.getRuntime().maxMemory() / 100 * heapPercent;
+            check(tabs, iCurrentTab, heapPercent > 0 ? excessBytes : 0);
+        }
+
+        // The sum over the heap pools of their use after their last collection, 0 for pools not collected yet.
+        static long heapUsedAfterCollection() {
+            long used = 0;
+            for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+                MemoryUsage usage = pool.getType() == MemoryType.HEAP ? pool.getCollectionUsage() : null;
+                if (usage != null) {
+                    used += usage.getUsed();
+                }
+            }
+            return used;
+        }
+
+        // Hibernates idle tabs, then the least recently selected tabs until about excessBytes have been reclaimed.
+        void check(List<HtmlTab> tabs, int iCurrentTab, long excessBytes) {
+            ArrayList<HtmlTab> candidates = new ArrayList<>();
+            long now = System.currentTimeMillis();
+            for (int i = 0; i < tabs.size(); i++) {
+                HtmlTab tab = tabs.get(i);
+                if (i == iCurrentTab || !tab.canHibernate()) {
+                    continue;
+                }
+                if (idleMillis > 0 && now - tab.lastActiveMillis >= idleMillis) {
+                    hibernate(tab);
+                } else {
+                    candidates.add(tab);
+                }
+            }
+            candidates.sort(Comparator.comparingLong(tab -> tab.lastActiveMillis));
+            for (int i = 0; i < candidates.size() && excessBytes > 0; i++) {
+                excessBytes -= hibernate(candidates.get(i));
+            }
+        }
+
+        long hibernate(HtmlTab tab) {
+            long bytes = tab.hibernate();
+            hibernations++;
+            reclaimedBytes += bytes;
+            return bytes;
+        }
+
+        void restore(HtmlTab tab, int index) {
+            if (tab.hibernated) {
+                restores++;
+                tab.restore(index);
+            }
+        }
+
+        String getStatistics(List<HtmlTab> tabs) {
+            int hibernated = 0;
+            for (HtmlTab tab : tabs) {
+                if (tab.hibernated) {
+                    hibernated++;
+                }
+            }
+            return hibernationStatisticsStr.formatted(hibernated, hibernations, restores, reclaimedBytes >> 10);
+        }
+    }
+
+    // The attributes and operations of BrowserMetrics, public as JMX requires of a standard MBean interface.
+    public interface BrowserMetricsMBean {
+        int getTabs();
+
+        int getClosedTabs();
+
+        int getLoadsInFlight();
+
+        int getLoadsQueued();
+
+        long getLoadsTimed();
+
+        double getAverageLoadMillis();
+
+        double getLoadMillisP50();
+
+        double getLoadMillisP95();
+
+        double getLoadMillisP99();
+
+        long getBytesReceived();
+
+        long getBytesDecoded();
+
+        double getEdtShowMillisTotal();
+
+        double getEdtShowMillisP95();
+
+        long getEdtLagMillis();
+
+        long getHeapUsedMegabytes();
+
+        long getPageCacheHits();
+
+        long getPageCacheMisses();
+
+        long getPageCacheKilobytes();
+
+        long getImageCacheHits();
+
+        long getImageCacheRequests();
+
+        long getImageCacheKilobytes();
+
+        String[] getStatistics();
+
+        void clearCaches();
+
+        int hibernateTabs();
+    }
+
+    // Live performance metrics of a browser for JConsole or Java Mission Control. JMX calls come on JMX threads, so
+    // attributes of the thread safe services are read directly, and those of Swing state come from a snapshot that
+    // refresh takes on the EDT every metricsRefreshMillis. Operations run on the EDT, and the JMX thread waits.
+    static class BrowserMetrics implements BrowserMetricsMBean {
+        BasicBrowser browser;
+        volatile int tabs;
+        volatile int closedTabs;
+        volatile int loadsInFlight;
+        volatile int loadsQueued;
+        volatile long edtLagMillis;
+        volatile String[] edtStatistics;
+        long lastRefreshNanos;
+
+        BrowserMetrics(BasicBrowser browser) {
+            this.browser = browser;
+            edtStatistics = new String[0];
+            lastRefreshNanos = System.nanoTime();
+        }
+
+        // Called by a Timer on the EDT. The lag is how much later than metricsRefreshMillis the EDT got to it.
+        void refresh() {
+            long now = System.nanoTime();
+            edtLagMillis = Math.max(0, (now - lastRefreshNanos) / 1_000_000 - metricsRefreshMillis);
+            lastRefreshNanos = now;
+            snapshot();
+        }
+
+        void snapshot() {
+            tabs = browser.tabs.size();
+            closedTabs = browser.closedTabs.size();
+            int inFlight = 0;
+            int queued = 0;
+            for (HtmlTab tab : browser.tabs) {
+                SwingWorker<LoadResult, Document> worker = tab.worker;
+                if (worker != null && worker.getState() == SwingWorker.StateValue.PENDING) {
+                    queued++;
+                } else if (worker != null) {
+                    inFlight++;
+                }
+            }
+            loadsInFlight = inFlight;
+            loadsQueued = queued;
+            edtStatistics = new String[]{browser.backForwardCache.getStatistics(),
+                    browser.hibernator.getStatistics(browser.tabs), browser.suggestions.getStatistics()};
+        }
+
+        // Runs task on the EDT and waits for its result, for at most metricsEdtTimeoutMillis so that a busy or blocked
+        // EDT does not hang the JMX client. A task that has not started by then is not run.
+        static <T> T onEdt(Callable<T> task) {
+            FutureTask<T> future = new FutureTask<>(task);
+            if (SwingUtilities.isEventDispatchThread()) {
+                future.run();
+            } else {
+                SwingUtilities.invokeLater(future);
+            }
+            try {
+                return future.get(metricsEdtTimeoutMillis, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException(e);
+            } catch (ExecutionException e) {
+                throw new IllegalStateException(e.getCause());
+            } catch (TimeoutException e) {
+                future.cancel(false);
+                throw new IllegalStateException(edtTimeoutStr.formatted(metricsEdtTimeoutMillis));
+            }
+        }
+
+        @Override
+        public int getTabs() {
+            return tabs;
+        }
+
+        @Override
+        public int getClosedTabs() {
+            return closedTabs;
+        }
+
+        @Override
+        public int getLoadsInFlight() {
+            return loadsInFlight;
+        }
+
+        @Override
+        public int getLoadsQueued() {
+            return loadsQueued;
+        }
+
+        @Override
+        public long getLoadsTimed() {
+            synchronized (browser.loadTimings) {
+                return browser.loadTimings.recorded;
+            }
+        }
+
+        @Override
+        public double getAverageLoadMillis() {
+            return browser.loadTimings.getAverageMillis();
+        }
+
+        double loadMillis(String phase, double q) {
+            return Math.max(0, browser.loadTimings.percentile(null, phase, q)) * 1e-6;
+        }
+
+        @Override
+        public double getLoadMillisP50() {
+            return loadMillis("total", 0.5);
+        }
+
+        @Override
+        public double getLoadMillisP95() {
+            return loadMillis("total", 0.95);
+        }
+
+        @Override
+        public double getLoadMillisP99() {
+            return loadMillis("total", 0.99);
+        }
+
+        @Override
+        public long getBytesReceived() {
+            synchronized (browser.fetcher) {
+                return browser.fetcher.bytesReceived;
+            }
+        }
+
+        @Override
+        public long getBytesDecoded() {
+            synchronized (browser.fetcher) {
+                return browser.fetcher.bytesDecoded;
+            }
+        }
+
+        @Override
+        public double getEdtShowMillisTotal() {
+            synchronized (browser.loadTimings) {
+                return browser.loadTimings.showNanos * 1e-6;
+            }
+        }
+
+        @Override
+        public double getEdtShowMillisP95() {
+            return loadMillis("show", 0.95);
+        }
+
+        @Override
+        public long getEdtLagMillis() {
+            return edtLagMillis;
+        }
+
+        // Computed like memoryStr in the close tab status.
+        @Override
+        public long getHeapUsedMegabytes() {
+            Runtime runtime = Runtime.getRuntime();
+            return (runtime.totalMemory() >> shiftBytesToMBytes) - (runtime.freeMemory() >> shiftBytesToMBytes);
+        }
+
+        @Override
+        public long getPageCacheHits() {
+            synchronized (browser.pageCache) {
+                return browser.pageCache.hits;
+            }
+        }
+
+        @Override
+        public long getPageCacheMisses() {
+            synchronized (browser.pageCache) {
+                return browser.pageCache.misses;
+            }
+        }
+
+        @Override
+        public long getPageCacheKilobytes() {
+            synchronized (browser.pageCache) {
+                return browser.pageCache.bytes >> 10;
+            }
+        }
+
+        @Override
+        public long getImageCacheHits() {
+            synchronized (browser.imageService) {
+                return browser.imageService.hits;
+            }
+        }
+
+        @Override
+        public long getImageCacheRequests() {
+            synchronized (browser.imageService) {
+                return browser.imageService.requests;
+            }
+        }
+
+        @Override
+        public long getImageCacheKilobytes() {
+            synchronized (browser.imageService) {
+                return browser.imageService.bytes >> 10;
+            }
+        }
+
+        // The statistics of every service, those of Swing state as of the last refresh.
+        @Override
+        public String[] getStatistics() {
+            ArrayList<String> statistics = new ArrayList<>(List.of(browser.pageCache.getStatistics(),
+                    browser.imageService.getStatistics(), browser.fetcher.getStatistics(),
+                    browser.fetcher.budget.getStatistics(), browser.loadExecutor.getStatistics(),
+                    browser.loadTimings.getStatistics(), browser.downloads.getStatistics()));
+            if (browser.pageCache.diskCache != null) {
+                statistics.add(browser.pageCache.diskCache.getStatistics());
+            }
+            if (browser.prefetcher != null) {
+                statistics.add(browser.prefetcher.getStatistics());
+            }
+            statistics.addAll(List.of(edtStatistics));
+            return statistics.toArray(new String[0]);
+        }
+
+        // Empties the memory caches of pages, images and back-forward documents. The disk cache is kept.
+        @Override
+        public void clearCaches() {
+            browser.pageCache.clear();
+            browser.imageService.clear();
+            onEdt(() -> {
+                browser.backForwardCache.clear();
+                return null;
+            });
+        }
+
+        // Hibernates every tab but the selected one that can be, and returns how many were.
+        @Override
+        public int hibernateTabs() {
+            return onEdt(() -> {
+                long before = browser.hibernator.hibernations;
+                browser.hibernator.check(browser.tabs, browser.iCurrentTab, Long.MAX_VALUE);
+                snapshot();
+                return (int) (browser.hibernator.hibernations - before);
+            });
+        }
+    }
+
+    // What is left of a closed tab: its history, title and view position, and optionally the page it showed,
+    // compressed off the EDT. The Swing components are created again when the tab is reopened.
+    static class ClosedTab {
+        String[] history;
+        int iHistory;
+        String title;
+        Point position;
+        CompletableFuture<byte[]> compressedPage;
+
+        ClosedTab(String[] history, int iHistory, String title, Point position, String page) {
+            this.history = history;
+            this.iHistory = iHistory;
+            this.title = title;
+            this.position = position;
+            compressedPage = page == null ? null : CompletableFuture.supplyAsync(() -> compress(page));
+        }
+
+        String getPage() {
+            return compressedPage == null ? null : decompress(compressedPage.join());
+        }
+
+        static byte[] compress(String text) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            try (GZIPOutputStream out = new GZIPOutputStream(bytes)) {
+                out.write(text.getBytes(StandardCharsets.UTF_8));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e); // Not thrown by in-memory streams.
+            }
+            return bytes.toByteArray();
+        }
+
+        static String decompress(byte[] compressed) {
+            try (GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(compressed))) {
+                return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e); // Not thrown by in-memory streams.
+            }
+        }
+    }
+
+    // Decoded images shared by all tabs, so that an image shown on many pages is fetched and decoded once. Images are
+    // fetched and decoded as background loads on the page load executor, scaled down to the size they are shown at,
+    // and kept in an LRU cache of at most maxBytes keyed by url and size. Requests for an image that is already being
+    // loaded wait for that load, and a url is fetched and decoded once for all the sizes requested while it loads.
+    // Listeners are called on the EDT, with null if the image could not be loaded.
+    static class ImageService {
+        PageLoadExecutor loadExecutor;
+        Fetcher fetcher;
+        long maxBytes;
+        long bytes;
+        LinkedHashMap<String, BufferedImage> images;
+        HashMap<String, ArrayList<Consumer<BufferedImage>>> loading;
+        HashMap<String, Fetch> fetching;
+        HashSet<String> failed;
+        long requests;
+        long hits;
+        long fetches;
+        long failures;
+        long evictions;
+        long cancels;
+
+        // The load of a url, and the sizes by key that are still to be scaled from it.
+        static class Fetch {
+            Runnable task;
+            LinkedHashMap<String, int[]> sizes = new LinkedHashMap<>();
+        }
+
+        ImageService(PageLoadExecutor loadExecutor, Fetcher fetcher, long maxBytes) {
+            this.loadExecutor = loadExecutor;
+            this.fetcher = fetcher;
+            this.maxBytes = maxBytes;
+            images = new LinkedHashMap<>(16, 0.75f, true);
+            loading = new HashMap<>();
+            fetching = new HashMap<>();
+            failed = new HashSet<>();
+        }
+
+        static String keyOf(String url, int width, int height) {
+            return width + "x" + height + " " + url;
+        }
+
+        // Returns the image if it is cached, otherwise starts loading it unless it failed before, and returns null.
+        // width and height are the size the image is shown at, 0 if not given.
+        synchronized BufferedImage request(String url, int width, int height, Consumer<BufferedImage> listener) {
+            requests++;
+            String key = keyOf(url, width, height);
+            BufferedImage image = images.get(key);
+            if (image != null) {
+                hits++;
+                return image;
+            }
+            if (failed.contains(url)) {
+                SwingUtilities.invokeLater(() -> listener.accept(null));
+                return null;
+            }
+            ArrayList<Consumer<BufferedImage>> listeners = loading.get(key);
+            if (listeners != null) {
+                listeners.add(listener);
+                return null;
+            }
+            listeners = new ArrayList<>();
+            listeners.add(listener);
+            loading.put(key, listeners);
+            Fetch fetch = fetching.get(url);
+            if (fetch == null) {
+                fetch = new Fetch();
+                fetch.task = () -> fetched(url, load(url));
+                fetching.put(url, fetch);
+                fetches++;
+                loadExecutor.submitBackground(url, fetch.task);
+            }
+            fetch.sizes.put(key, new int[]{width, height});
+            return null;
+        }
+
+        // Stops calling listener for the image. When nothing else waits for it, a load that has not started is
+        // dropped, while a started one still fills the cache.
+        synchronized void cancel(String url, int width, int height, Consumer<BufferedImage> listener) {
+            String key = keyOf(url, width, height);
+            ArrayList<Consumer<BufferedImage>> listeners = loading.get(key);
+            Fetch fetch = fetching.get(url);
+            if (listeners != null && listeners.remove(listener) && listeners.isEmpty() && fetch != null
+                    && fetch.sizes.size() == 1 && loadExecutor.remove(fetch.task)) {
+                loading.remove(key);
+                fetching.remove(url);
+                fetches--;
+                cancels++;
+            }
+        }
+
+        // Drops the decoded images and forgets which urls failed. Images being loaded still arrive.
+        synchronized void clear() {
+            images.clear();
+            bytes = 0;
+            failed.clear();
+        }
+
+        // Scales the decoded image to each size waiting for it, outside the lock since scaling takes long, until no
+        // more sizes were requested meanwhile.
+        void fetched(String url, BufferedImage decoded) {
+            while (true) {
+                LinkedHashMap<String, int[]> sizes;
+                synchronized (this) {
+                    Fetch fetch = fetching.get(url);
+                    if (decoded == null) {
+                        fetching.remove(url);
+                        failures++;
+                        if (failed.size() >= maxFailedUrls) {
+                            failed.clear();
+                        }
+                        failed.add(url);
+                        fetch.sizes.keySet().forEach(key -> loaded(key, null));
+                        return;
+                    } else if (fetch.sizes.isEmpty()) {
+                        fetching.remove(url);
+                        return;
+                    }
+                    sizes = new LinkedHashMap<>(fetch.sizes);
+                    fetch.sizes.clear();
+                }
+                sizes.forEach((key, size) -> loaded(key, scale(decoded, size[0], size[1])));
+            }
+        }
+
+        synchronized void loaded(String key, BufferedImage image) {
+            ArrayList<Consumer<BufferedImage>> listeners = loading.remove(key);
+            if (image != null) {
+                long imageBytes = 4L * image.getWidth() * image.getHeight();
+                if (imageBytes <= maxBytes) {
+                    images.put(key, image);
+                    bytes += imageBytes;
+                    for (var iterator = images.values().iterator(); bytes > maxBytes; ) {
+                        BufferedImage eldest = iterator.next();
+                        bytes -= 4L * eldest.getWidth() * eldest.getHeight();
+                        iterator.remove();
+                        evictions++;
+                    }
+                }
+            }
+            SwingUtilities.invokeLater(() -> listeners.forEach(listener -> listener.accept(image)));
+        }
+
+        // Fetches and decodes the image, null if it cannot be.
+        BufferedImage load(String url) {
+            try {
+                byte[] data;
+                if (isFile(url)) {
+                    data = Files.readAllBytes(new File(url).toPath());
+                } else if (url.startsWith("file:")) {
+                    try (InputStream stream = new URL(url).openStream()) {
+                        data = stream.readAllBytes();
+                    }
+                } else {
+                    data = fetcher.fetchBytes(url, maxImageBytes);
+                }
+                BufferedImage image = ImageIO.read(new ByteArrayInputStream(data));
+                if (image == null) {
+                    log("ImageService unknown image format " + url);
+                    return null;
+                }
+                return image;
+            } catch (IOException | RuntimeException e) {
+                log("ImageService " + url + " " + e);
+                return null;
+            }
+        }
+
+        // Scales image down to width and height. A missing size follows the aspect ratio, and without either the image
+        // is limited to maxImageDimension pixels wide and high.
+        static BufferedImage scale(BufferedImage image, int width, int height) {
+            int imageWidth = image.getWidth();
+            int imageHeight = image.getHeight();
+            if (width <= 0 && height <= 0) {
+                double factor = Math.min(1.0, (double) maxImageDimension / Math.max(imageWidth, imageHeight));
+                width = (int) Math.round(imageWidth * factor);
+                height = (int) Math.round(imageHeight * factor);
+            } else if (width <= 0) {
+                width = (int) Math.round((double) imageWidth * height / imageHeight);
+            } else if (height <= 0) {
+                height = (int) Math.round((double) imageHeight * width / imageWidth);
+            }
+            width = Math.max(1, width);
+            height = Math.max(1, height);
+            if (width >= imageWidth && height >= imageHeight) {
+                return image; // Scaled up when painted.
+            }
+            BufferedImage scaled = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+            Graphics2D graphics = scaled.createGraphics();
+            graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            graphics.drawImage(image, 0, 0, width, height, null);
+            graphics.dispose();
+            return scaled;
+        }
+
+        synchronized String getStatistics() {
+            return imageStatisticsStr.formatted(images.size(), bytes >> 10, maxBytes >> 10, requests, hits, fetches,
+                    failures, evictions, cancels);
+        }
+    }
+
+    // Shows an img element with an image from the ImageService instead of loading it per document like ImageView.
+    // Until the image is loaded a placeholder of the size given by the width and height attributes is painted, then
+    // the view asks for a new layout if its size changed. A lazy view waits for its tab to call request.
+    static class SharedImageView extends View {
+        ImageService images;
+        String url;
+        int width;
+        int height;
+        BufferedImage image;
+        boolean failed;
+        boolean lazy;
+        boolean requested;
+        Consumer<BufferedImage> listener;
+
+        SharedImageView(Element element, ImageService images) {
+            super(element);
+            this.images = images;
+            AttributeSet attributes = element.getAttributes();
+            url = (String) attributes.getAttribute(HTML.Attribute.SRC);
+            width = lengthAttribute(attributes, HTML.Attribute.WIDTH);
+            height = lengthAttribute(attributes, HTML.Attribute.HEIGHT);
+            failed = url == null || url.isEmpty();
+            listener = this::loaded;
+        }
+
+        static int lengthAttribute(AttributeSet attributes, HTML.Attribute name) {
+            Object value = attributes.getAttribute(name);
+            try {
+                return value == null ? 0 : Math.max(0, Integer.parseInt(value.toString().trim()));
+            } catch (NumberFormatException e) {
+                return 0; // Percentages and other units are ignored.
+            }
+        }
+
+        @Override
+        public void setParent(View parent) {
+            super.setParent(parent);
+            if (parent != null && !lazy) {
+                request();
+            }
+        }
+
+        boolean isWaiting() {
+            return image == null && !failed;
+        }
+
+        void request() {
+            if (!requested && isWaiting()) {
+                requested = true;
+                image = images.request(url, width, height, listener);
+            }
+        }
+
+        void cancel() {
+            if (requested && isWaiting()) {
+                requested = false;
+                images.cancel(url, width, height, listener);
+            }
+        }
+
+        void loaded(BufferedImage loadedImage) {
+            int oldWidth = (int) getPreferredSpan(X_AXIS);
+            int oldHeight = (int) getPreferredSpan(Y_AXIS);
+            image = loadedImage;
+            failed = loadedImage == null;
+            if (getParent() == null) {
+                return;
+            }
+            if (oldWidth != (int) getPreferredSpan(X_AXIS) || oldHeight != (int) getPreferredSpan(Y_AXIS)) {
+                AbstractDocument document = (AbstractDocument) getDocument();
+                document.readLock();
+                try {
+                    preferenceChanged(null, true, true);
+                } finally {
+                    document.readUnlock();
+                }
+            }
+            Container container = getContainer();
+            if (container != null) {
+                container.repaint();
+            }
+        }
+
+        @Override
+        public float getPreferredSpan(int axis) {
+            if (axis == X_AXIS) {
+                return width > 0 ? width : image != null ? image.getWidth() : imagePlaceholderSize;
+            }
+            return height > 0 ? height : image != null ? image.getHeight() : imagePlaceholderSize;
+        }
+
+        @Override
+        public float getAlignment(int axis) {
+            return axis == Y_AXIS ? 1.0f : super.getAlignment(axis);
+        }
+
+        @Override
+        public void paint(Graphics g, Shape allocation) {
+            Rectangle bounds = allocation.getBounds();
+            if (image != null) {
+                g.drawImage(image, bounds.x, bounds.y, bounds.width, bounds.height, null);
+            } else {
+                g.setColor(failed ? Color.GRAY : Color.LIGHT_GRAY);
+                g.drawRect(bounds.x, bounds.y, bounds.width - 1, bounds.height - 1);
+            }
+        }
+
+        @Override
+        public Shape modelToView(int pos, Shape allocation, Position.Bias bias) {
+            Rectangle bounds = allocation.getBounds();
+            if (pos >= getEndOffset()) {
+                bounds.x += bounds.width;
+            }
+            bounds.width = 0;
+            return bounds;
+        }
+
+        @Override
+        public int viewToModel(float x, float y, Shape allocation, Position.Bias[] bias) {
+            Rectangle bounds = allocation.getBounds();
+            bias[0] = Position.Bias.Forward;
+            return x < bounds.x + bounds.width / 2.0f ? getStartOffset() : getEndOffset();
+        }
+    }
+
+    // An HTMLEditorKit whose img elements use the browser's ImageService. With lazyViews, the image views are
+    // collected there instead of requesting their images.
+    static class BrowserEditorKit extends HTMLEditorKit {
+        private static final long serialVersionUID = 1L;
+        ViewFactory viewFactory;
+        ArrayList<SharedImageView> lazyViews;
+
+        BrowserEditorKit(ImageService images) {
+            viewFactory = new HTMLFactory() {
+                @Override
+                public View create(Element element) {
+                    Object name = element.getAttributes().getAttribute(StyleConstants.NameAttribute);
+                    if (images != null && name == HTML.Tag.IMG) {
+                        SharedImageView view = new SharedImageView(element, images);
+                        if (lazyViews != null) {
+                            view.lazy = true;
+                            lazyViews.add(view);
+                        }
+                        return view;
+                    }
+                    return super.create(element);
+                }
+            };
+        }
+
+        @Override
+        public ViewFactory getViewFactory() {
+            return viewFactory;
+        }
+    }
+
+    // A large cleaned page split at block boundaries into parts of about partChars, so that only the parts viewed so
+    // far are parsed into the document. An element too large for one part is split between its children, each group
+    // wrapped in a copy of the element's tags, and a large text node is split between lines, or within a line too
+    // long for a part. Parts are shown in order.
+    static class PagedBody {
+        ArrayList<String> parts;
+        int shown;
+
+        static PagedBody split(String html, int partChars) {
+            PagedBody pages = new PagedBody();
+            pages.parts = new ArrayList<>();
+            org.jsoup.nodes.Document soupDoc = Jsoup.parse(html);
+            soupDoc.outputSettings().prettyPrint(false);
+            pages.split(soupDoc.body(), "", "", partChars);
+            if (pages.parts.isEmpty()) {
+                pages.parts.add("");
+            }
+            String head = soupDoc.head().outerHtml();
+            pages.parts.set(0, "<html>" + head + "<body>" + pages.parts.get(0) + "</body></html>");
+            return pages;
+        }
+
+        void split(org.jsoup.nodes.Element parent, String open, String close, int partChars) {
+            StringBuilder part = new StringBuilder();
+            for (Node node : parent.childNodes()) {
+                String html = node.outerHtml();
+                if (html.length() > partChars && node.childNodeSize() > 0) {
+                    addPart(part, open, close);
+                    String empty = node.shallowClone().outerHtml();
+                    int closeStart = empty.lastIndexOf("</");
+                    split((org.jsoup.nodes.Element) node, open + empty.substring(0, closeStart),
+                            empty.substring(closeStart) + close, partChars);
+                    continue;
+                }
+                if (html.length() > partChars && node instanceof TextNode) {
+                    addPart(part, open, close);
+                    int start = 0;
+                    while (start < html.length()) {
+                        int end = html.lastIndexOf('\n', start + partChars);
+                        end = start + partChars >= html.length() ? html.length()
+                                : end > start ? end + 1 : hardCut(html, start, start + partChars);
+                        part.append(html, start, end);
+                        addPart(part, open, close);
+                        start = end;
+                    }
+                    continue;
+                }
+                if (part.length() > 0 && part.length() + html.length() > partChars) {
+                    addPart(part, open, close);
+                }
+                part.append(html);
+            }
+            addPart(part, open, close);
+        }
+
+        // For text without a line break, cut before an entity or surrogate pair that would be split at cut.
+        static int hardCut(String html, int start, int cut) {
+            int amp = html.lastIndexOf('&', cut - 1);
+            if (amp > start && cut - amp <= maxEntityChars && html.lastIndexOf(';', cut - 1) < amp) {
+                cut = amp;
+            }
+            if (Character.isHighSurrogate(html.charAt(cut - 1)) && cut - 1 > start) {
+                cut--;
+            }
+            return cut;
+        }
+
+        void addPart(StringBuilder part, String open, String close) {
+            if (part.length() > 0) {
+                parts.add(open + part + close);
+                part.setLength(0);
+            }
+        }
+
+        boolean hasMore() {
+            return shown < parts.size();
+        }
+
+        // Returns the next part to show, the first one is a whole html page.
+        String next() {
+            return parts.get(shown++);
+        }
+
+        String whole() {
+            StringBuilder html = new StringBuilder(parts.get(0));
+            int bodyEnd = html.lastIndexOf("</body>");
+            for (int i = 1; i < parts.size(); i++) {
+                html.insert(bodyEnd, parts.get(i));
+                bodyEnd += parts.get(i).length();
+            }
+            return html.toString();
+        }
+    }
+
+    static class HistoryItem {
+        String url;
+        String title;
+        Document document;
+        PagedBody pages;
+        Point position;
+        long documentBytes;
+
+        HistoryItem(String url) {
+            this.url = url;
+            title = "";
+        }
+    }
+
+    // The history of a tab, oldest first, in a circular array of at most maxCount items, so that every access is
+    // O(1) and dropping the oldest item moves nothing.
+    static class TabHistory {
+        HistoryItem[] items;
+        int first;
+        int size;
+        int index;
+        BackForwardCache cache;
+
+        TabHistory(String[] urls, int index, int maxCount, BackForwardCache cache) {
+            items = new HistoryItem[Math.max(maxCount, urls.length)];
+            for (String url : urls) {
+                items[size++] = new HistoryItem(url);
+            }
+            this.index = index;
+            this.cache = cache;
+        }
+
+        HistoryItem get(int i) {
+            return items[(first + i) % items.length];
+        }
+
+        HistoryItem current() {
+            return get(index);
+        }
+
+        int size() {
+            return size;
+        }
+
+        // Replaces the items after the current one with a new item for url, dropping the oldest item when full.
+        void push(String url) {
+            for (int i = index + 1; i < size; i++) {
+                drop(get(i));
+            }
+            size = index + 1;
+            if (size == items.length) {
+                drop(get(0));
+                first = (first + 1) % items.length;
+                size--;
+            }
+            items[(first + size) % items.length] = new HistoryItem(url);
+            index = size;
+            size++;
+        }
+
+        List<String> urls() {
+            ArrayList<String> urls = new ArrayList<>(size);
+            for (int i = 0; i < size; i++) {
+                urls.add(get(i).url);
+            }
+            return urls;
+        }
+
+        void keepDocument(Document document, String title, Point position, long documentBytes) {
+            HistoryItem item = current();
+            item.title = title;
+            if (cache != null) {
+                cache.store(item, document, position, documentBytes);
+            }
+        }
+
+        // Drops the documents farthest from the current item beyond the per tab limit.
+        void trimDocuments() {
+            if (cache == null) {
+                return;
+            }
+            ArrayList<Integer> kept = new ArrayList<>();
+            for (int i = 0; i < size; i++) {
+                if (get(i).document != null) {
+                    kept.add(i);
+                }
+            }
+            kept.sort(Comparator.comparingInt(i -> Math.abs(i - index)));
+            for (int i = cache.maxPerTab; i < kept.size(); i++) {
+                drop(get(kept.get(i)));
+            }
+        }
+
+        void drop(HistoryItem item) {
+            if (cache != null) {
+                cache.drop(item);
+            }
+        }
+
+        void dropDocuments() {
+            for (int i = 0; i < size; i++) {
+                drop(get(i));
+            }
+        }
+    }
+
+    // Rendered documents of history items that are not shown, so that back and forward can swap them into the editor
+    // pane instead of parsing the page again. Each tab keeps at most maxPerTab of them, nearest to its current item,
+    // and all tabs together keep at most about maxBytes, evicting the least recently stored. Used on the EDT only.
+    static class BackForwardCache {
+        int maxPerTab;
+        long maxBytes;
+        long bytes;
+        LinkedHashMap<HistoryItem, Long> items;
+        long stores;
+        long hits;
+        long evictions;
+
+        BackForwardCache(int maxPerTab, long maxBytes) {
+            this.maxPerTab = maxPerTab;
+            this.maxBytes = maxBytes;
+            items = new LinkedHashMap<>();
+        }
+
+        // Returns false if the document is not kept.
+        boolean store(HistoryItem item, Document document, Point position, long documentBytes) {
+            drop(item);
+            if (maxPerTab <= 0 || documentBytes > maxBytes) {
+                return false;
+            }
+            item.document = document;
+            item.position = position;
+            item.documentBytes = documentBytes;
+            items.put(item, documentBytes);
+            bytes += documentBytes;
+            stores++;
+            while (bytes > maxBytes) {
+                drop(items.keySet().iterator().next());
+                evictions++;
+            }
+            return true;
+        }
+
+        // Removes the document from the cache and returns it, or null.
+        Document take(HistoryItem item) {
+            Document document = item.document;
+            if (document != null) {
+                hits++;
+                drop(item);
+            }
+            return document;
+        }
+
+        void drop(HistoryItem item) {
+            Long itemBytes = items.remove(item);
+            if (itemBytes != null) {
+                bytes -= itemBytes;
+            }
+            item.document = null;
+            item.pages = null;
+        }
+
+        void clear() {
+            for (HistoryItem item : new ArrayList<>(items.keySet())) {
+                drop(item);
+            }
+        }
+
+        String getStatistics() {
+            return backForwardCacheStatisticsStr.formatted(items.size(), bytes >> 10, maxBytes >> 10, stores, hits,
+                    evictions);
+        }
+    }
+
+    static class HtmlTab implements HyperlinkListener {
+        TabHistory history;
+        int maxHistoryCount;
+        String title;
+        JTextField urlField;
+        JTextField statusField;
+        JTabbedPane tabsPane;
+        BrowserEditorKit kit;
+        JEditorPane editorPane;
+        JScrollPane scrollPane;
+        Consumer<URL> addTabWithUrl;
+        SwingWorker<LoadResult, Document> worker;
+        PageCache pageCache;
+        BackForwardCache backForwardCache;
+        boolean documentKept;
+        boolean streaming;
+        PageLoadExecutor loadExecutor;
+        boolean latestWins;
+        String workerUrl;
+        LoadBudget.Deadline workerDeadline;
+        javax.swing.Timer coalesceTimer;
+        long supersededCount;
+        Prefetcher prefetcher;
+        HistoryStore globalHistory;
+        Fetcher fetcher;
+        javax.swing.Timer hoverTimer;
+        String hoveredUrl;
+        String deferredUrl;
+        long lastActiveMillis;
+        long documentBytes;
+        boolean hibernated;
+        Point restorePosition;
+        String restoreUrl;
+        int largeDocumentChars;
+        int documentPartChars;
+        PagedBody pages;
+        String shownBody;
+        boolean partPending;
+        Function<String, File> download;
+        LoadTimings loadTimings;
+
+        HtmlTab(JTextField urlField, JTextField statusField, JTabbedPane tabsPane, Consumer<URL> addTabWithUrlLambda,
+                int historyCount, PageCache pageCache, BackForwardCache backForwardCache, boolean streaming,
+                PageLoadExecutor loadExecutor, boolean latestWins, Prefetcher prefetcher, HistoryStore globalHistory,
+                ImageService images, Fetcher fetcher) {
+            history = new TabHistory(new String[]{""}, 0, historyCount, backForwardCache);
+            maxHistoryCount = historyCount;
+            title = untitledStr;
+            this.urlField = urlField;
+            this.statusField = statusField;
+            this.tabsPane = tabsPane;
+            addTabWithUrl = addTabWithUrlLambda;
+            worker = null;
+            this.pageCache = pageCache;
+            this.backForwardCache = backForwardCache;
+            documentKept = false;
+            this.streaming = streaming;
+            this.loadExecutor = loadExecutor;
+            this.latestWins = latestWins;
+            workerUrl = null;
+            workerDeadline = null;
+            coalesceTimer = new javax.swing.Timer(coalesceMillis, e -> submitWorker());
+            coalesceTimer.setRepeats(false);
+            supersededCount = 0;
+            this.prefetcher = prefetcher;
+            this.globalHistory = globalHistory;
+            this.fetcher = fetcher;
+            hoverTimer = new javax.swing.Timer(prefetchDwellMillis, e -> prefetcher.prefetch(hoveredUrl));
+            hoverTimer.setRepeats(false);
+            hoveredUrl = null;
+            deferredUrl = null;
+            lastActiveMillis = System.currentTimeMillis();
+            documentBytes = 0;
+            hibernated = false;
+            restorePosition = null;
+            restoreUrl = null;
+            largeDocumentChars = defaultLargeDocumentKiloChars << 10;
+            documentPartChars = defaultDocumentPartKiloChars << 10;
+            pages = null;
+            partPending = false;
+            download = null;
+            loadTimings = null;
+            kit = new BrowserEditorKit(images);
+            kit.setAutoFormSubmission(false);
+            editorPane = new JEditorPane("text/html", "");
+            editorPane.addHyperlinkListener(this);
+            editorPane.setEditable(false);
+            editorPane.setEditorKit(kit);
+            scrollPane = new JScrollPane(editorPane);
+            scrollPane.getVerticalScrollBar().getModel().addChangeListener(e -> viewportChanged());
+        }
+
+        String getTitle() {
+            return title;
+        }
+
+        String getUrl() {
+            log("getUrl iH %d h %s".formatted(history.index, history.urls()));
+            return history.current().url;
+        }
+
+        void setUrl(String newUrl) {
+            log("setUrl iH %d newUrl %s old h %s".formatted(history.index, newUrl, history.urls()));
+            HistoryItem item = history.current();
+            if (!newUrl.equals(item.url)) {
+                history.drop(item);
+                item.url = newUrl;
+            }
+            log("done setUrl iH %d new h %s".formatted(history.index, history.urls()));
+        }
+
+        // Keeps url as the page of a background tab without loading it until loadDeferred is called.
+        void defer(String url, String placeholderTitle, int index) {
+            setUrl(url);
+            deferredUrl = url;
+            title = placeholderTitle;
+            tabsPane.setTitleAt(index, title);
+        }
+
+        void loadDeferred(int index) {
+            if (deferredUrl != null) {
+                String url = deferredUrl;
+                deferredUrl = null;
+                urlUpdate(url, index);
+            }
+        }
+
+        // The page is kept only if withPage is set and the tab shows a loaded page. It is the cleaned html the page was
+        // shown from, or else the one in the page cache, as serializing the document again would take long on the EDT.
+        ClosedTab close(boolean withPage) {
+            String page = null;
+            if (withPage && documentBytes > 0) {
+                CachedPage cached = shownBody == null ? pageCache.getFromMemory(getUrl()) : null;
+                page = shownBody != null ? shownBody : cached != null ? cached.body : null;
+            }
+            return new ClosedTab(history.urls().toArray(new String[0]), history.index, title,
+                    scrollPane.getViewport().getViewPosition(), page);
+        }
+
+        // Shows the closed tab's page again, or loads it when the page was not kept.
+        void reopen(ClosedTab closed, int index) {
+            log("reopen " + closed.history[closed.iHistory]);
+            history = new TabHistory(closed.history, closed.iHistory, maxHistoryCount, backForwardCache);
+            title = closed.title;
+            tabsPane.setTitleAt(index, title);
+            urlField.setText(getUrl());
+            restorePosition = closed.position;
+            restoreUrl = getUrl();
+            long t0 = System.nanoTime();
+            String page = closed.getPage();
+            if (page != null) {
+                updaterDone(getUrl(), index, LoadResult.of(getUrl(), title, page, t0));
+            } else if (!getUrl().isEmpty()) {
+                urlUpdate(getUrl(), index);
+            }
+        }
+
+        boolean canHibernate() {
+            return !hibernated && worker == null && deferredUrl == null && documentBytes > 0;
+        }
+
+        // Replaces the document with an empty one and returns the estimated size of the discarded page.
+        long hibernate() {
+            log("hibernate " + getUrl());
+            long bytes = documentBytes;
+            restorePosition = scrollPane.getViewport().getViewPosition();
+            restoreUrl = getUrl();
+            editorPane.setDocument(kit.createDefaultDocument());
+            documentKept = false;
+            pages = null;
+            shownBody = null;
+            history.dropDocuments();
+            documentBytes = 0;
+            hibernated = true;
+            return bytes;
+        }
+
+        void restore(int index) {
+            log("restore " + getUrl());
+            hibernated = false;
+            urlUpdate(getUrl(), index);
+        }
+
+        void tryStoppingUpdater() {
+            if (worker != null) {
+                log("tryStoppingUpdater");
+                coalesceTimer.stop();
+                loadExecutor.remove(worker);
+                // The interrupt of cancel does not wake a read of the body, closing it does.
+                workerDeadline.cancel();
+                worker.cancel(true);
+                worker = null;
+            }
+        }
+
+        static LoadResult updaterDoInBackground(Fetcher fetcher, String url, Consumer<CachedPage> store) {
+            return updaterDoInBackground(fetcher, url, null, null, store, null);
+        }
+
+        // Returns the page with the time of each phase of loading it, or a message instead of a page. Without
+        // partialConsumer the whole page is read before parsing. A stale page with validators is revalidated, and its
+        // cleaned html is reused if the server answers 304 Not Modified. The loaded or revalidated page is passed to
+        // store unless the response forbids storing it. A response that is not a page is passed by url to download
+        // when given, else it is refused by the load budget.
+        static LoadResult updaterDoInBackground(Fetcher fetcher, String url, CachedPage stale,
+                Consumer<String> partialConsumer, Consumer<CachedPage> store, Function<String, File> download) {
+            return updaterDoInBackground(fetcher, url, stale, partialConsumer, store, download,
+                    new LoadBudget.Deadline());
+        }
+
+        // deadline is started by the load, and may be cancelled from another thread to close the body.
+        static LoadResult updaterDoInBackground(Fetcher fetcher, String url, CachedPage stale,
+                Consumer<String> partialConsumer, Consumer<CachedPage> store, Function<String, File> download,
+                LoadBudget.Deadline deadline) {
+            log("updaterDoInBackground " + url);
+            LoadResult result = new LoadResult(url);
+            Consumer<String> timedConsumer = partialConsumer == null ? null : partial -> {
+                if (result.firstContentNanos < 0) {
+                    result.firstContentNanos = System.nanoTime() - result.startNanos;
+                }
+                partialConsumer.accept(partial);
+            };
+            LoadBudget budget = fetcher.budget;
+            budget.start(deadline);
+            // Stored only after the deadline has ended, so that its interrupt cannot reach the store.
+            CachedPage stored = null;
+            try {
+                org.jsoup.nodes.Document soupDoc;
+                Fetcher.Response response = null;
+                CountingStream body;
+                String charset;
+                String baseUri;
+                result.fetched = true;
+                if (isFile(url)) {
+                    budget.checkBodyBytes(new File(url).length());
+                    body = new CountingStream(new FileInputStream(url));
+                    deadline.watch(body);
+                    charset = "UTF-8";
+                    baseUri = new File(url).getAbsolutePath();
+                } else {
+                    long t = System.nanoTime();
+                    response = fetcher.fetch(url, stale);
+                    deadline.watch(response.body);
+                    result.connectNanos = System.nanoTime() - t;
+                    if (response.status == HttpURLConnection.HTTP_NOT_MODIFIED && stale != null) {
+                        stored = stale.revalidated(response);
+                        result.title = stored.title;
+                        result.body = stored.body;
+                        return result;
+                    }
+                    if (download != null && !Fetcher.isPageType(response.contentType)) {
+                        response.body.close();
+                        result.fetched = false;
+                        result.message = downloadStartedStr.formatted(url, download.apply(url));
+                        return result;
+                    }
+                    budget.checkResponse(response);
+                    body = new CountingStream(response.body);
+                    charset = response.charset;
+                    baseUri = response.url;
+                }
+                if (timedConsumer == null) {
+                    long t = System.nanoTime();
+                    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                    try (InputStream in = body) {
+                        byte[] buffer = new byte[bodyReadBytes];
+                        int count;
+                        while ((count = in.read(buffer)) >= 0) {
+                            deadline.check();
+                            bytes.write(buffer, 0, count);
+                        }
+                    }
+                    result.transferNanos = System.nanoTime() - t;
+                    t = System.nanoTime();
+                    soupDoc = Jsoup.parse(new ByteArrayInputStream(bytes.toByteArray()), charset, baseUri);
+                    result.parseNanos = System.nanoTime() - t;
+                } else {
+                    soupDoc = streamDocument(body, charset, url, timedConsumer, result, deadline);
+                }
+                result.bytes = body.count;
+                result.elements = soupDoc.getAllElements().size();
+                budget.checkElements(result.elements);
+                String title = soupDoc.title();
+                String html = clean(soupDoc, result);
+                deadline.check();
+                result.title = title;
+                result.body = html;
+                CachedPage page = new CachedPage(url, result.title, result.body);
+                if (response != null) {
+                    page.setValidators(response);
+                }
+                if (response == null || response.storable) {
+                    stored = page;
+                }
+            } catch (BudgetException e) {
+                result.message = loadBudgetStr.formatted(url, e.getMessage());
+            } catch (IOException e) {
+                result.message = deadline.isExpired() ? loadBudgetStr.formatted(url, budget.tooSlow().getMessage())
+                        : String.format(exceptionStr, e.toString(), url);
+            } finally {
+                deadline.end();
+                if (stored != null) {
+                    store.accept(stored);
+                }
+                result.finish();
+            }
+            return result;
+        }
+
+        static String clean(org.jsoup.nodes.Document soupDoc) {
+            return clean(soupDoc, new LoadResult(""));
+        }
+
+        // Records in result the time of cleaning, of filtering the images, and of serializing the html.
+        static String clean(org.jsoup.nodes.Document soupDoc, LoadResult result) {
+            long t = System.nanoTime();
+            Whitelist whitelist = Whitelist.relaxed();
+            whitelist.removeTags("div"); // div tags may prevent line wrapping.
+            Cleaner cleaner = new Cleaner(whitelist);
+            var cleanDoc = cleaner.clean(soupDoc);
+            result.cleanNanos = System.nanoTime() - t;
+            t = System.nanoTime();
+            // Avoid non-images that may reload and cause 100% CPU utilization.
+            var images = cleanDoc.getElementsByTag("img");
+            for (var image : images) {
+                String src = image.attr("src");
+                if (!(src.contains(".jpg") || src.contains(".png") || src.contains(".gif"))) {
+                    image.attr("src", "");
+                }
+            }
+            result.images = images.size();
+            result.imagesNanos = System.nanoTime() - t;
+            t = System.nanoTime();
+            String html = cleanDoc.html();
+            result.serializeNanos = System.nanoTime() - t;
+            return html;
+        }
+
+        // Reads the page in chunks. Whenever the text read so far has doubled since the last time, starting at
+        // streamingFirstChars, the part up to the last complete tag is cleaned and passed to partialConsumer. Doubling
+        // keeps the total cleaning work proportional to the page size. The transfer time in result includes cleaning
+        // the partial pages. Without a charset from the response, it is sniffed from the first bytes. deadline, when
+        // given, is checked after every read.
+        static org.jsoup.nodes.Document streamDocument(InputStream stream, String charset, String url,
+                Consumer<String> partialConsumer, LoadResult result) throws IOException {
+            return streamDocument(stream, charset, url, partialConsumer, result, null);
+        }
+
+        static org.jsoup.nodes.Document streamDocument(InputStream stream, String charset, String url,
+                Consumer<String> partialConsumer, LoadResult result, LoadBudget.Deadline deadline)
+                throws IOException {
+            long t = System.nanoTime();
+            StringBuilder text = new StringBuilder();
+            BufferedInputStream buffered = new BufferedInputStream(stream, charsetSniffBytes);
+            if (charset == null) {
+                charset = sniffCharset(buffered);
+            }
+            try (Reader reader = new InputStreamReader(buffered, Charset.forName(charset))) {
+                char[] buffer = new char[streamingReadChars];
+                int nextPartialLength = streamingFirstChars;
+                int count;
+                while ((count = reader.read(buffer)) >= 0) {
+                    if (deadline != null) {
+                        deadline.check();
+                    }
+                    text.append(buffer, 0, count);
+                    int tagEnd = text.lastIndexOf(">");
+                    if (text.length() >= nextPartialLength && tagEnd >= 0) {
+                        partialConsumer.accept(clean(Jsoup.parse(text.substring(0, tagEnd + 1), url)));
+                        nextPartialLength = 2 * text.length();
+                    }
+                }
+            }
+            result.transferNanos = System.nanoTime() - t;
+            t = System.nanoTime();
+            org.jsoup.nodes.Document soupDoc = Jsoup.parse(text.toString(), url);
+            result.parseNanos = System.nanoTime() - t;
+            return soupDoc;
+        }
+
+        // The charset of the page the way jsoup finds it when it parses bytes: a byte order mark, which is skipped,
+        // or else a meta charset or content type in the first charsetSniffBytes, or else UTF-8. The stream is left
+        // at the start of the text.
+        static String sniffCharset(BufferedInputStream stream) throws IOException {
+            stream.mark(charsetSniffBytes);
+            byte[] first = stream.readNBytes(charsetSniffBytes);
+            stream.reset();
+            if (first.length >= 3 && (first[0] & 0xff) == 0xef && (first[1] & 0xff) == 0xbb
+                    && (first[2] & 0xff) == 0xbf) {
+                stream.skipNBytes(3);
+                return "UTF-8";
+            } else if (first.length >= 2 && (first[0] & 0xff) == 0xfe && (first[1] & 0xff) == 0xff) {
+                stream.skipNBytes(2);
+                return "UTF-16BE";
+            } else if (first.length >= 2 && (first[0] & 0xff) == 0xff && (first[1] & 0xff) == 0xfe) {
+                stream.skipNBytes(2);
+                return "UTF-16LE";
+            }
+            org.jsoup.nodes.Document head = Jsoup.parse(new String(first, StandardCharsets.ISO_8859_1));
+            for (var meta : head.select("meta[http-equiv=content-type], meta[charset]")) {
+                String found = meta.hasAttr("http-equiv") ? Fetcher.charsetOf(meta.attr("content"))
+                        : meta.attr("charset").trim();
+                try {
+                    if (found != null && Charset.isSupported(found)) {
+                        return found;
+                    }
+                } catch (IllegalArgumentException e) {
+                    log("sniffCharset " + e);
+                }
+            }
+            return "UTF-8";
+        }
+
+        // Parses body into a new document. Called off the EDT for large pages, the document is not shown yet.
+        Document buildDocument(String body) {
+            Document document = kit.createDefaultDocument();
+            document.putProperty("IgnoreCharsetDirective", Boolean.TRUE);
+            try {
+                kit.read(new StringReader(body), document, 0);
+            } catch (IOException | BadLocationException e) {
+                log("buildDocument " + e); // Not thrown for a StringReader at offset 0.
+            }
+            return document;
+        }
+
+        // Shows the partial page without moving the view, except for the first part.
+        void updaterPartial(Document document, boolean first) {
+            Point position = scrollPane.getViewport().getViewPosition();
+            showDocument(document, estimateBytes(document));
+            if (!first) {
+                SwingUtilities.invokeLater(() -> scrollPane.getViewport().setViewPosition(position));
+            }
+        }
+
+        // A document kept in the back-forward cache must not be overwritten, so the new page gets a new document.
+        void setBody(String body) {
+            if (documentKept) {
+                editorPane.setDocument(kit.createDefaultDocument());
+                documentKept = false;
+            }
+            editorPane.setText(body);
+            editorPane.setCaretPosition(0);
+            pages = null;
+            shownBody = body;
+            documentBytes = estimateBytes(editorPane.getDocument());
+        }
+
+        // Called before the current history item is left. Only a completely loaded page is kept, and not a document
+        // that is still shown because the page of the current item failed to load.
+        void keepDocument() {
+            if (worker == null && documentBytes > 0 && !documentKept) {
+                history.keepDocument(editorPane.getDocument(), title, scrollPane.getViewport().getViewPosition(),
+                        documentBytes);
+                documentKept = history.current().document != null;
+                if (documentKept) {
+                    history.current().pages = pages;
+                }
+            }
+        }
+
+        // Shows the current history item from the back-forward cache, returns false if it is not there.
+        boolean showKeptDocument(int index) {
+            HistoryItem item = history.current();
+            Point position = item.position;
+            PagedBody itemPages = item.pages;
+            Document document = backForwardCache.take(item);
+            if (document == null) {
+                return false;
+            }
+            log("showKeptDocument " + item.url);
+            tryStoppingUpdater();
+            globalHistory.recordVisit(item.url);
+            editorPane.setDocument(document);
+            documentKept = false;
+            pages = itemPages;
+            shownBody = null;
+            restorePosition = null;
+            restoreUrl = null;
+            documentBytes = item.documentBytes;
+            title = item.title;
+            tabsPane.setTitleAt(index, title);
+            urlField.setText(item.url);
+            SwingUtilities.invokeLater(() -> scrollPane.getViewport().setViewPosition(position));
+            statusField.setText(backForwardCacheHitStr.formatted(item.url));
+            return true;
+        }
+
+        // The heap taken by document. Measured on HTMLEditorKit documents of text, link and table pages, the content
+        // takes about documentBytesPerChar per character, being a gap buffer of chars with room to grow, and each
+        // element with its attributes about documentBytesPerElement, which dominates for markup heavy pages. The
+        // estimate was within about 15% on those pages, where twice the html length was off by up to 10 times.
+        static long estimateBytes(Document document) {
+            return (long) documentBytesPerChar * document.getLength()
+                    + (long) documentBytesPerElement * countElements(document.getDefaultRootElement());
+        }
+
+        static int countElements(Element element) {
+            int count = 1;
+            for (int i = 0; i < element.getElementCount(); i++) {
+                count += countElements(element.getElement(i));
+            }
+            return count;
+        }
+
+        void showDocument(Document document, long bytes) {
+            editorPane.setDocument(document);
+            editorPane.setCaretPosition(0);
+            documentKept = false;
+            pages = null;
+            shownBody = null;
+            documentBytes = bytes;
+        }
+
+        // Appends the next part of a paged page to the document, returns false if there is none.
+        boolean showNextPart() {
+            partPending = false;
+            if (pages == null || !pages.hasMore()) {
+                return false;
+            }
+            HTMLDocument document = (HTMLDocument) editorPane.getDocument();
+            Element root = document.getDefaultRootElement();
+            for (int i = 0; i < root.getElementCount(); i++) {
+                Element body = root.getElement(i);
+                if (body.getAttributes().getAttribute(StyleConstants.NameAttribute) == HTML.Tag.BODY) {
+                    try {
+                        document.insertBeforeEnd(body, pages.next());
+                    } catch (BadLocationException | IOException e) {
+                        log("showNextPart " + e);
+                    }
+                    break;
+                }
+            }
+            documentBytes = estimateBytes(document);
+            statusField.setText(partsShownStr.substring(1).formatted(pages.shown, pages.parts.size()));
+            return true;
+        }
+
+        void viewportChanged() {
+            showNextPartNearEnd();
+            requestImagesNearViewport();
+        }
+
+        // In lazy image mode, requests the images within lazyImageMarginScreens screens of the viewport and cancels
+        // the waiting requests of the others. Views that are no longer part of the shown document are forgotten.
+        void requestImagesNearViewport() {
+            if (kit.lazyViews == null || kit.lazyViews.isEmpty()) {
+                return;
+            }
+            Rectangle near = scrollPane.getViewport().getViewRect();
+            near.grow(0, near.height * lazyImageMarginScreens);
+            View root = editorPane.getUI().getRootView(editorPane);
+            for (var iterator = kit.lazyViews.iterator(); iterator.hasNext(); ) {
+                SharedImageView view = iterator.next();
+                View top = view;
+                while (top.getParent() != null) {
+                    top = top.getParent();
+                }
+                if (top != root) {
+                    view.cancel();
+                    iterator.remove();
+                    continue;
+                }
+                try {
+                    Rectangle2D bounds = editorPane.modelToView2D(view.getStartOffset());
+                    if (bounds != null && near.intersects(bounds.getX(), bounds.getY(),
+                            Math.max(1, view.getPreferredSpan(View.X_AXIS)), view.getPreferredSpan(View.Y_AXIS))) {
+                        view.request();
+                    } else {
+                        view.cancel();
+                    }
+                } catch (BadLocationException e) {
+                    view.cancel();
+                }
+                if (!view.isWaiting()) {
+                    iterator.remove();
+                }
+            }
+        }
+
+        // Shows the next part when the view comes within one screen of the end of a paged page.
+        void showNextPartNearEnd() {
+            BoundedRangeModel model = scrollPane.getVerticalScrollBar().getModel();
+            if (pages != null && pages.hasMore() && !partPending
+                    && model.getValue() + 2 * model.getExtent() >= model.getMaximum()) {
+                partPending = true;
+                SwingUtilities.invokeLater(this::showNextPart);
+            }
+        }
+
+        void updaterDone(String url, int index, LoadResult result) {
+            updaterDone(url, index, result, null, null);
+        }
+
+        // document is the page built off the EDT, or null to build it here from result.body. When result.body is
+        // larger than largeDocumentChars, document holds only the first part of pages. A fetched page is recorded in
+        // loadTimings once shown.
+        void updaterDone(String url, int index, LoadResult result, Document document, PagedBody pages) {
+            log("updaterDone url |%s| index %d text sizes %d %d %s".formatted(
+                    url, index, result.title.length(), result.body.length(), result.seconds()));
+            // The position is for the page that was restoring, not for a navigation that superseded it.
+            Point position = url.equals(restoreUrl) ? restorePosition : null;
+            restorePosition = null;
+            restoreUrl = null;
+            String body = result.body;
+            if (body.isEmpty()) {
+                statusField.setText(result.message);
+            } else {
+                long edtStart = System.nanoTime();
+                title = result.title;
+                tabsPane.setTitleAt(index, title);
+                globalHistory.recordTitle(url, title);
+                if (document == null && body.length() > largeDocumentChars) {
+                    pages = PagedBody.split(body, documentPartChars);
+                    document = buildDocument(pages.next());
+                }
+                if (document == null) {
+                    setBody(body);
+                } else {
+                    showDocument(document, estimateBytes(document));
+                    this.pages = pages;
+                    shownBody = body;
+                }
+                SwingUtilities.invokeLater(this::viewportChanged);
+                if (position != null) {
+                    SwingUtilities.invokeLater(() -> scrollPane.getViewport().setViewPosition(position));
+                }
+                String status = String.format(urlTookStr, url, result.seconds());
+                if (result.firstContentNanos >= 0) {
+                    status += firstContentStr.formatted(String.format("%.2f", result.firstContentNanos * 1e-9));
+                }
+                result.showNanos = System.nanoTime() - edtStart;
+                double edtMillis = result.showNanos * 1e-6;
+                log("updaterDone EDT ms %.1f".formatted(edtMillis));
+                status += edtBusyStr.formatted(edtMillis);
+                if (result.fetched) {
+                    status += result.describe();
+                    if (loadTimings != null) {
+                        loadTimings.record(result);
+                    }
+                }
+                if (pages != null) {
+                    status += partsShownStr.formatted(pages.shown, pages.parts.size());
+                }
+                statusField.setText(status);
+            }
+        }
+
+        // Shows a page made by the browser, which is not a url and so not in the history.
+        void showReport(String reportTitle, String body, int index) {
+            title = reportTitle;
+            tabsPane.setTitleAt(index, title);
+            setBody(body);
+        }
+
+        void updaterRunFinally(String url, String error) {
+            log("updaterRunFinally url |%s| error |%s|".formatted(url, error));
+            if (error != null && !error.isEmpty()) {
+                statusField.setText(String.format(exceptionStr, error, url));
+            }
+            worker = null;
+        }
+
+        // Without latestWins, a navigation is refused while a load is running and history must not change.
+        boolean canNavigate(String url, int index) {
+            if (worker != null && !latestWins) {
+                String error = workerExistsErrorStr.formatted(url, index);
+                log(error);
+                statusField.setText(error);
+                return false;
+            }
+            return true;
+        }
+
+        // A new navigation cancels the running or waiting load, whose result is then dropped in done(). The load
+        // that replaces it waits coalesceMillis, so holding down back only loads the page where it stops.
+        void urlUpdate(String url, int index) {
+            urlUpdate(url, index, false);
+        }
+
+        // With revalidate, as for reload, a cached page is used only after the server confirms it has not changed.
+        void urlUpdate(String url, int index, boolean revalidate) {
+            log("urlUpdate %s %d".formatted(url, index));
+            if (!canNavigate(url, index)) {
+                return;
+            }
+            boolean superseding = worker != null;
+            if (superseding) {
+                log("urlUpdate supersedes " + workerUrl);
+                supersededCount++;
+                tryStoppingUpdater();
+            }
+            setUrl(url);
+            globalHistory.recordVisit(url);
+            long t0 = System.nanoTime();
+            CachedPage page = pageCache.getFromMemory(url);
+            if (page == null && prefetcher != null) {
+                page = prefetcher.take(url);
+            }
+            boolean inMemory = page != null;
+            CachedPage stale = null;
+            if (page != null && (revalidate || !page.isFresh(System.currentTimeMillis()))) {
+                stale = page.hasValidators() ? page : null;
+                page = null;
+            }
+            // Small pages are shown right away, large ones are parsed into a document by the worker.
+            if (page != null && page.body.length() <= Math.min(maxEdtDocumentChars, largeDocumentChars)) {
+                updaterDone(url, index, LoadResult.of(url, page.title, page.body, t0));
+                return;
+            }
+            CachedPage cachedPage = page;
+            CachedPage stalePage = stale;
+            LoadBudget.Deadline deadline = new LoadBudget.Deadline();
+            worker = new SwingWorker<>() {
+                CachedPage offlinePage = null;
+                Document document = null;
+                PagedBody pages = null;
+                boolean partialShown = false;
+
+                @Override
+                protected LoadResult doInBackground() {
+                    CachedPage page = cachedPage;
+                    CachedPage stale = stalePage;
+                    if (!inMemory) {
+                        page = pageCache.getFromDisk(url);
+                        if (page != null && (revalidate || !page.isFresh(System.currentTimeMillis()))) {
+                            stale = page.hasValidators() ? page : null;
+                            page = null;
+                        }
+                    }
+                    LoadResult result;
+                    if (page != null) {
+                        result = LoadResult.of(url, page.title, page.body, t0);
+                    } else {
+                        result = updaterDoInBackground(fetcher, url, stale, !streaming ? null : partial -> {
+                            if (partial.length() <= largeDocumentChars) {
+                                publish(buildDocument(partial));
+                            }
+                        }, pageCache::put, download, deadline);
+                        if (result.body.isEmpty()) {
+                            offlinePage = pageCache.getOffline(url);
+                        }
+                    }
+                    if (offlinePage != null) {
+                        result.title = offlinePage.title;
+                        result.body = offlinePage.body;
+                        result.fetched = false;
+                    }
+                    long documentStart = System.nanoTime();
+                    if (result.body.length() > largeDocumentChars) {
+                        pages = PagedBody.split(result.body, documentPartChars);
+                        document = buildDocument(pages.next());
+                    } else if (!result.body.isEmpty()) {
+                        document = buildDocument(result.body);
+                    }
+                    result.documentNanos = System.nanoTime() - documentStart;
+                    return result;
+                }
+
+                @Override
+                protected void process(List<Document> partials) {
+                    if (!isDone() && worker == this) {
+                        updaterPartial(partials.get(partials.size() - 1), !partialShown);
+                        partialShown = true;
+                    }
+                }
+
+                @Override
+                public void done() {
+                    if (isCancelled() || worker != this) {
+                        log("done dropped stale url " + url);
+                        return;
+                    }
+                    String error = "";
+                    try {
+                        LoadResult result = get();
+                        Point position = scrollPane.getViewport().getViewPosition();
+                        updaterDone(url, index, result, document, pages);
+                        if (offlinePage != null) {
+                            statusField.setText(offlineCopyStr.formatted(url, new Date(offlinePage.storedMillis)));
+                        }
+                        if (partialShown) {
+                            SwingUtilities.invokeLater(() -> scrollPane.getViewport().setViewPosition(position));
+                        }
+                    } catch (InterruptedException | ExecutionException e) {
+                        error = e.toString();
+                    } finally {
+                        updaterRunFinally(url, error);
+                    }
+                }
+            };
+            workerUrl = url;
+            workerDeadline = deadline;
+            if (superseding) {
+                coalesceTimer.restart();
+            } else {
+                submitWorker();
+            }
+        }
+
+        void submitWorker() {
+            if (worker != null && worker.getState() == SwingWorker.StateValue.PENDING) {
+                int position = loadExecutor.submit(workerUrl, worker);
+                if (position > 0) {
+                    statusField.setText(loadQueuedStr.formatted(workerUrl, position));
+                }
+            }
+        }
+
+        void goBack() {
+            if (history.index <= 0 || !canNavigate(history.get(history.index - 1).url, tabsPane.getSelectedIndex())) {
+                return;
+            }
+            goTo(history.index - 1);
+        }
+
+        void goForward() {
+            if (history.index >= (history.size() - 1)
+                    || !canNavigate(history.get(history.index + 1).url, tabsPane.getSelectedIndex())) {
+                return;
+            }
+            goTo(history.index + 1);
+        }
+
+        void goTo(int historyIndex) {
+            keepDocument();
+            history.index = historyIndex;
+            if (!showKeptDocument(tabsPane.getSelectedIndex())) {
+                String url = history.current().url;
+                urlField.setText(url);
+                urlUpdate(url, tabsPane.getSelectedIndex());
+            }
+            history.trimDocuments();
+        }
+
+        @Override
+        public void hyperlinkUpdate(HyperlinkEvent event) {
+            if (!(event instanceof FormSubmitEvent)) {
+                // else log("data |%s| url |%s| desc |%s| event type |%s|".formatted(((FormSubmitEvent)fse).getData(), fse.getURL(), fse.getDescription(), fse.getEventType()));
+                URL url = event.getURL();
                 String urlString = url.toString();
+                if (prefetcher != null) {
+                    hoverTimer.stop();
+                    if (event.getEventType() == HyperlinkEvent.EventType.ENTERED) {
+                        hoveredUrl = urlString;
+                        hoverTimer.restart();
+                    }
+                }
                 if (event.getEventType() == HyperlinkEvent.EventType.ACTIVATED) {
                     boolean controlDown = event.getInputEvent().isControlDown();
                     log("hyperlinkUpdate url %s controlDown %s".formatted(url, controlDown));
                     if (controlDown) {
                         addTabWithUrl.accept(url);
-                    } else {
+                    } else if (canNavigate(urlString, tabsPane.getSelectedIndex())) {
                         urlField.setText(urlString);
-                        iHistory++;
-                        if (iHistory == history.size()) {
-                            history.add(""); // will be populated by urlUpdate
-                            if (iHistory >= maxHistoryCount) {
-                                history.remove(0);
-                                iHistory--;
-                            }
-                        } else {
-                            // Need to clear future info since following link invalidates it.
-                            history.subList(iHistory + 1, history.size()).clear();
-                        }
+                        keepDocument();
+                        // Following a link invalidates the forward history.
+                        history.push(urlString);
+                        history.trimDocuments();
                         urlUpdate(urlString, tabsPane.getSelectedIndex());
                     }
                 } else if (event.getEventType() == HyperlinkEvent.EventType.ENTERED) {
@@ -1,20 +1,54 @@
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.jsoup.HttpStatusException;
 import org.junit.jupiter.api.Test;
 
+import javax.imageio.ImageIO;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 import javax.swing.*;
 import javax.swing.event.HyperlinkEvent;
+import javax.swing.text.BadLocationException;
+import javax.swing.text.Document;
 import javax.swing.text.Element;
 import java.awt.*;
 import java.awt.event.ActionEvent;
 import java.awt.event.KeyEvent;
 import java.awt.event.MouseEvent;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
 import java.lang.reflect.InvocationTargetException;
+import java.net.InetSocketAddress;
 import java.net.MalformedURLException;
+import java.io.RandomAccessFile;
 import java.net.URL;
+import java.net.http.HttpHeaders;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
 import java.util.prefs.BackingStoreException;
+import java.util.zip.GZIPOutputStream;
 
 import static java.lang.Thread.sleep;
 import static org.junit.jupiter.api.Assertions.*;
@@ -37,11 +71,41 @@ class BasicBrowserTest {
             "java.net.ConnectException: Connection refused: no further information";
     // TODO startup /teardown - create files in temp dir
 
+    // Local server for tests that need a working url. The caller stops it.
+    static HttpServer startServer(String path, HttpHandler handler) throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext(path, handler);
+        server.start();
+        return server;
+    }
+
+    static String serverUrl(HttpServer server, String path) {
+        return "http://localhost:%d%s".formatted(server.getAddress().getPort(), path);
+    }
+
+    // Waits for at most 10 s until condition, checked on the EDT, holds. The checks that follow fail if it did not.
+    static void awaitOnEdt(BooleanSupplier condition) throws InvocationTargetException, InterruptedException {
+        boolean[] holds = {false};
+        for (int i = 0; i < 200; i++) {
+            SwingUtilities.invokeAndWait(() -> holds[0] = condition.getAsBoolean());
+            if (holds[0]) {
+                return;
+            }
+            sleep(50);
+        }
+    }
+
+    // Waits until no tab of browser is loading.
+    static void awaitLoads(BasicBrowser browser) throws InvocationTargetException, InterruptedException {
+        awaitOnEdt(() -> browser.tabs.stream().allMatch(tab -> tab.worker == null));
+    }
+
     @Test
     void testTabs() throws InvocationTargetException, InterruptedException {
         SwingUtilities.invokeAndWait(() -> {
             try {
                 BasicBrowser browser = new BasicBrowser(new MockPreferences(), 2);
+                browser.loadExecutor.executor = Runnable::run; // Loads finish before the assertions.
                 assertEquals(1, browser.tabs.size());
                 browser.closeTab();
                 assertEquals(1, browser.tabs.size());
@@ -94,6 +158,7 @@ class BasicBrowserTest {
         SwingUtilities.invokeAndWait(() -> {
             try {
                 BasicBrowser browser = new BasicBrowser(new MockPreferences(), 2);
+                browser.loadExecutor.executor = Runnable::run; // Loads finish before the assertions.
                 BasicBrowser.HtmlTab tab = browser.tabs.get(0);
                 Component source = tab.editorPane;
                 Element sourceElement = tab.kit.createDefaultDocument().getDefaultRootElement();
@@ -171,14 +236,15 @@ class BasicBrowserTest {
         SwingUtilities.invokeAndWait(() -> {
             try {
                 BasicBrowser browser = new BasicBrowser(new MockPreferences(), 3);
+                browser.loadExecutor.executor = Runnable::run; // Loads finish before the assertions.
                 BasicBrowser.HtmlTab tab = browser.tabs.get(0);
                 Component source = tab.editorPane;
                 Element sourceElement = tab.kit.createDefaultDocument().getDefaultRootElement();
                 String url1 = "http://localhost:8000/abc1";
-                assertLinesMatch(List.of(""), tab.history);
-                assertEquals(0, tab.iHistory);
+                assertLinesMatch(List.of(""), tab.history.urls());
+                assertEquals(0, tab.history.index);
                 tab.goBack();
-                assertEquals(0, tab.iHistory);
+                assertEquals(0, tab.history.index);
                 HyperlinkEvent event = new HyperlinkEvent(source, HyperlinkEvent.EventType.ACTIVATED,
                         new URL(url1), "event", sourceElement,
                         new MouseEvent(source, MouseEvent.MOUSE_CLICKED, System.currentTimeMillis(),
@@ -188,11 +254,11 @@ class BasicBrowserTest {
                 if (worker != null) {
                     worker.run();
                 }
-                assertLinesMatch(List.of("", url1), tab.history);
+                assertLinesMatch(List.of("", url1), tab.history.urls());
                 assertEquals(url1, browser.urlField.getText());
-                assertEquals(1, tab.iHistory);
+                assertEquals(1, tab.history.index);
                 tab.goForward();
-                assertEquals(1, tab.iHistory);
+                assertEquals(1, tab.history.index);
                 String url2 = "http://localhost:8000/abc2";
                 event = new HyperlinkEvent(source, HyperlinkEvent.EventType.ACTIVATED,
                         new URL(url2), "event", sourceElement,
@@ -203,8 +269,8 @@ class BasicBrowserTest {
                 if (worker != null) {
                     worker.run();
                 }
-                assertLinesMatch(List.of("", url1, url2), tab.history);
-                assertEquals(2, tab.iHistory);
+                assertLinesMatch(List.of("", url1, url2), tab.history.urls());
+                assertEquals(2, tab.history.index);
                 assertEquals(url2, browser.urlField.getText());
                 String url3 = "http://localhost:8000/ab3";
                 event = new HyperlinkEvent(source, HyperlinkEvent.EventType.ACTIVATED,
@@ -216,37 +282,37 @@ class BasicBrowserTest {
                 if (worker != null) {
                     worker.run();
                 }
-                assertLinesMatch(List.of(url1, url2, url3), tab.history);
+                assertLinesMatch(List.of(url1, url2, url3), tab.history.urls());
                 assertEquals(url3, browser.urlField.getText());
-                assertEquals(2, tab.iHistory);
+                assertEquals(2, tab.history.index);
                 tab.goBack();
                 worker = tab.worker;
                 if (worker != null) {
                     worker.run();
                 }
                 assertEquals(url2, browser.urlField.getText());
-                assertEquals(1, tab.iHistory);
+                assertEquals(1, tab.history.index);
                 tab.goForward();
                 worker = tab.worker;
                 if (worker != null) {
                     worker.run();
                 }
                 assertEquals(url3, browser.urlField.getText());
-                assertEquals(2, tab.iHistory);
+                assertEquals(2, tab.history.index);
                 tab.goBack();
                 worker = tab.worker;
                 if (worker != null) {
                     worker.run();
                 }
                 assertEquals(url2, browser.urlField.getText());
-                assertEquals(1, tab.iHistory);
+                assertEquals(1, tab.history.index);
                 tab.goBack();
                 worker = tab.worker;
                 if (worker != null) {
                     worker.run();
                 }
                 assertEquals(url1, browser.urlField.getText());
-                assertEquals(0, tab.iHistory);
+                assertEquals(0, tab.history.index);
                 event = new HyperlinkEvent(source, HyperlinkEvent.EventType.ACTIVATED,
                         new URL(url3), "event", sourceElement,
                         new MouseEvent(source, MouseEvent.MOUSE_CLICKED, System.currentTimeMillis(),
@@ -256,9 +322,9 @@ class BasicBrowserTest {
                 if (worker != null) {
                     worker.run();
                 }
-                assertLinesMatch(List.of(url1, url3), tab.history);
+                assertLinesMatch(List.of(url1, url3), tab.history.urls());
                 assertEquals(url3, browser.urlField.getText());
-                assertEquals(1, tab.iHistory);
+                assertEquals(1, tab.history.index);
             } catch (MalformedURLException | BackingStoreException e) {
                 e.printStackTrace();
             }
@@ -329,20 +395,20 @@ class BasicBrowserTest {
                 browser.addTab();
                 browser.addTab();
                 browser.addTab();
-                BasicBrowser.HtmlTab tab1 = browser.tabs.get(1);
-                BasicBrowser.HtmlTab tab2 = browser.tabs.get(2);
-                BasicBrowser.HtmlTab tab3 = browser.tabs.get(3);
+                for (int i = 1; i <= 3; i++) {
+                    browser.tabs.get(i).title = "tab" + i;
+                }
                 browser.closeTab();
                 assertEquals(1, browser.closedTabs.size());
-                assertEquals(tab3, browser.closedTabs.peek());
+                assertEquals("tab3", browser.closedTabs.peek().title);
                 browser.closeTab();
                 assertEquals(2, browser.closedTabs.size());
-                assertEquals(tab2, browser.closedTabs.peek());
-                assertEquals(tab3, browser.closedTabs.peekLast());
+                assertEquals("tab2", browser.closedTabs.peek().title);
+                assertEquals("tab3", browser.closedTabs.peekLast().title);
                 browser.closeTab();
                 assertEquals(2, browser.closedTabs.size());
-                assertEquals(tab1, browser.closedTabs.peek());
-                assertEquals(tab2, browser.closedTabs.peekLast());
+                assertEquals("tab1", browser.closedTabs.peek().title);
+                assertEquals("tab2", browser.closedTabs.peekLast().title);
             } catch (MalformedURLException | BackingStoreException e) {
                 e.printStackTrace();
             }
@@ -355,6 +421,7 @@ class BasicBrowserTest {
         SwingUtilities.invokeAndWait(() -> {
             try {
                 BasicBrowser browser = new BasicBrowser(new MockPreferences(), 2);
+                browser.loadExecutor.executor = Runnable::run; // Loads finish before the assertions.
                 // Open all bookmarks when none
                 assertEquals(1, browser.tabs.size());
                 JComboBox<String> bookmarkBox = browser.bookmarkBoxes.get(0);
@@ -427,7 +494,9 @@ class BasicBrowserTest {
     void testMultipleUrlUpdateError() throws InvocationTargetException, InterruptedException {
         SwingUtilities.invokeAndWait(() -> {
             try {
-                BasicBrowser browser = new BasicBrowser(new MockPreferences(), 2);
+                MockPreferences preferences = new MockPreferences();
+                preferences.putBoolean(BasicBrowser.latestNavigationWinsKey, false);
+                BasicBrowser browser = new BasicBrowser(preferences, 2);
                 BasicBrowser.HtmlTab tab = browser.tabs.get(0);
                 tab.urlUpdate("http://localhost:8000/a", 0);
                 String url = "http://localhost:8001/a";
@@ -444,8 +513,9 @@ class BasicBrowserTest {
         SwingUtilities.invokeAndWait(() -> {
             try {
                 BasicBrowser browser = new BasicBrowser(new MockPreferences(), 2);
+                BasicBrowser.SuggestionService suggestions = browser.suggestions;
                 // No match when there are no bookmarks.
-                assertNull(browser.getTaskToFillUrlWithBookmark("h"));
+                assertNull(suggestions.suggest("h", List.of(), suggestions.generation.get()));
                 // Add bookmark
                 JButton addRemove = browser.addRemove[0];
                 String addRemoveStr = BasicBrowser.addRemoveStrings[0];
@@ -454,15 +524,16 @@ class BasicBrowserTest {
                 browser.tabsPane.setTitleAt(0, "abc1");
                 browser.addOrRemoveEvent(new ActionEvent(addRemove, ActionEvent.ACTION_PERFORMED, addRemoveStr));
                 // Should find match
-                BasicBrowser.FillTask task = browser.getTaskToFillUrlWithBookmark("h");
-                assertEquals(url1, task.bookmark);
-                assertEquals(1, task.caretLocation);
+                long generation = suggestions.generation.get();
+                BasicBrowser.Suggestion suggestion = suggestions.suggest("h", List.of(), generation);
+                assertEquals(url1, suggestion.url);
+                assertEquals(1, suggestion.caretLocation);
                 // Should find match
-                task = browser.getTaskToFillUrlWithBookmark("l");
-                assertEquals(url1, task.bookmark);
-                assertEquals(8, task.caretLocation);
+                suggestion = suggestions.suggest("l", List.of(), generation);
+                assertEquals(url1, suggestion.url);
+                assertEquals(8, suggestion.caretLocation);
                 // Should not find match
-                assertNull(browser.getTaskToFillUrlWithBookmark("lz"));
+                assertNull(suggestions.suggest("lz", List.of(), generation));
             } catch (MalformedURLException | BackingStoreException e) {
                 e.printStackTrace();
             }
@@ -535,4 +606,1714 @@ class BasicBrowserTest {
             }
         }
     }
+
+    @Test
+    void testPageCache() throws InvocationTargetException, InterruptedException {
+        SwingUtilities.invokeAndWait(() -> {
+            try {
+                BasicBrowser.PageCache cache = new BasicBrowser.PageCache(100);
+                BasicBrowser.CachedPage page1 = new BasicBrowser.CachedPage("u1", "t1", "0123456789"); // 28 bytes
+                BasicBrowser.CachedPage page2 = new BasicBrowser.CachedPage("u2", "t2", "0123456789");
+                BasicBrowser.CachedPage page3 = new BasicBrowser.CachedPage("u3", "t3", "0123456789");
+                BasicBrowser.CachedPage page4 = new BasicBrowser.CachedPage("u4", "t4", "0123456789");
+                cache.put(page1);
+                cache.put(page2);
+                cache.put(page3);
+                assertEquals(page1, cache.getFromMemory("u1")); // Makes u2 the least recently used page.
+                cache.put(page4);
+                assertNull(cache.getFromMemory("u2"));
+                assertEquals(page3, cache.getFromMemory("u3"));
+                assertEquals(page4, cache.getFromMemory("u4"));
+                assertEquals(3, cache.hits);
+                assertEquals(1, cache.misses);
+                assertEquals(1, cache.evictions);
+                assertEquals(84, cache.bytes);
+                cache.put(new BasicBrowser.CachedPage("u5", "t5", "x".repeat(100)));
+                assertNull(cache.getFromMemory("u5"));
+                assertEquals(84, cache.bytes);
+                // A cached page is shown without starting a worker.
+                BasicBrowser browser = new BasicBrowser(new MockPreferences(), 2);
+                BasicBrowser.HtmlTab tab = browser.tabs.get(0);
+                String url = "http://localhost:8000/cached";
+                browser.pageCache.put(new BasicBrowser.CachedPage(url, "cached title",
+                        "<html><head></head><body>cached body</body></html>"));
+                browser.urlField.setText(url);
+                browser.urlUpdate(url);
+                assertNull(tab.worker);
+                assertEquals("cached title", tab.getTitle());
+                assertEquals("cached title", browser.tabsPane.getTitleAt(0));
+                assertTrue(tab.editorPane.getText().contains("cached body"));
+                assertEquals(url, tab.getUrl());
+                assertEquals(1, browser.pageCache.hits);
+            } catch (MalformedURLException | BackingStoreException e) {
+                e.printStackTrace();
+            }
+        });
+    }
+
+    volatile BasicBrowser documentBrowser;
+    @Test
+    void testBackgroundDocument() throws InvocationTargetException, InterruptedException {
+        String url = "http://localhost:8000/large";
+        String body = "<html><head></head><body><p>large body</p><p>%s</p></body></html>".formatted(
+                "y ".repeat(BasicBrowser.maxEdtDocumentChars));
+        SwingUtilities.invokeAndWait(() -> {
+            try {
+                documentBrowser = new BasicBrowser(new MockPreferences(), 2);
+                BasicBrowser.HtmlTab tab = documentBrowser.tabs.get(0);
+                Document document = tab.buildDocument("<html><body><p>built</p></body></html>");
+                assertTrue(document.getText(0, document.getLength()).contains("built"));
+                assertNotSame(document, tab.editorPane.getDocument());
+                // A large cached page is parsed by the worker, not on the EDT.
+                documentBrowser.pageCache.put(new BasicBrowser.CachedPage(url, "large title", body));
+                documentBrowser.urlField.setText(url);
+                documentBrowser.urlUpdate(url);
+                assertNotNull(tab.worker);
+                assertFalse(tab.editorPane.getText().contains("large body"));
+            } catch (MalformedURLException | BackingStoreException | BadLocationException e) {
+                e.printStackTrace();
+            }
+        });
+        awaitLoads(documentBrowser);
+        SwingUtilities.invokeAndWait(() -> {
+            BasicBrowser.HtmlTab tab = documentBrowser.tabs.get(0);
+            assertNull(tab.worker);
+            assertEquals("large title", tab.getTitle());
+            assertTrue(tab.editorPane.getText().contains("large body"));
+            assertEquals(BasicBrowser.HtmlTab.estimateBytes(tab.editorPane.getDocument()), tab.documentBytes);
+            assertTrue(documentBrowser.statusField.getText().contains(
+                    BasicBrowser.edtBusyStr.substring(0, 15)));
+        });
+    }
+
+    @Test
+    void testPagedBody() {
+        StringBuilder html = new StringBuilder("<html><head></head><body>");
+        for (int i = 0; i < 100; i++) {
+            html.append("<p>paragraph %d</p>".formatted(i));
+        }
+        html.append("<table><tbody>");
+        for (int i = 0; i < 100; i++) {
+            html.append("<tr><td>row %d</td></tr>".formatted(i));
+        }
+        html.append("</tbody></table><pre>");
+        for (int i = 0; i < 100; i++) {
+            html.append("line %d\n".formatted(i));
+        }
+        html.append("</pre></body></html>");
+        BasicBrowser.PagedBody pages = BasicBrowser.PagedBody.split(html.toString(), 400);
+        assertTrue(pages.parts.size() > 10);
+        assertTrue(pages.parts.get(0).startsWith("<html>"));
+        assertTrue(pages.parts.get(0).contains("paragraph 0"));
+        int tableParts = 0;
+        for (int i = 1; i < pages.parts.size(); i++) {
+            String part = pages.parts.get(i);
+            assertTrue(part.length() < 500);
+            if (part.contains("<td>")) {
+                assertTrue(part.startsWith("<table><tbody>") && part.endsWith("</tbody></table>"));
+                tableParts++;
+            }
+            if (part.contains("line ")) {
+                assertTrue(part.startsWith("<pre>") && part.endsWith("\n</pre>"));
+            }
+        }
+        assertTrue(tableParts > 1);
+        String whole = pages.whole();
+        for (String text : new String[]{"paragraph 99", "row 0", "row 99", "line 0", "line 99"}) {
+            assertTrue(whole.contains(text));
+        }
+        assertTrue(whole.endsWith("</pre></body></html>"));
+        // A line longer than a part is cut, but not inside an entity.
+        String line = "a &amp; b &lt; c ".repeat(400);
+        pages = BasicBrowser.PagedBody.split("<html><head></head><body><p>" + line + "</p></body></html>", 400);
+        assertTrue(pages.parts.size() > 10);
+        StringBuilder joined = new StringBuilder();
+        for (String part : pages.parts) {
+            assertTrue(part.length() < 500);
+            String inner = part.substring(part.indexOf("<p>") + "<p>".length(), part.lastIndexOf("</p>"));
+            assertEquals(org.jsoup.parser.Parser.unescapeEntities(inner, false).length(),
+                    inner.replaceAll("&\\w+;", "x").length(), inner);
+            joined.append(inner);
+        }
+        assertEquals(line, joined.toString());
+    }
+
+    volatile BasicBrowser pagedBrowser;
+    @Test
+    void testPagedDocument() throws InvocationTargetException, InterruptedException {
+        String url = "http://localhost:8000/report";
+        StringBuilder body = new StringBuilder("<html><head></head><body>");
+        for (int i = 0; i < 2000; i++) {
+            body.append("<p>report line %d</p>".formatted(i));
+        }
+        body.append("</body></html>");
+        SwingUtilities.invokeAndWait(() -> {
+            try {
+                MockPreferences preferences = new MockPreferences();
+                preferences.putInt(BasicBrowser.largeDocumentKiloCharsKey, 16);
+                preferences.putInt(BasicBrowser.documentPartKiloCharsKey, 4);
+                pagedBrowser = new BasicBrowser(preferences, 2);
+                pagedBrowser.pageCache.put(new BasicBrowser.CachedPage(url, "report", body.toString()));
+                pagedBrowser.urlField.setText(url);
+                pagedBrowser.urlUpdate(url);
+            } catch (MalformedURLException | BackingStoreException e) {
+                e.printStackTrace();
+            }
+        });
+        awaitLoads(pagedBrowser);
+        SwingUtilities.invokeAndWait(() -> {
+            BasicBrowser.HtmlTab tab = pagedBrowser.tabs.get(0);
+            assertEquals("report", tab.getTitle());
+            assertNotNull(tab.pages);
+            assertTrue(tab.pages.shown < tab.pages.parts.size());
+            String text = tab.editorPane.getText();
+            assertTrue(text.contains("report line 0"));
+            assertFalse(text.contains("report line 1999"));
+            assertTrue(pagedBrowser.statusField.getText().contains(BasicBrowser.partsShownStr.substring(0, 13)));
+            long bytes = tab.documentBytes;
+            assertTrue(bytes > 0);
+            pagedBrowser.moreParts.doClick();
+            assertTrue(tab.documentBytes > bytes);
+            while (tab.showNextPart()) {
+                assertTrue(tab.documentBytes > bytes);
+                bytes = tab.documentBytes;
+            }
+            assertEquals(BasicBrowser.HtmlTab.estimateBytes(tab.editorPane.getDocument()), tab.documentBytes);
+            text = tab.editorPane.getText();
+            assertTrue(text.contains("report line 1000"));
+            assertTrue(text.contains("report line 1999"));
+            assertTrue(text.indexOf("report line 1000") < text.indexOf("report line 1999"));
+        });
+    }
+
+    volatile BasicBrowser imageBrowser;
+    @Test
+    void testImageService() throws IOException, InvocationTargetException, InterruptedException {
+        BufferedImage logo = new BufferedImage(100, 50, BufferedImage.TYPE_INT_RGB);
+        ByteArrayOutputStream png = new ByteArrayOutputStream();
+        ImageIO.write(logo, "png", png);
+        AtomicInteger imageRequests = new AtomicInteger();
+        HttpServer server = startServer("/logo.png", exchange -> {
+            imageRequests.incrementAndGet();
+            exchange.getResponseHeaders().set("Content-Type", "image/png");
+            exchange.sendResponseHeaders(200, png.size());
+            try (OutputStream body = exchange.getResponseBody()) {
+                body.write(png.toByteArray());
+            }
+        });
+        String imageUrl = serverUrl(server, "/logo.png");
+        String missingUrl = serverUrl(server, "/missing.png");
+        // Scaled to the shown size, shared by later requests, and failures are remembered.
+        BasicBrowser.ImageService service = new BasicBrowser.ImageService(
+                BasicBrowser.PageLoadExecutor.create(2, 2, 2), new BasicBrowser.Fetcher(5000, 5000), 2 * 4 * 20 * 10);
+        BufferedImage[] loaded = new BufferedImage[2];
+        CountDownLatch done = new CountDownLatch(2);
+        assertNull(service.request(imageUrl, 20, 0, image -> {
+            loaded[0] = image;
+            done.countDown();
+        }));
+        assertNull(service.request(missingUrl, 0, 0, image -> {
+            loaded[1] = image;
+            done.countDown();
+        }));
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(20, loaded[0].getWidth());
+        assertEquals(10, loaded[0].getHeight());
+        assertNull(loaded[1]);
+        assertSame(loaded[0], service.request(imageUrl, 20, 0, image -> fail()));
+        service.request(missingUrl, 0, 0, image -> assertNull(image));
+        assertEquals(2, service.fetches);
+        assertEquals(1, service.failures);
+        assertEquals(1, service.hits);
+        assertEquals(4 * 20 * 10, service.bytes);
+        // Sizes requested while the image loads share its fetch, and each gets its own scaled image.
+        BufferedImage[] sized = new BufferedImage[2];
+        CountDownLatch bothSized = new CountDownLatch(2);
+        synchronized (service) { // The fetch cannot finish before both requests.
+            service.request(imageUrl, 10, 0, image -> {
+                sized[0] = image;
+                bothSized.countDown();
+            });
+            service.request(imageUrl, 0, 15, image -> {
+                sized[1] = image;
+                bothSized.countDown();
+            });
+        }
+        assertTrue(bothSized.await(5, TimeUnit.SECONDS));
+        assertEquals(3, service.fetches);
+        assertEquals(10, sized[0].getWidth());
+        assertEquals(30, sized[1].getWidth());
+        // The same image on pages in two tabs is fetched once.
+        int imagesBefore = imageRequests.get();
+        String page = "<html><head><title>logo</title></head><body><p>text</p>"
+                + "<img src=\"%s\" width=\"40\" height=\"20\"></body></html>".formatted(imageUrl);
+        server.createContext("/page", exchange -> {
+            byte[] bytes = page.getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/html; charset=UTF-8");
+            exchange.sendResponseHeaders(200, bytes.length);
+            try (OutputStream body = exchange.getResponseBody()) {
+                body.write(bytes);
+            }
+        });
+        String pageUrl = serverUrl(server, "/page");
+        for (int i = 0; i < 2; i++) {
+            int tab = i;
+            SwingUtilities.invokeAndWait(() -> {
+                try {
+                    if (tab == 0) {
+                        imageBrowser = new BasicBrowser(new MockPreferences(), 2);
+                    } else {
+                        imageBrowser.addTab();
+                    }
+                    imageBrowser.urlField.setText(pageUrl + "?" + tab);
+                    imageBrowser.urlUpdate(pageUrl + "?" + tab);
+                } catch (MalformedURLException | BackingStoreException e) {
+                    e.printStackTrace();
+                }
+            });
+            // The first tab fetches the image, the second finds it in the cache.
+            awaitOnEdt(() -> {
+                BasicBrowser.ImageService images = imageBrowser.imageService;
+                synchronized (images) {
+                    return imageBrowser.tabs.get(tab).worker == null
+                            && (tab == 0 ? images.images.size() == 1 : images.hits >= 1);
+                }
+            });
+        }
+        SwingUtilities.invokeAndWait(() -> {
+            assertEquals("logo", imageBrowser.tabs.get(1).getTitle());
+            BasicBrowser.ImageService images = imageBrowser.imageService;
+            assertEquals(1, images.fetches);
+            assertEquals(1, images.images.size());
+            assertTrue(images.hits >= 1);
+            assertEquals(4 * 40 * 20, images.bytes);
+        });
+        assertEquals(imagesBefore + 1, imageRequests.get());
+        server.stop(0);
+    }
+
+    @Test
+    void testFetcher() throws IOException {
+        String page = "<html><head><title>fetched</title></head><body>%s</body></html>".formatted(
+                "<p>compressible</p>".repeat(200));
+        Set<Integer> clientPorts = ConcurrentHashMap.newKeySet();
+        HttpServer server = startServer("/page", exchange -> {
+            clientPorts.add(exchange.getRemoteAddress().getPort());
+            byte[] bytes = page.getBytes(StandardCharsets.UTF_8);
+            String acceptEncoding = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+            if (acceptEncoding != null && acceptEncoding.contains("gzip")) {
+                ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+                try (GZIPOutputStream gzip = new GZIPOutputStream(compressed)) {
+                    gzip.write(bytes);
+                }
+                bytes = compressed.toByteArray();
+                exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+            }
+            exchange.getResponseHeaders().set("Content-Type", "text/html; charset=UTF-8");
+            exchange.sendResponseHeaders(200, bytes.length);
+            try (OutputStream body = exchange.getResponseBody()) {
+                body.write(bytes);
+            }
+        });
+        BasicBrowser.Fetcher fetcher = new BasicBrowser.Fetcher(5000, 5000);
+        String url = serverUrl(server, "/page");
+        for (int i = 0; i < 3; i++) {
+            org.jsoup.nodes.Document document = fetcher.fetchDocument(url);
+            assertEquals("fetched", document.title());
+            assertEquals(200, document.select("p").size());
+        }
+        // Kept alive connections were reused, and the compressed bodies were smaller. The client may still open a
+        // second one when a request starts before the last response has returned its connection to the pool.
+        assertTrue(clientPorts.size() < 3, clientPorts.toString());
+        assertEquals(3, fetcher.requests);
+        assertTrue(fetcher.bytesReceived * 5 < fetcher.bytesDecoded);
+        assertEquals(3L * page.length(), fetcher.bytesDecoded);
+        assertThrows(IOException.class, () -> fetcher.fetchBytes(url, 100));
+        HttpStatusException notFound = assertThrows(HttpStatusException.class,
+                () -> fetcher.fetchDocument(serverUrl(server, "/missing")));
+        assertEquals(404, notFound.getStatusCode());
+        assertEquals(1, fetcher.errors);
+        server.stop(0);
+        IOException refused = assertThrows(IOException.class, () -> fetcher.fetchDocument(url));
+        assertTrue(refused.toString().startsWith("java.net.ConnectException: Connection refused"));
+        assertEquals(6, fetcher.requests);
+        assertEquals(0, fetcher.http2Responses);
+        assertEquals(2, fetcher.errors);
+        assertEquals(0, fetcher.notModified);
+        // A body that stops after the headers fails after the read timeout instead of blocking the load.
+        CountDownLatch release = new CountDownLatch(1);
+        HttpServer stalled = startServer("/stalled", exchange -> {
+            exchange.getResponseHeaders().set("Content-Type", "text/html; charset=UTF-8");
+            exchange.sendResponseHeaders(200, 0);
+            try (OutputStream body = exchange.getResponseBody()) {
+                body.write("<html><body>".getBytes(StandardCharsets.UTF_8));
+                body.flush();
+                release.await(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            }
+        });
+        BasicBrowser.Fetcher impatient = new BasicBrowser.Fetcher(5000, 500);
+        long start = System.nanoTime();
+        IOException timedOut = assertThrows(IOException.class,
+                () -> impatient.fetchDocument(serverUrl(stalled, "/stalled")));
+        assertEquals(BasicBrowser.readTimedOutStr.formatted(500), timedOut.getMessage());
+        assertTrue(System.nanoTime() - start < 5_000_000_000L);
+        release.countDown();
+        stalled.stop(0);
+    }
+
+    @Test
+    void testQuickSearchWithSpaces() throws IOException {
+        List<String> queries = new CopyOnWriteArrayList<>();
+        HttpServer server = startServer("/search", exchange -> {
+            queries.add(exchange.getRequestURI().getQuery());
+            byte[] bytes = "<html><head><title>results</title></head><body></body></html>".getBytes(
+                    StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/html; charset=UTF-8");
+            exchange.sendResponseHeaders(200, bytes.length);
+            try (OutputStream body = exchange.getResponseBody()) {
+                body.write(bytes);
+            }
+        });
+        String search = serverUrl(server, "/search?q=");
+        BasicBrowser.InputClassifier classifier = new BasicBrowser.InputClassifier(search + " s " + search);
+        BasicBrowser.Fetcher fetcher = new BasicBrowser.Fetcher(5000, 5000);
+        for (String input : new String[]{"s hello world", "a|b \u00e9t\u00e9", "s 100% sure"}) {
+            String url = classifier.translate(input);
+            BasicBrowser.LoadResult result = BasicBrowser.HtmlTab.updaterDoInBackground(fetcher, url, stored -> { });
+            assertEquals("results", result.title, url);
+        }
+        assertEquals(List.of("q=hello world", "q=a|b \u00e9t\u00e9", "q=100% sure"), queries);
+        assertEquals("localhost", BasicBrowser.LoadTimings.hostOf(search + "a b"));
+        server.stop(0);
+    }
+
+    @Test
+    void testFreshness() throws IOException {
+        BasicBrowser.Fetcher fetcher = new BasicBrowser.Fetcher(5000, 5000);
+        long now = BasicBrowser.Fetcher.parseDate("Mon, 02 Jan 2023 00:00:00 GMT");
+        assertTrue(now > 0);
+        assertEquals(0, BasicBrowser.Fetcher.parseDate("0"));
+        String[][] cases = {
+                {"Cache-Control", "public, max-age=100"}, {"Cache-Control", "no-cache"},
+                {"Expires", "Mon, 02 Jan 2023 00:10:00 GMT"}, {"Last-Modified", "Sun, 01 Jan 2023 00:00:00 GMT"},
+                {"Content-Type", "text/html"}, {"Cache-Control", "no-store"}};
+        long[] lifetimes = {100_000, 0, 600_000, 8_640_000, fetcher.defaultFreshMillis, 0};
+        for (int i = 0; i < cases.length; i++) {
+            HttpHeaders headers = HttpHeaders.of(Map.of(cases[i][0], List.of(cases[i][1]),
+                    "Date", List.of("Mon, 02 Jan 2023 00:00:00 GMT")), (name, value) -> true);
+            BasicBrowser.Fetcher.Response response = new BasicBrowser.Fetcher.Response();
+            response.lastModified = headers.firstValue("Last-Modified").orElse(null);
+            fetcher.setFreshness(response, headers, now);
+            assertEquals(now + lifetimes[i], response.expiresMillis, cases[i][1]);
+            assertEquals(i != 5, response.storable);
+        }
+        // Validators are kept in the disk cache.
+        File directory = Files.createTempDirectory("validators").toFile();
+        BasicBrowser.DiskCache cache = BasicBrowser.DiskCache.open(directory, 1 << 20);
+        BasicBrowser.CachedPage page = new BasicBrowser.CachedPage("http://a.com/", "title", "body");
+        page.etag = "\"v1\"";
+        page.expiresMillis = now;
+        cache.put(page);
+        cache.put(new BasicBrowser.CachedPage("http://b.com/", "title", "body"));
+        BasicBrowser.CachedPage read = cache.get("http://a.com/", 0);
+        assertEquals("\"v1\"", read.etag);
+        assertNull(read.lastModified);
+        assertEquals(now, read.expiresMillis);
+        assertFalse(read.isFresh(now));
+        assertNull(cache.get("http://b.com/", 0).etag);
+        cache.close();
+        for (File file : directory.listFiles()) {
+            assertTrue(file.delete());
+        }
+        assertTrue(directory.delete());
+    }
+
+    volatile BasicBrowser revalidationBrowser;
+    @Test
+    void testRevalidation() throws IOException, InvocationTargetException, InterruptedException {
+        AtomicInteger version = new AtomicInteger(1);
+        AtomicInteger fullResponses = new AtomicInteger();
+        AtomicInteger notModifiedResponses = new AtomicInteger();
+        HttpHandler handler = exchange -> {
+            String etag = "\"v%d\"".formatted(version.get());
+            boolean fresh = exchange.getRequestURI().getPath().equals("/fresh");
+            exchange.getResponseHeaders().set("ETag", etag);
+            exchange.getResponseHeaders().set("Cache-Control", fresh ? "max-age=3600" : "max-age=0");
+            if (etag.equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+                notModifiedResponses.incrementAndGet();
+                exchange.sendResponseHeaders(304, -1);
+                exchange.close();
+                return;
+            }
+            fullResponses.incrementAndGet();
+            byte[] bytes = "<html><head><title>dashboard</title></head><body><p>version %d</p></body></html>"
+                    .formatted(version.get()).getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/html; charset=UTF-8");
+            exchange.sendResponseHeaders(200, bytes.length);
+            try (OutputStream body = exchange.getResponseBody()) {
+                body.write(bytes);
+            }
+        };
+        HttpServer server = startServer("/dashboard", handler);
+        server.createContext("/fresh", handler);
+        String dashboard = serverUrl(server, "/dashboard");
+        String fresh = serverUrl(server, "/fresh");
+        String[] steps = {dashboard, dashboard, "v2", dashboard, fresh, fresh, "reload"};
+        int[][] expected = {{1, 0}, {1, 1}, null, {2, 1}, {3, 1}, {3, 1}, {3, 2}};
+        for (int i = 0; i < steps.length; i++) {
+            String step = steps[i];
+            if (step.equals("v2")) {
+                version.set(2);
+                continue;
+            }
+            SwingUtilities.invokeAndWait(() -> {
+                try {
+                    if (revalidationBrowser == null) {
+                        revalidationBrowser = new BasicBrowser(new MockPreferences(), 2);
+                    }
+                    if (step.equals("reload")) {
+                        revalidationBrowser.reload.doClick();
+                    } else {
+                        revalidationBrowser.urlField.setText(step);
+                        revalidationBrowser.urlUpdate(step);
+                    }
+                } catch (MalformedURLException | BackingStoreException e) {
+                    e.printStackTrace();
+                }
+            });
+            awaitLoads(revalidationBrowser);
+            assertEquals(expected[i][0], fullResponses.get(), step);
+            assertEquals(expected[i][1], notModifiedResponses.get(), step);
+            SwingUtilities.invokeAndWait(() -> {
+                BasicBrowser.HtmlTab tab = revalidationBrowser.tabs.get(0);
+                assertEquals("dashboard", tab.getTitle());
+                assertTrue(tab.editorPane.getText().contains("version " + version.get()));
+            });
+        }
+        assertEquals(2, revalidationBrowser.fetcher.notModified);
+        server.stop(0);
+    }
+
+    @Test
+    void testLoadBudget() throws IOException {
+        HttpServer server = startServer("/", exchange -> {
+            String path = exchange.getRequestURI().getPath();
+            String type = path.equals("/image") ? "image/png" : "text/html; charset=UTF-8";
+            String paragraphs = "<p>paragraph</p>".repeat(path.equals("/small") ? 10 : 200);
+            byte[] bytes = "<html><head><title>budget</title></head><body>%s</body></html>".formatted(
+                    path.equals("/chunked") || path.equals("/declared") ? paragraphs.repeat(20) : paragraphs)
+                    .getBytes(StandardCharsets.UTF_8);
+            if (path.equals("/slow")) {
+                try {
+                    sleep(3000);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+            exchange.getResponseHeaders().set("Content-Type", type);
+            exchange.sendResponseHeaders(200, path.equals("/chunked") ? 0 : bytes.length);
+            try (OutputStream body = exchange.getResponseBody()) {
+                body.write(bytes);
+            } catch (IOException e) {
+                // The client stopped reading.
+            }
+        });
+        BasicBrowser.Fetcher fetcher = new BasicBrowser.Fetcher(5000, 5000);
+        fetcher.budget = new BasicBrowser.LoadBudget(16 << 10, 1000, 100);
+        List<BasicBrowser.CachedPage> stored = new LinkedList<>();
+        String small = serverUrl(server, "/small");
+        assertEquals("budget", BasicBrowser.HtmlTab.updaterDoInBackground(fetcher, small, stored::add).title);
+        String[][] cases = {
+                {"/chunked", BasicBrowser.bodyTooLargeStr.formatted(16)},
+                {"/declared", BasicBrowser.bodyTooLargeStr.formatted(16)},
+                {"/image", BasicBrowser.notPageStr.formatted("image/png")},
+                {"/many", BasicBrowser.tooManyElementsStr.formatted(100)},
+                {"/slow", BasicBrowser.tooSlowStr.formatted(1.0)}};
+        for (String[] c : cases) {
+            String url = serverUrl(server, c[0]);
+            long t0 = System.nanoTime();
+            BasicBrowser.LoadResult result = BasicBrowser.HtmlTab.updaterDoInBackground(fetcher, url, stored::add);
+            assertEquals(BasicBrowser.loadBudgetStr.formatted(url, c[1]), result.message);
+            assertTrue(System.nanoTime() - t0 < 2_500_000_000L, c[0]);
+            assertFalse(Thread.currentThread().isInterrupted());
+        }
+        assertEquals(1, stored.size());
+        assertEquals(BasicBrowser.loadBudgetStatisticsStr.formatted(2, 1, 1, 1), fetcher.budget.getStatistics());
+        server.stop(0);
+    }
+
+    @Test
+    void testLoadBudgetTrickle() throws IOException {
+        // A body that keeps trickling in never hits the read timeout, and the interrupt of the deadline does not wake
+        // the read. The deadline closes the body instead.
+        HttpServer server = startServer("/trickle", exchange -> {
+            exchange.getResponseHeaders().set("Content-Type", "text/html; charset=UTF-8");
+            exchange.sendResponseHeaders(200, 0);
+            try (OutputStream body = exchange.getResponseBody()) {
+                for (int i = 0; i < 100; i++) {
+                    body.write("<p>paragraph</p>".getBytes(StandardCharsets.UTF_8));
+                    body.flush();
+                    sleep(100);
+                }
+            } catch (IOException | InterruptedException e) {
+                // The client closed the body.
+            }
+        });
+        String url = serverUrl(server, "/trickle");
+        BasicBrowser.Fetcher fetcher = new BasicBrowser.Fetcher(5000, 5000);
+        fetcher.budget = new BasicBrowser.LoadBudget(16 << 10, 1000, 1000);
+        for (boolean streaming : new boolean[]{false, true}) {
+            long t0 = System.nanoTime();
+            BasicBrowser.LoadResult result = BasicBrowser.HtmlTab.updaterDoInBackground(fetcher, url, null,
+                    streaming ? partial -> { } : null, stored -> { }, null);
+            assertEquals(BasicBrowser.loadBudgetStr.formatted(url, BasicBrowser.tooSlowStr.formatted(1.0)),
+                    result.message);
+            assertTrue(System.nanoTime() - t0 < 2_500_000_000L);
+            assertFalse(Thread.currentThread().isInterrupted());
+        }
+        // A superseded load is cancelled from another thread, which closes its body as well.
+        fetcher.budget = new BasicBrowser.LoadBudget(16 << 10, 60_000, 1000);
+        BasicBrowser.LoadBudget.Deadline deadline = new BasicBrowser.LoadBudget.Deadline();
+        ScheduledExecutorService canceller = Executors.newSingleThreadScheduledExecutor();
+        canceller.schedule(deadline::cancel, 500, TimeUnit.MILLISECONDS);
+        long t0 = System.nanoTime();
+        BasicBrowser.LoadResult result = BasicBrowser.HtmlTab.updaterDoInBackground(fetcher, url, null, null,
+                stored -> { }, null, deadline);
+        assertEquals("", result.body);
+        assertTrue(result.message.contains(url));
+        assertTrue(System.nanoTime() - t0 < 2_500_000_000L);
+        canceller.shutdown();
+        server.stop(0);
+    }
+
+    static void awaitDownload(BasicBrowser.DownloadManager.Download download) throws InterruptedException {
+        for (int i = 0; i < 200 && download.getState() == BasicBrowser.DownloadManager.Download.State.DOWNLOADING;
+                i++) {
+            sleep(50);
+        }
+    }
+
+    @Test
+    void testDownloads() throws IOException, InterruptedException {
+        byte[] data = new byte[3 << 20];
+        new Random(7).nextBytes(data);
+        List<String> ranges = new LinkedList<>();
+        AtomicInteger broken = new AtomicInteger(1);
+        CountDownLatch held = new CountDownLatch(1);
+        HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.createContext("/", exchange -> {
+            String path = exchange.getRequestURI().getPath();
+            String range = path.equals("/plain.bin") ? null : exchange.getRequestHeaders().getFirst("Range");
+            int first = 0;
+            int last = data.length - 1;
+            if (range != null) {
+                synchronized (ranges) {
+                    ranges.add(path + " " + range);
+                }
+                String[] bounds = range.substring("bytes=".length()).split("-", -1);
+                first = Integer.parseInt(bounds[0]);
+                last = bounds[1].isEmpty() ? last : Integer.parseInt(bounds[1]);
+                exchange.getResponseHeaders().set("Content-Range",
+                        "bytes %d-%d/%d".formatted(first, last, data.length));
+            }
+            int length = last - first + 1;
+            boolean cut = path.equals("/broken.zip") && broken.get() == 1;
+            exchange.getResponseHeaders().set("Content-Type", "application/zip");
+            exchange.sendResponseHeaders(range == null ? 200 : 206, cut ? 0 : length);
+            try (OutputStream body = exchange.getResponseBody()) {
+                if (path.equals("/held.pdf") && last == data.length - 1 && first > 0) {
+                    body.write(data, first, length - 65536);
+                    body.flush();
+                    held.await(10, TimeUnit.SECONDS);
+                    body.write(data, last + 1 - 65536, 65536);
+                } else {
+                    body.write(data, first, cut ? length / 2 : length);
+                }
+            } catch (IOException | InterruptedException e) {
+                // The client stopped reading, or the response was cut short on purpose.
+            }
+        });
+        server.start();
+        File directory = Files.createTempDirectory("downloads").toFile();
+        BasicBrowser.Fetcher fetcher = new BasicBrowser.Fetcher(5000, 5000);
+        BasicBrowser.DownloadManager manager = new BasicBrowser.DownloadManager(fetcher, directory, 4, 512 << 10);
+
+        // A response that is not a page goes to the download manager, which fetches it in four parallel ranges.
+        String zip = serverUrl(server, "/file.zip");
+        List<BasicBrowser.DownloadManager.Download> started = new LinkedList<>();
+        BasicBrowser.LoadResult result = BasicBrowser.HtmlTab.updaterDoInBackground(fetcher, zip, null, null,
+                page -> fail(), url -> {
+                    started.add(manager.start(url));
+                    return started.get(0).file;
+                });
+        File file = new File(directory, "file.zip");
+        assertEquals(BasicBrowser.downloadStartedStr.formatted(zip, file), result.message);
+        BasicBrowser.DownloadManager.Download download = started.get(0);
+        awaitDownload(download);
+        assertEquals(BasicBrowser.DownloadManager.Download.State.DONE, download.getState());
+        assertArrayEquals(data, Files.readAllBytes(file.toPath()));
+        assertEquals(4, download.positions.length);
+        assertEquals(4, ranges.stream().filter(range -> range.startsWith("/file.zip")).count());
+        assertFalse(download.partFile.exists());
+        assertFalse(download.progressFile.exists());
+        assertTrue(download.describe().startsWith("file.zip: done, 100%"));
+
+        // The same url again goes to a new file, and a server without ranges sends it whole.
+        download = manager.start(zip);
+        awaitDownload(download);
+        assertEquals(new File(directory, "file (1).zip"), download.file);
+        download = manager.start(serverUrl(server, "/plain.bin"));
+        awaitDownload(download);
+        assertEquals(1, download.positions.length);
+        assertArrayEquals(data, Files.readAllBytes(download.file.toPath()));
+
+        // A failed download resumes from where each range stopped.
+        download = manager.start(serverUrl(server, "/broken.zip"));
+        awaitDownload(download);
+        assertEquals(BasicBrowser.DownloadManager.Download.State.FAILED, download.getState());
+        long received = download.received();
+        assertTrue(received > 0 && received < data.length);
+        broken.set(0);
+        synchronized (ranges) {
+            ranges.clear();
+        }
+        manager.resume(download);
+        awaitDownload(download);
+        assertEquals(BasicBrowser.DownloadManager.Download.State.DONE, download.getState());
+        assertArrayEquals(data, Files.readAllBytes(download.file.toPath()));
+        assertFalse(ranges.isEmpty());
+        for (String range : ranges) {
+            assertFalse(range.endsWith("=0-"), range);
+        }
+
+        // A stopped download keeps its part file, which a later run resumes.
+        String pdf = serverUrl(server, "/held.pdf");
+        download = manager.start(pdf);
+        // Opening the link again while it downloads does not start a second writer of the same file.
+        assertSame(download, manager.start(pdf));
+        assertTrue(manager.isListed(download.file));
+        for (int i = 0; i < 100 && download.received() == 0; i++) {
+            sleep(50);
+        }
+        manager.stop(download);
+        awaitDownload(download);
+        held.countDown();
+        assertEquals(BasicBrowser.DownloadManager.Download.State.STOPPED, download.getState(), download.error);
+        assertTrue(download.partFile.exists());
+        assertTrue(download.progressFile.exists());
+        // A file written under its name in the meantime is kept, and the resumed download gets the next name.
+        Files.writeString(download.file.toPath(), "kept");
+        BasicBrowser.DownloadManager restarted = new BasicBrowser.DownloadManager(fetcher, directory, 4, 512 << 10);
+        BasicBrowser.DownloadManager.Download resumed = restarted.start(pdf);
+        assertEquals(download.partFile, resumed.partFile);
+        assertTrue(resumed.received() > 0);
+        awaitDownload(resumed);
+        assertEquals(BasicBrowser.DownloadManager.Download.State.DONE, resumed.getState());
+        assertEquals(new File(directory, "held (1).pdf"), resumed.file);
+        assertArrayEquals(data, Files.readAllBytes(resumed.file.toPath()));
+        assertEquals("kept", Files.readString(download.file.toPath()));
+        assertEquals(BasicBrowser.downloadStatisticsStr.formatted(5, 1, 4, 1), manager.getStatistics());
+        server.stop(0);
+        for (File left : directory.listFiles()) {
+            assertTrue(left.delete());
+        }
+        assertTrue(directory.delete());
+    }
+
+    // Whether every image requested from service has arrived or failed.
+    static boolean imagesLoaded(BasicBrowser.ImageService service) {
+        synchronized (service) {
+            return service.loading.isEmpty();
+        }
+    }
+
+    volatile BasicBrowser lazyBrowser;
+    @Test
+    void testLazyImages() throws IOException, InvocationTargetException, InterruptedException {
+        BufferedImage thumbnail = new BufferedImage(80, 80, BufferedImage.TYPE_INT_RGB);
+        ByteArrayOutputStream png = new ByteArrayOutputStream();
+        ImageIO.write(thumbnail, "png", png);
+        AtomicInteger imageRequests = new AtomicInteger();
+        HttpServer server = startServer("/thumb.png", exchange -> {
+            imageRequests.incrementAndGet();
+            exchange.getResponseHeaders().set("Content-Type", "image/png");
+            exchange.sendResponseHeaders(200, png.size());
+            try (OutputStream body = exchange.getResponseBody()) {
+                body.write(png.toByteArray());
+            }
+        });
+        String imageUrl = serverUrl(server, "/thumb.png");
+        // A request that has not started is dropped when canceled.
+        BasicBrowser.PageLoadExecutor executor = BasicBrowser.PageLoadExecutor.create(1, 1, 1);
+        CountDownLatch release = new CountDownLatch(1);
+        executor.submit("http://busy.com/", () -> {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            }
+        });
+        BasicBrowser.ImageService service = new BasicBrowser.ImageService(executor,
+                new BasicBrowser.Fetcher(5000, 5000), 1 << 20);
+        java.util.function.Consumer<BufferedImage> listener = image -> fail();
+        assertNull(service.request(imageUrl, 0, 0, listener));
+        service.cancel(imageUrl, 0, 0, listener);
+        assertEquals(1, service.cancels);
+        assertEquals(0, service.fetches);
+        assertTrue(service.loading.isEmpty());
+        release.countDown();
+        // Only the images near the viewport are loaded, none before the tab is laid out, more when scrolling.
+        StringBuilder page = new StringBuilder("<html><head><title>thumbnails</title></head><body>");
+        for (int i = 0; i < 60; i++) {
+            page.append("<p><img src=\"%s?%d\" width=\"80\" height=\"80\"></p>".formatted(imageUrl, i));
+        }
+        page.append("</body></html>");
+        String url = "http://localhost:8000/thumbnails";
+        SwingUtilities.invokeAndWait(() -> {
+            try {
+                MockPreferences preferences = new MockPreferences();
+                preferences.putBoolean(BasicBrowser.lazyImagesKey, true);
+                lazyBrowser = new BasicBrowser(preferences, 2);
+                lazyBrowser.pageCache.put(new BasicBrowser.CachedPage(url, "thumbnails", page.toString()));
+                lazyBrowser.urlField.setText(url);
+                lazyBrowser.urlUpdate(url);
+            } catch (MalformedURLException | BackingStoreException e) {
+                e.printStackTrace();
+            }
+        });
+        awaitLoads(lazyBrowser);
+        assertEquals(0, imageRequests.get());
+        SwingUtilities.invokeAndWait(() -> {
+            BasicBrowser.HtmlTab tab = lazyBrowser.tabs.get(0);
+            tab.scrollPane.setSize(400, 300);
+            tab.scrollPane.doLayout();
+            tab.scrollPane.getViewport().doLayout();
+            tab.viewportChanged();
+        });
+        awaitOnEdt(() -> imagesLoaded(lazyBrowser.imageService));
+        int nearTop = imageRequests.get();
+        assertTrue(nearTop > 0 && nearTop < 20);
+        SwingUtilities.invokeAndWait(() -> {
+            BasicBrowser.HtmlTab tab = lazyBrowser.tabs.get(0);
+            JViewport viewport = tab.scrollPane.getViewport();
+            viewport.setViewPosition(new Point(0, tab.editorPane.getHeight() - viewport.getHeight()));
+        });
+        awaitOnEdt(() -> imagesLoaded(lazyBrowser.imageService));
+        SwingUtilities.invokeAndWait(() -> {
+            assertTrue(imageRequests.get() > nearTop);
+            assertTrue(imageRequests.get() < 40);
+            assertTrue(lazyBrowser.imageService.images.containsKey(
+                    BasicBrowser.ImageService.keyOf(imageUrl + "?59", 80, 80)));
+        });
+        server.stop(0);
+    }
+
+    volatile BasicBrowser diskCacheBrowser;
+    @Test
+    void testDiskCache() throws IOException, InvocationTargetException, InterruptedException {
+        File directory = Files.createTempDirectory("diskCache").toFile();
+        BasicBrowser.DiskCache cache = BasicBrowser.DiskCache.open(directory, 1 << 20);
+        for (int i = 0; i < 3; i++) {
+            cache.put(new BasicBrowser.CachedPage("http://a.com/" + i, "title " + i, "body " + i));
+        }
+        cache.put(new BasicBrowser.CachedPage("http://a.com/1", "title 1", "new body 1"));
+        assertEquals("new body 1", cache.get("http://a.com/1", 0).body);
+        assertNull(cache.get("http://a.com/3", 0));
+        assertNull(cache.get("http://a.com/2", System.currentTimeMillis() + 1000)); // Too old.
+        cache.close();
+        // Reopen after a crash that tore the last record.
+        File segment = new File(directory, BasicBrowser.DiskCache.segmentFileFormat.formatted(0));
+        long validLength = segment.length();
+        try (RandomAccessFile file = new RandomAccessFile(segment, "rw")) {
+            file.seek(validLength);
+            file.writeInt(0x42425052);
+            file.writeInt(1000);
+            file.write(new byte[20]);
+        }
+        cache = BasicBrowser.DiskCache.open(directory, 1 << 20);
+        assertEquals(validLength, segment.length());
+        assertEquals(3, cache.liveCount);
+        assertEquals("title 0", cache.get("http://a.com/0", 0).title);
+        assertEquals("new body 1", cache.get("http://a.com/1", 0).body);
+        cache.close();
+        // A lost index is rebuilt from the segments.
+        assertTrue(new File(directory, BasicBrowser.DiskCache.indexFileName).delete());
+        cache = BasicBrowser.DiskCache.open(directory, 1 << 20);
+        assertEquals("body 2", cache.get("http://a.com/2", 0).body);
+        // Compaction keeps the newest pages within the size limit.
+        cache.maxBytes = 4000;
+        for (int i = 0; i < 100; i++) {
+            cache.put(new BasicBrowser.CachedPage("http://b.com/" + i, "title " + i, "x".repeat(100)));
+        }
+        assertTrue(cache.compactions > 0);
+        assertTrue(cache.totalBytes() <= cache.maxBytes);
+        assertEquals("title 99", cache.get("http://b.com/99", 0).title);
+        assertNull(cache.get("http://b.com/0", 0));
+        assertNull(cache.get("http://a.com/0", 0));
+        // A write interrupted by a cancelled load closes the channel, which the next write opens again.
+        cache.maxBytes = 1 << 20;
+        Thread.currentThread().interrupt();
+        cache.put(new BasicBrowser.CachedPage("http://c.com/0", "title 0", "body 0"));
+        assertTrue(Thread.interrupted());
+        cache.put(new BasicBrowser.CachedPage("http://c.com/1", "title 1", "body 1"));
+        assertEquals("body 1", cache.get("http://c.com/1", 0).body);
+        // Serve an old saved copy when the url cannot be loaded.
+        BasicBrowser.DiskCache diskCache = cache;
+        String url = "http://localhost:8000/offline";
+        BasicBrowser.CachedPage page = new BasicBrowser.CachedPage(url, "offline title",
+                "<html><head></head><body>offline body</body></html>");
+        page.storedMillis = 1000;
+        diskCache.putLater(page);
+        try {
+            diskCache.writer.submit(() -> { }).get();
+        } catch (ExecutionException e) {
+            fail(e);
+        }
+        assertEquals("offline title", diskCache.get(url, 0).title);
+        SwingUtilities.invokeAndWait(() -> {
+            try {
+                diskCacheBrowser = new BasicBrowser(new MockPreferences(), 2);
+                diskCacheBrowser.pageCache.diskCache = diskCache;
+                diskCacheBrowser.pageCache.diskMaxAgeMillis = 60_000;
+                diskCacheBrowser.urlField.setText(url);
+                diskCacheBrowser.urlUpdate(url);
+                assertNotNull(diskCacheBrowser.tabs.get(0).worker);
+            } catch (MalformedURLException | BackingStoreException e) {
+                e.printStackTrace();
+            }
+        });
+        awaitLoads(diskCacheBrowser);
+        SwingUtilities.invokeAndWait(() -> {
+            BasicBrowser.HtmlTab tab = diskCacheBrowser.tabs.get(0);
+            assertEquals("offline title", tab.getTitle());
+            assertTrue(tab.editorPane.getText().contains("offline body"));
+            assertTrue(diskCacheBrowser.statusField.getText().startsWith(
+                    BasicBrowser.offlineCopyStr.formatted(url, "").replaceAll("\\.$", "")));
+        });
+        cache.close();
+        for (File file : directory.listFiles()) {
+            assertTrue(file.delete());
+        }
+        assertTrue(directory.delete());
+    }
+
+    volatile BasicBrowser streamingBrowser;
+    @Test
+    void testStreamingLoad() throws IOException, InvocationTargetException, InterruptedException {
+        String firstPart = "<html><head><title>streamed</title></head><body><p>first part</p>"
+                + "<p>%s</p>".formatted("x".repeat(2 * BasicBrowser.streamingFirstChars));
+        String secondPart = "<p>second part</p></body></html>";
+        CountDownLatch firstPartShown = new CountDownLatch(1);
+        HttpServer server = startServer("/slow", exchange -> {
+            exchange.getResponseHeaders().set("Content-Type", "text/html; charset=UTF-8");
+            exchange.sendResponseHeaders(200, 0);
+            try (OutputStream body = exchange.getResponseBody()) {
+                body.write(firstPart.getBytes(StandardCharsets.UTF_8));
+                body.flush();
+                firstPartShown.await(10, TimeUnit.SECONDS);
+                body.write(secondPart.getBytes(StandardCharsets.UTF_8));
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            }
+        });
+        String url = serverUrl(server, "/slow");
+        SwingUtilities.invokeAndWait(() -> {
+            try {
+                streamingBrowser = new BasicBrowser(new MockPreferences(), 2);
+                streamingBrowser.urlField.setText(url);
+                streamingBrowser.urlUpdate(url);
+            } catch (MalformedURLException | BackingStoreException e) {
+                e.printStackTrace();
+            }
+        });
+        awaitOnEdt(() -> streamingBrowser.tabs.get(0).editorPane.getText().contains("first part"));
+        SwingUtilities.invokeAndWait(() -> {
+            String text = streamingBrowser.tabs.get(0).editorPane.getText();
+            assertTrue(text.contains("first part"));
+            assertFalse(text.contains("second part"));
+        });
+        firstPartShown.countDown();
+        awaitLoads(streamingBrowser);
+        SwingUtilities.invokeAndWait(() -> {
+            BasicBrowser.HtmlTab tab = streamingBrowser.tabs.get(0);
+            assertEquals("streamed", tab.getTitle());
+            assertTrue(tab.editorPane.getText().contains("second part"));
+            assertTrue(streamingBrowser.statusField.getText().contains(
+                    BasicBrowser.firstContentStr.substring(0, 15)));
+        });
+        server.stop(0);
+        // Without a charset in the response, the one declared by the page is used.
+        byte[] latin = "<html><head><meta charset=\"windows-1252\"></head><body><p>caf\u00e9</p></body></html>"
+                .getBytes(Charset.forName("windows-1252"));
+        org.jsoup.nodes.Document sniffed = BasicBrowser.HtmlTab.streamDocument(new ByteArrayInputStream(latin), null,
+                url, partial -> { }, new BasicBrowser.LoadResult(url));
+        assertEquals("caf\u00e9", sniffed.select("p").text());
+        byte[] marked = "\ufeff<p>caf\u00e9</p>".getBytes(StandardCharsets.UTF_8);
+        sniffed = BasicBrowser.HtmlTab.streamDocument(new ByteArrayInputStream(marked), null, url, partial -> { },
+                new BasicBrowser.LoadResult(url));
+        assertEquals("<p>caf\u00e9</p>", sniffed.body().html());
+    }
+
+    @Test
+    void testLoadTimings() {
+        BasicBrowser.LoadTimings timings = new BasicBrowser.LoadTimings();
+        for (int i = 1; i <= 100; i++) {
+            BasicBrowser.LoadResult result = new BasicBrowser.LoadResult("http://a.com/" + i);
+            result.totalNanos = i * 1_000_000L;
+            result.parseNanos = i;
+            timings.record(result);
+        }
+        assertEquals(50_000_000L, timings.percentile("a.com", "total", 0.5));
+        assertEquals(95_000_000L, timings.percentile("a.com", "total", 0.95));
+        assertEquals(99, timings.percentile("a.com", "parse", 0.99));
+        assertEquals(-1, timings.percentile("b.com", "total", 0.5));
+        assertEquals(-1, timings.percentile("a.com", "unknown", 0.5));
+        // Only the latest loadSamplesPerHost loads count.
+        for (int i = 0; i < BasicBrowser.loadSamplesPerHost; i++) {
+            BasicBrowser.LoadResult result = new BasicBrowser.LoadResult("http://a.com/");
+            result.totalNanos = 7;
+            timings.record(result);
+        }
+        assertEquals(7, timings.percentile("a.com", "total", 0.99));
+        for (int i = 0; i <= BasicBrowser.maxLoadTimingHosts; i++) {
+            timings.record(new BasicBrowser.LoadResult("http://host%d.com/".formatted(i)));
+        }
+        assertEquals(-1, timings.percentile("a.com", "total", 0.5));
+        assertEquals(0, timings.percentile("host1.com", "total", 0.5));
+        String report = timings.report();
+        assertTrue(report.indexOf("host64.com") < report.indexOf("host63.com"));
+        assertTrue(report.contains("<td>p95</td>"));
+        assertEquals(BasicBrowser.loadTimingsStatisticsStr.formatted(100 + BasicBrowser.loadSamplesPerHost
+                + BasicBrowser.maxLoadTimingHosts + 1, BasicBrowser.maxLoadTimingHosts), timings.getStatistics());
+    }
+
+    volatile BasicBrowser timingsBrowser;
+    @Test
+    void testLoadPhases() throws IOException, InvocationTargetException, InterruptedException {
+        String page = "<html><head><title>timed</title></head><body>%s<img src='a.png'><img src='b.svg'></body></html>"
+                .formatted("<p>paragraph</p>".repeat(100));
+        HttpServer server = startServer("/timed", exchange -> {
+            try {
+                sleep(300);
+            } catch (InterruptedException e) {
+                return;
+            }
+            byte[] bytes = page.getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/html; charset=UTF-8");
+            exchange.sendResponseHeaders(200, bytes.length);
+            try (OutputStream body = exchange.getResponseBody()) {
+                body.write(bytes);
+            }
+        });
+        String url = serverUrl(server, "/timed");
+        BasicBrowser.Fetcher fetcher = new BasicBrowser.Fetcher(5000, 5000);
+        BasicBrowser.LoadResult result = BasicBrowser.HtmlTab.updaterDoInBackground(fetcher, url, stored -> { });
+        assertEquals("timed", result.title);
+        assertTrue(result.fetched);
+        assertTrue(result.connectNanos >= 300_000_000L);
+        assertTrue(result.totalNanos >= result.connectNanos + result.transferNanos + result.parseNanos
+                + result.cleanNanos + result.imagesNanos + result.serializeNanos);
+        assertTrue(result.parseNanos > 0 && result.cleanNanos > 0 && result.serializeNanos > 0);
+        assertEquals(page.length(), result.bytes);
+        assertEquals(107, result.elements);
+        assertEquals(2, result.images);
+        SwingUtilities.invokeAndWait(() -> {
+            try {
+                timingsBrowser = new BasicBrowser(new MockPreferences(), 2);
+                timingsBrowser.urlField.setText(url);
+                timingsBrowser.urlUpdate(url);
+            } catch (MalformedURLException | BackingStoreException e) {
+                e.printStackTrace();
+            }
+        });
+        awaitOnEdt(() -> timingsBrowser.statusField.getText().contains(BasicBrowser.phasesStr.substring(0, 23)));
+        SwingUtilities.invokeAndWait(() -> {
+            String status = timingsBrowser.statusField.getText();
+            assertTrue(status.contains(BasicBrowser.phasesStr.substring(0, 23)), status);
+            assertTrue(status.contains("(107 elements)"), status);
+            assertTrue(timingsBrowser.loadTimings.percentile("localhost", "connect", 0.5) >= 300_000_000L);
+            assertTrue(timingsBrowser.loadTimings.percentile("localhost", "show", 0.5) > 0);
+            timingsBrowser.loadTimingsButton.doClick();
+            assertEquals(2, timingsBrowser.tabs.size());
+            assertEquals(BasicBrowser.loadTimingsStr, timingsBrowser.tabs.get(1).getTitle());
+            assertTrue(timingsBrowser.tabs.get(1).editorPane.getText().contains("localhost"));
+        });
+        server.stop(0);
+    }
+
+    volatile BasicBrowser metricsBrowser;
+    @Test
+    void testBrowserMetrics() throws Exception {
+        HttpServer server = startServer("/metrics", exchange -> {
+            byte[] bytes = "<html><head><title>metrics</title></head><body><p>watched</p></body></html>"
+                    .getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/html; charset=UTF-8");
+            exchange.sendResponseHeaders(200, bytes.length);
+            try (OutputStream body = exchange.getResponseBody()) {
+                body.write(bytes);
+            }
+        });
+        String url = serverUrl(server, "/metrics");
+        String name = BasicBrowser.metricsObjectName + ",name=test";
+        SwingUtilities.invokeAndWait(() -> {
+            try {
+                metricsBrowser = new BasicBrowser(new MockPreferences(), 2);
+                metricsBrowser.registerMetrics(name);
+                metricsBrowser.urlField.setText(url);
+                metricsBrowser.urlUpdate(url);
+            } catch (MalformedURLException | BackingStoreException e) {
+                e.printStackTrace();
+            }
+        });
+        awaitLoads(metricsBrowser);
+        SwingUtilities.invokeAndWait(() -> {
+            assertEquals("metrics", metricsBrowser.tabs.get(0).getTitle());
+            metricsBrowser.addTab();
+            metricsBrowser.metrics.refresh();
+        });
+        // Read from this thread as JConsole would, through the MBean server.
+        MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+        ObjectName objectName = new ObjectName(name);
+        assertEquals(2, mbeanServer.getAttribute(objectName, "Tabs"));
+        assertEquals(0, mbeanServer.getAttribute(objectName, "LoadsInFlight"));
+        assertEquals(1L, mbeanServer.getAttribute(objectName, "LoadsTimed"));
+        assertTrue((Double) mbeanServer.getAttribute(objectName, "LoadMillisP95") > 0);
+        assertTrue((Long) mbeanServer.getAttribute(objectName, "BytesReceived") > 0);
+        assertTrue((Long) mbeanServer.getAttribute(objectName, "HeapUsedMegabytes") > 0);
+        assertEquals(1L, mbeanServer.getAttribute(objectName, "PageCacheMisses"));
+        String[] statistics = (String[]) mbeanServer.getAttribute(objectName, "Statistics");
+        assertTrue(Arrays.stream(statistics).anyMatch(line -> line.startsWith("page cache entries 1")));
+        assertEquals(1, mbeanServer.invoke(objectName, "hibernateTabs", null, null));
+        mbeanServer.invoke(objectName, "clearCaches", null, null);
+        statistics = (String[]) mbeanServer.getAttribute(objectName, "Statistics");
+        assertTrue(Arrays.stream(statistics).anyMatch(line -> line.startsWith("page cache entries 0")));
+        SwingUtilities.invokeAndWait(() -> assertTrue(metricsBrowser.tabs.get(0).hibernated));
+        mbeanServer.unregisterMBean(objectName);
+        server.stop(0);
+    }
+
+    @Test
+    void testPageLoadExecutor() throws InterruptedException {
+        BasicBrowser.PageLoadExecutor executor = BasicBrowser.PageLoadExecutor.create(3, 2, 2);
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch allStarted = new CountDownLatch(4);
+        AtomicInteger maxRunningA = new AtomicInteger();
+        AtomicInteger runningA = new AtomicInteger();
+        Runnable taskA = () -> {
+            maxRunningA.accumulateAndGet(runningA.incrementAndGet(), Math::max);
+            allStarted.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            }
+            runningA.decrementAndGet();
+        };
+        Runnable taskB = () -> {
+            allStarted.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            }
+        };
+        assertEquals(0, executor.submit("http://a.com/1", taskA));
+        assertEquals(0, executor.submit("http://a.com/2", taskA));
+        assertEquals(1, executor.submit("http://a.com/3", taskA)); // Host limit.
+        assertEquals(0, executor.submit("http://b.com/1", taskB));
+        assertEquals(2, executor.submit("http://b.com/2", taskB)); // Global limit.
+        Runnable removed = () -> fail("removed task ran");
+        assertEquals(3, executor.submit("http://c.com/1", removed));
+        executor.remove(removed);
+        assertEquals(2, executor.getQueueDepth());
+        release.countDown();
+        assertTrue(allStarted.await(5, TimeUnit.SECONDS));
+        for (int i = 0; i < 100 && executor.running > 0; i++) {
+            sleep(50);
+        }
+        assertEquals(0, executor.running);
+        assertEquals(0, executor.getQueueDepth());
+        assertEquals(5, executor.started);
+        assertEquals(3, executor.maxQueueDepth);
+        assertTrue(maxRunningA.get() <= 2);
+        // Background loads have their own slots for a host, so they neither wait for nor take those of page loads.
+        BasicBrowser.PageLoadExecutor shared = BasicBrowser.PageLoadExecutor.create(4, 1, 1);
+        CountDownLatch hold = new CountDownLatch(1);
+        Runnable held = () -> {
+            try {
+                hold.await();
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            }
+        };
+        assertEquals(0, shared.submit("http://a.com/page", held));
+        shared.submitBackground("http://a.com/image1", held);
+        shared.submitBackground("http://a.com/image2", held);
+        synchronized (shared) {
+            assertEquals(2, shared.running);
+            assertEquals(1, shared.backgroundQueue.size());
+        }
+        assertEquals(1, shared.submit("http://a.com/next", held));
+        hold.countDown();
+    }
+
+    volatile BasicBrowser latestWinsBrowser;
+    @Test
+    void testLatestNavigationWins() throws IOException, InvocationTargetException, InterruptedException {
+        List<String> requested = new java.util.concurrent.CopyOnWriteArrayList<>();
+        HttpServer server = startServer("/", exchange -> {
+            String path = exchange.getRequestURI().getPath();
+            requested.add(path);
+            byte[] body = "<html><head><title>%s</title></head><body>%s</body></html>".formatted(path, path)
+                    .getBytes(StandardCharsets.UTF_8);
+            try {
+                sleep(500);
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            }
+            exchange.getResponseHeaders().set("Content-Type", "text/html");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            } catch (IOException e) {
+                // The client cancelled the load.
+            }
+        });
+        String cachedUrl = serverUrl(server, "/cached");
+        SwingUtilities.invokeAndWait(() -> {
+            try {
+                latestWinsBrowser = new BasicBrowser(new MockPreferences(), 5);
+                BasicBrowser.HtmlTab tab = latestWinsBrowser.tabs.get(0);
+                latestWinsBrowser.pageCache.put(new BasicBrowser.CachedPage(cachedUrl, "cached",
+                        "<html><head></head><body>cached body</body></html>"));
+                tab.urlUpdate(serverUrl(server, "/slow"), 0);
+                var slowWorker = tab.worker;
+                assertNotNull(slowWorker);
+                // A cached page replaces the running load right away.
+                tab.urlUpdate(cachedUrl, 0);
+                assertTrue(slowWorker.isCancelled());
+                assertNull(tab.worker);
+                assertEquals("cached", tab.getTitle());
+                assertEquals(cachedUrl, tab.getUrl());
+                // Rapid navigations only load the last one.
+                tab.urlUpdate(serverUrl(server, "/first"), 0);
+                tab.urlUpdate(serverUrl(server, "/skipped"), 0);
+                tab.urlUpdate(serverUrl(server, "/last"), 0);
+                assertEquals(3, tab.supersededCount);
+            } catch (MalformedURLException | BackingStoreException e) {
+                e.printStackTrace();
+            }
+        });
+        awaitLoads(latestWinsBrowser);
+        SwingUtilities.invokeAndWait(() -> {
+            BasicBrowser.HtmlTab tab = latestWinsBrowser.tabs.get(0);
+            assertNull(tab.worker);
+            assertEquals("/last", tab.getTitle());
+            assertEquals(serverUrl(server, "/last"), tab.getUrl());
+            assertTrue(tab.editorPane.getText().contains("/last"));
+        });
+        assertFalse(requested.contains("/skipped"));
+        assertTrue(requested.contains("/last"));
+        server.stop(0);
+    }
+
+    volatile BasicBrowser prefetchBrowser;
+    @Test
+    void testPrefetch() throws IOException, InvocationTargetException, InterruptedException {
+        AtomicInteger requests = new AtomicInteger();
+        HttpServer server = startServer("/", exchange -> {
+            requests.incrementAndGet();
+            String path = exchange.getRequestURI().getPath();
+            byte[] body = "<html><head><title>%s</title></head><body>%s</body></html>".formatted(path, path)
+                    .getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/html");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        String url = serverUrl(server, "/hovered");
+        SwingUtilities.invokeAndWait(() -> {
+            try {
+                MockPreferences preferences = new MockPreferences();
+                preferences.putBoolean(BasicBrowser.prefetchKey, true);
+                preferences.putInt(BasicBrowser.prefetchHostIntervalMillisKey, 60_000);
+                prefetchBrowser = new BasicBrowser(preferences, 2);
+                BasicBrowser.HtmlTab tab = prefetchBrowser.tabs.get(0);
+                Component source = tab.editorPane;
+                Element sourceElement = tab.kit.createDefaultDocument().getDefaultRootElement();
+                tab.hyperlinkUpdate(new HyperlinkEvent(source, HyperlinkEvent.EventType.ENTERED, new URL(url),
+                        "event", sourceElement, new MouseEvent(source, MouseEvent.MOUSE_MOVED,
+                        System.currentTimeMillis(), 0, 50, 50, 0, false)));
+                assertEquals(url, prefetchBrowser.statusField.getText());
+            } catch (MalformedURLException | BackingStoreException e) {
+                e.printStackTrace();
+            }
+        });
+        awaitOnEdt(() -> {
+            synchronized (prefetchBrowser.prefetcher) {
+                return prefetchBrowser.prefetcher.completed == 1;
+            }
+        });
+        SwingUtilities.invokeAndWait(() -> {
+            try {
+                BasicBrowser.HtmlTab tab = prefetchBrowser.tabs.get(0);
+                BasicBrowser.Prefetcher prefetcher = prefetchBrowser.prefetcher;
+                assertEquals(1, prefetcher.completed);
+                // The host was just prefetched from, so another prefetch is skipped.
+                prefetcher.prefetch(serverUrl(server, "/other"));
+                assertEquals(1, prefetcher.skipped);
+                Component source = tab.editorPane;
+                Element sourceElement = tab.kit.createDefaultDocument().getDefaultRootElement();
+                tab.hyperlinkUpdate(new HyperlinkEvent(source, HyperlinkEvent.EventType.ACTIVATED, new URL(url),
+                        "event", sourceElement, new MouseEvent(source, MouseEvent.MOUSE_CLICKED,
+                        System.currentTimeMillis(), 0, 50, 50, 1, false)));
+                assertNull(tab.worker);
+                assertEquals("/hovered", tab.getTitle());
+                assertEquals(1, prefetcher.used);
+                assertTrue(prefetchBrowser.pageCache.containsInMemory(url));
+                assertEquals(1, requests.get());
+                assertTrue(prefetcher.getStatistics().endsWith(", failed 0, used 1, expired 0, hit rate 100%"));
+                // Only the most recently prefetched hosts are remembered.
+                for (int i = 0; i < 2 * BasicBrowser.maxPrefetchHosts; i++) {
+                    prefetcher.lastHostMillis.put("host" + i, 0L);
+                }
+                assertEquals(BasicBrowser.maxPrefetchHosts, prefetcher.lastHostMillis.size());
+                assertTrue(prefetcher.lastHostMillis.containsKey("host" + (2 * BasicBrowser.maxPrefetchHosts - 1)));
+            } catch (MalformedURLException e) {
+                e.printStackTrace();
+            }
+        });
+        server.stop(0);
+    }
+
+    @Test
+    void testDeferredTabs() throws InvocationTargetException, InterruptedException {
+        SwingUtilities.invokeAndWait(() -> {
+            try {
+                MockPreferences preferences = new MockPreferences();
+                preferences.putBoolean(BasicBrowser.deferBackgroundTabsKey, true);
+                preferences.putInt(BasicBrowser.deferredTabLookAheadKey, 1);
+                BasicBrowser browser = new BasicBrowser(preferences, 2);
+                JComboBox<String> bookmarkBox = browser.bookmarkBoxes.get(0);
+                JButton addRemove = browser.addRemove[0];
+                String addRemoveStr = BasicBrowser.addRemoveStrings[0];
+                String[] urls = new String[4];
+                for (int i = 0; i < urls.length; i++) {
+                    urls[i] = "http://localhost:8000/deferred" + i;
+                    browser.urlField.setText(urls[i]);
+                    browser.tabsPane.setTitleAt(0, "title " + i);
+                    browser.addOrRemoveEvent(new ActionEvent(addRemove, ActionEvent.ACTION_PERFORMED, addRemoveStr));
+                }
+                bookmarkBox.setSelectedIndex(bookmarkBox.getItemCount() - 1); // will trigger openBookmarkEvent(openAll)
+                assertEquals(5, browser.tabs.size());
+                assertEquals(4, browser.iCurrentTab);
+                assertEquals(urls[3], browser.urlField.getText());
+                assertNotNull(browser.tabs.get(4).worker);
+                for (int i = 1; i < 4; i++) {
+                    BasicBrowser.HtmlTab tab = browser.tabs.get(i);
+                    assertNull(tab.worker);
+                    assertEquals(urls[i - 1], tab.deferredUrl);
+                    assertEquals(urls[i - 1], tab.getUrl());
+                    assertEquals("title " + (i - 1), browser.tabsPane.getTitleAt(i));
+                }
+                // Selecting a deferred tab loads it and the next one.
+                browser.tabsPane.setSelectedIndex(1);
+                assertEquals(urls[0], browser.urlField.getText());
+                assertNull(browser.tabs.get(1).deferredUrl);
+                assertNotNull(browser.tabs.get(1).worker);
+                assertNull(browser.tabs.get(2).deferredUrl);
+                assertEquals(urls[2], browser.tabs.get(3).deferredUrl);
+                // Links opened with control pressed go to a deferred background tab.
+                browser.tabs.get(1).addTabWithUrl.accept(new URL(urls[0] + "/link"));
+                assertEquals(6, browser.tabs.size());
+                assertEquals(1, browser.iCurrentTab);
+                assertEquals(urls[0] + "/link", browser.tabs.get(5).deferredUrl);
+            } catch (MalformedURLException | BackingStoreException e) {
+                e.printStackTrace();
+            }
+        });
+    }
+
+    @Test
+    void testHibernation() throws InvocationTargetException, InterruptedException {
+        SwingUtilities.invokeAndWait(() -> {
+            try {
+                MockPreferences preferences = new MockPreferences();
+                preferences.putInt(BasicBrowser.hibernateHeapPercentKey, 0);
+                BasicBrowser browser = new BasicBrowser(preferences, 2);
+                String url = "http://localhost:8000/hibernate";
+                String body = "<html><head></head><body>hibernate</body></html>";
+                browser.pageCache.put(new BasicBrowser.CachedPage(url, "hibernate title", body));
+                BasicBrowser.HtmlTab tab = browser.tabs.get(0);
+                browser.urlField.setText(url);
+                tab.urlUpdate(url, 0);
+                long bytes = BasicBrowser.HtmlTab.estimateBytes(tab.editorPane.getDocument());
+                assertEquals(bytes, tab.documentBytes);
+                browser.addTab();
+                assertEquals(1, browser.iCurrentTab);
+                BasicBrowser.TabHibernator hibernator = browser.hibernator;
+                assertFalse(browser.hibernationTimer.isRunning()); // Only checked when hibernateTabs is set.
+                // Idle rule.
+                hibernator.check(browser.tabs, browser.iCurrentTab);
+                assertFalse(tab.hibernated);
+                tab.lastActiveMillis = 0;
+                hibernator.check(browser.tabs, browser.iCurrentTab);
+                assertTrue(tab.hibernated);
+                assertFalse(browser.tabs.get(1).hibernated);
+                assertEquals(0, tab.editorPane.getDocument().getLength());
+                assertEquals(url, tab.getUrl());
+                assertEquals("hibernate title", browser.tabsPane.getTitleAt(0));
+                assertEquals(1, hibernator.hibernations);
+                assertEquals(bytes, hibernator.reclaimedBytes);
+                assertEquals(url, tab.restoreUrl);
+                // A navigation that supersedes the restoring one does not get its position.
+                tab.updaterDone(url + "/other", 0, BasicBrowser.LoadResult.of(url + "/other", "other", body, 0));
+                assertNull(tab.restorePosition);
+                assertNull(tab.restoreUrl);
+                tab.restorePosition = new Point(0, 0);
+                tab.restoreUrl = url;
+                browser.tabsPane.setSelectedIndex(0);
+                assertFalse(tab.hibernated);
+                assertEquals(1, hibernator.restores);
+                assertEquals(url, browser.urlField.getText());
+                assertTrue(tab.editorPane.getText().contains("hibernate"));
+                // Heap rule.
+                hibernator.idleMillis = 0;
+                browser.tabsPane.setSelectedIndex(1);
+                hibernator.check(browser.tabs, browser.iCurrentTab);
+                assertFalse(tab.hibernated);
+                hibernator.check(browser.tabs, browser.iCurrentTab, 1);
+                assertTrue(tab.hibernated);
+                assertEquals(2, hibernator.hibernations);
+                // Closing the selected tab selects the hibernated tab, which is restored.
+                browser.closeTab();
+                assertFalse(tab.hibernated);
+                assertTrue(browser.statusField.getText().endsWith(
+                        BasicBrowser.hibernationStatisticsStr.formatted(0, 2, 2, hibernator.reclaimedBytes >> 10)));
+            } catch (MalformedURLException | BackingStoreException e) {
+                e.printStackTrace();
+            }
+        });
+    }
+
+    @Test
+    void testClosedTabSnapshots() throws InvocationTargetException, InterruptedException {
+        SwingUtilities.invokeAndWait(() -> {
+            try {
+                MockPreferences preferences = new MockPreferences();
+                preferences.putInt(BasicBrowser.maxClosedTabsKey, 300);
+                BasicBrowser browser = new BasicBrowser(preferences, 2);
+                String url = "http://localhost:8000/closed";
+                String body = "<html><head></head><body>closed page</body></html>";
+                browser.pageCache.put(new BasicBrowser.CachedPage(url, "closed title", body));
+                browser.addTab();
+                browser.tabs.get(1).history = new BasicBrowser.TabHistory(new String[]{url, url + "/next"}, 0, 2, null);
+                browser.urlField.setText(url);
+                browser.urlUpdate(url);
+                browser.closeTab();
+                BasicBrowser.ClosedTab closed = browser.closedTabs.peek();
+                assertArrayEquals(new String[]{url, url + "/next"}, closed.history);
+                assertEquals(0, closed.iHistory);
+                assertEquals("closed title", closed.title);
+                assertEquals(body, closed.getPage()); // The loaded html, not the document serialized again.
+                browser.pageCache.clear();
+                browser.openLastClosedTab();
+                BasicBrowser.HtmlTab tab = browser.tabs.get(1);
+                assertNull(tab.worker);
+                assertEquals(url, browser.urlField.getText());
+                assertEquals("closed title", browser.tabsPane.getTitleAt(1));
+                assertTrue(tab.editorPane.getText().contains("closed page"));
+                tab.goForward();
+                assertEquals(url + "/next", browser.urlField.getText());
+                tab.tryStoppingUpdater();
+                // Many closed tabs are kept when configured to.
+                for (int i = 0; i < 250; i++) {
+                    browser.addTab();
+                    browser.closeTab();
+                }
+                assertEquals(250, browser.closedTabs.size());
+                assertNull(browser.closedTabs.peek().compressedPage);
+            } catch (MalformedURLException | BackingStoreException e) {
+                e.printStackTrace();
+            }
+        });
+    }
+
+    @Test
+    void testBookmarkIndex() {
+        Random random = new Random(1);
+        String[] hosts = {"a.com", "ab.com", "b.org", "www.a.com", "localhost:8000"};
+        LinkedList<JComboBox<String>> boxes = new LinkedList<>();
+        for (int iBox = 0; iBox < 3; iBox++) {
+            JComboBox<String> box = new JComboBox<>();
+            for (int i = 0; i < 300; i++) {
+                String scheme = random.nextBoolean() ? "http://" : "https://";
+                box.addItem(scheme + hosts[random.nextInt(hosts.length)] + "/" + random.nextInt(50));
+            }
+            box.addItem(BasicBrowser.openAllStr);
+            boxes.add(box);
+        }
+        BasicBrowser.BookmarkIndex index = new BasicBrowser.BookmarkIndex(boxes);
+        String[] queries = {"", "h", "http://", "https://a", "a.com/1", "ab", "b.org/4", "www.", "localhost:8000/2",
+                "x", "https://zzz", "http://a.com/49"};
+        for (String query : queries) {
+            String expected = null;
+            search:
+            for (var box : boxes) {
+                for (int i = box.getItemCount() - 2; i >= 0; i--) {
+                    if (box.getItemAt(i).startsWith(query)) {
+                        expected = box.getItemAt(i);
+                        break search;
+                    }
+                }
+            }
+            assertEquals(expected, index.find(query), query);
+        }
+        assertNull(new BasicBrowser.BookmarkIndex(new LinkedList<>()).find("http"));
+        // Large lists.
+        JComboBox<String> large = new JComboBox<>();
+        String[] items = new String[100_001];
+        for (int i = 0; i < 100_000; i++) {
+            items[i] = "https://host" + i + ".com/page";
+        }
+        items[100_000] = BasicBrowser.openAllStr;
+        large.setModel(new DefaultComboBoxModel<>(items));
+        index = new BasicBrowser.BookmarkIndex(List.of(large));
+        assertEquals("https://host99999.com/page", index.find("https://host9"));
+        assertEquals("https://host12345.com/page", index.find("https://host12345."));
+        assertNull(index.find("https://host100000"));
+    }
+
+    @Test
+    void testInputClassifier() {
+        String[] inputs = {"", " ", "a", "a.b", ".ab", "a.", "a:8000", "localhost:8000/a", "a b.c", "a.b c",
+                "a.-", "a..b", "x.y/z?q=1", "http://a.com", "https://a.com", "C:\\file.htm", "w test", "w  test",
+                "w", "a\tb.c", "_._", "\u00e9.com", "w.x y"};
+        for (String input : inputs) {
+            assertEquals(input.matches("\\S+[.:]\\w+/?\\S*"), BasicBrowser.isUrl(input), input);
+        }
+        BasicBrowser.InputClassifier classifier = new BasicBrowser.InputClassifier(
+                "http://d.com/q= w http://w.com/q= g http://g.com/q=");
+        assertEquals("http://d.com/q= w http://w.com/q= g http://g.com/q=", classifier.toPreference());
+        assertEquals(List.of("", "http://a.com", "C:\\file.htm", "http://a.b", "http://w.com/q=test",
+                        "http://w.com/q= test", "http://g.com/q=x y", "http://d.com/q=wx y", "http://d.com/q=w"),
+                classifier.translateAll(List.of(" ", "http://a.com", "C:\\file.htm", "a.b", "w test", "w  test",
+                        "g x y", "wx y", "w")));
+        assertArrayEquals(new BasicBrowser.InputClassifier.Kind[]{BasicBrowser.InputClassifier.Kind.EMPTY,
+                        BasicBrowser.InputClassifier.Kind.LOCATION, BasicBrowser.InputClassifier.Kind.HOST,
+                        BasicBrowser.InputClassifier.Kind.SEARCH},
+                BasicBrowser.InputClassifier.classifyAll(List.of("", "https://a.com", "a.com", "a com")));
+    }
+
+    volatile BasicBrowser suggestionBrowser;
+    @Test
+    void testSuggestions() throws InvocationTargetException, InterruptedException {
+        String url1 = "http://localhost:8000/abc1";
+        String url2 = "http://localhost:8000/abc2";
+        String visited = "http://localhost:8000/visited";
+        SwingUtilities.invokeAndWait(() -> {
+            try {
+                suggestionBrowser = new BasicBrowser(new MockPreferences(), 2);
+                BasicBrowser.SuggestionService suggestions = suggestionBrowser.suggestions;
+                JButton addRemove = suggestionBrowser.addRemove[0];
+                String addRemoveStr = BasicBrowser.addRemoveStrings[0];
+                for (String url : new String[]{url1, url2}) {
+                    suggestionBrowser.urlField.setText(url);
+                    suggestionBrowser.addOrRemoveEvent(
+                            new ActionEvent(addRemove, ActionEvent.ACTION_PERFORMED, addRemoveStr));
+                }
+                List<String> tokens = List.of("w");
+                long generation = suggestions.generation.get();
+                // Without visits the newest bookmark wins, as with the bookmark-only completion.
+                BasicBrowser.Suggestion suggestion = suggestions.suggest("l", tokens, generation);
+                assertEquals(url2, suggestion.url);
+                assertEquals(8, suggestion.caretLocation);
+                // Visits rank a bookmark higher.
+                suggestionBrowser.history.recordVisit(url1);
+                suggestionBrowser.history.flush();
+                assertEquals(url1, suggestions.suggest("l", tokens, generation).url);
+                // Visited urls that are not bookmarks.
+                for (int i = 0; i < 3; i++) {
+                    suggestionBrowser.history.recordVisit(visited);
+                }
+                suggestionBrowser.history.flush();
+                assertEquals(visited, suggestions.suggest("localhost:8000/v", tokens, generation).url);
+                assertEquals(visited, suggestions.suggest("l", tokens, generation).url);
+                // Quick search tokens.
+                assertEquals("w ", suggestions.suggest("w", tokens, generation).url);
+                for (int i = 0; i < 3; i++) {
+                    suggestionBrowser.history.recordVisit("wiki.org");
+                }
+                suggestionBrowser.history.flush();
+                assertEquals("wiki.org", suggestions.suggest("w", tokens, generation).url);
+                suggestions.recordSearch("w ");
+                suggestions.recordSearch("w ");
+                suggestions.recordSearch("w ");
+                assertEquals("w ", suggestions.suggest("w", tokens, generation).url);
+                assertNull(suggestions.suggest("z", tokens, generation));
+                // A newer request makes the computation stale.
+                suggestions.generation.incrementAndGet();
+                assertNull(suggestions.suggest("l", tokens, generation));
+                // Typing only fills the url field after the debounce, with the freshest text.
+                suggestionBrowser.urlField.setText("");
+                suggestionBrowser.urlField.setText("l");
+                suggestionBrowser.urlField.setText("lo");
+                assertEquals("lo", suggestionBrowser.urlField.getText());
+            } catch (MalformedURLException | BackingStoreException e) {
+                e.printStackTrace();
+            }
+        });
+        awaitOnEdt(() -> suggestionBrowser.urlField.getText().equals(visited));
+        SwingUtilities.invokeAndWait(() -> {
+            JTextField urlField = suggestionBrowser.urlField;
+            assertEquals(visited, urlField.getText());
+            assertEquals("http://lo".length(), urlField.getSelectionStart());
+            assertEquals(visited.length(), urlField.getSelectionEnd());
+            assertEquals(1, suggestionBrowser.suggestions.shown);
+        });
+    }
+
+    @Test
+    void testHistoryStore() throws IOException {
+        File directory = Files.createTempDirectory("history").toFile();
+        BasicBrowser.HistoryStore history = new BasicBrowser.HistoryStore(3);
+        history.open(directory);
+        history.recordVisit("http://a.com/1");
+        history.recordVisit("http://a.com/2");
+        history.recordVisit("http://a.com/1");
+        history.recordTitle("http://a.com/1", "first");
+        history.recordVisit("http://b.com/search");
+        history.flush();
+        assertEquals(2, history.get("http://a.com/1").visits);
+        assertEquals("first", history.get("http://a.com/1").title);
+        assertEquals(List.of("http://a.com/1", "http://a.com/2"), urls(history.withPrefix("http://a.com/", 10)));
+        assertEquals(List.of("http://a.com/1"), urls(history.withPrefix("http://a.com/", 1)));
+        assertEquals(List.of("http://b.com/search", "http://a.com/1"), urls(history.containing("s", 10)));
+        assertEquals(List.of("http://b.com/search", "http://a.com/1", "http://a.com/2"), urls(history.mostRecent(10)));
+        assertEquals("http://a.com/1", history.mostFrequent(1).get(0).url);
+        // The least recently visited url is evicted.
+        history.recordVisit("http://c.com");
+        history.flush();
+        assertNull(history.get("http://a.com/2"));
+        assertEquals(1, history.evictions);
+        history.close();
+        // Reopen after a crash that tore the last record.
+        File logFile = new File(directory, BasicBrowser.HistoryStore.logFileName);
+        long validLength = logFile.length();
+        try (RandomAccessFile file = new RandomAccessFile(logFile, "rw")) {
+            file.seek(validLength);
+            file.writeInt(BasicBrowser.HistoryStore.recordMagic);
+            file.writeInt(1000);
+            file.write(new byte[20]);
+        }
+        history = new BasicBrowser.HistoryStore(3);
+        history.open(directory);
+        assertEquals(validLength, logFile.length());
+        assertEquals(List.of("http://c.com", "http://b.com/search", "http://a.com/1"), urls(history.mostRecent(10)));
+        assertEquals(2, history.get("http://a.com/1").visits);
+        assertEquals("first", history.get("http://a.com/1").title);
+        // Many visits keep the index and the log bounded.
+        for (int i = 0; i < 4500; i++) {
+            history.recordVisit("http://d.com/" + (i % 3));
+        }
+        history.flush();
+        assertEquals(3, history.mostRecent(10).size());
+        assertTrue(history.compactions > 0);
+        assertTrue(history.logRecords <= BasicBrowser.HistoryStore.minCompactionRecords + 1);
+        assertEquals(1500, history.get("http://d.com/2").visits);
+        history.close();
+        history = new BasicBrowser.HistoryStore(3);
+        history.open(directory);
+        assertEquals(1500, history.get("http://d.com/2").visits);
+        history.close();
+    }
+
+    static List<String> urls(List<BasicBrowser.HistoryEntry> entries) {
+        return entries.stream().map(entry -> entry.url).collect(java.util.stream.Collectors.toList());
+    }
+
+    @Test
+    void testBackForwardCache() throws InvocationTargetException, InterruptedException {
+        SwingUtilities.invokeAndWait(() -> {
+            try {
+                MockPreferences preferences = new MockPreferences();
+                preferences.putInt(BasicBrowser.backForwardCacheEntriesKey, 1);
+                BasicBrowser browser = new BasicBrowser(preferences, 100);
+                String[] urls = new String[3];
+                for (int i = 0; i < urls.length; i++) {
+                    urls[i] = "http://localhost:8000/bf" + i;
+                    browser.pageCache.put(new BasicBrowser.CachedPage(urls[i], "title " + i,
+                            "<html><head></head><body>page " + i + "</body></html>"));
+                }
+                BasicBrowser.HtmlTab tab = browser.tabs.get(0);
+                BasicBrowser.BackForwardCache cache = browser.backForwardCache;
+                browser.urlField.setText(urls[0]);
+                browser.urlUpdate(urls[0]);
+                Document document0 = tab.editorPane.getDocument();
+                for (int i = 1; i < urls.length; i++) {
+                    Component source = tab.editorPane;
+                    Element sourceElement = tab.kit.createDefaultDocument().getDefaultRootElement();
+                    tab.hyperlinkUpdate(new HyperlinkEvent(source, HyperlinkEvent.EventType.ACTIVATED,
+                            new URL(urls[i]), "event", sourceElement, new MouseEvent(source,
+                            MouseEvent.MOUSE_CLICKED, System.currentTimeMillis(), 0, 50, 50, 1, false)));
+                    assertNotSame(document0, tab.editorPane.getDocument());
+                }
+                assertEquals(List.of(urls[0], urls[1], urls[2]), tab.history.urls());
+                // Only the nearest document is kept per tab.
+                assertEquals(2, cache.stores);
+                assertEquals(1, cache.items.size());
+                assertNull(tab.history.get(0).document);
+                Document document2 = tab.editorPane.getDocument();
+                tab.goBack();
+                assertEquals(1, cache.hits);
+                assertEquals(urls[1], browser.urlField.getText());
+                assertEquals("title 1", browser.tabsPane.getTitleAt(0));
+                assertEquals(BasicBrowser.backForwardCacheHitStr.formatted(urls[1]), browser.statusField.getText());
+                tab.goForward();
+                assertSame(document2, tab.editorPane.getDocument());
+                assertEquals(2, cache.hits);
+                assertTrue(tab.editorPane.getText().contains("page 2"));
+                // The first page is no longer cached and is parsed again from the page cache.
+                tab.goBack();
+                assertEquals(3, cache.hits);
+                tab.goBack();
+                assertEquals(3, cache.hits);
+                assertEquals(urls[0], browser.urlField.getText());
+                assertTrue(tab.editorPane.getText().contains("page 0"));
+                // The memory budget evicts the least recently stored documents of all tabs.
+                BasicBrowser.BackForwardCache small = new BasicBrowser.BackForwardCache(3, 100);
+                BasicBrowser.HistoryItem item1 = new BasicBrowser.HistoryItem(urls[1]);
+                BasicBrowser.HistoryItem item2 = new BasicBrowser.HistoryItem(urls[2]);
+                assertTrue(small.store(item1, document0, new Point(), 60));
+                assertTrue(small.store(item2, document2, new Point(), 30));
+                assertFalse(small.store(new BasicBrowser.HistoryItem(urls[0]), document0, new Point(), 101));
+                assertTrue(small.store(new BasicBrowser.HistoryItem(urls[0]), document0, new Point(), 30));
+                assertNull(item1.document);
+                assertSame(document2, item2.document);
+                assertEquals(1, small.evictions);
+                assertEquals(60, small.bytes);
+            } catch (MalformedURLException | BackingStoreException e) {
+                e.printStackTrace();
+            }
+        });
+    }
+
+    @Test
+    void testTabHistoryRing() {
+        BasicBrowser.TabHistory history = new BasicBrowser.TabHistory(new String[]{""}, 0, 3, null);
+        for (int i = 0; i < 1000; i++) {
+            history.push("u" + i);
+        }
+        assertEquals(List.of("u997", "u998", "u999"), history.urls());
+        assertEquals(2, history.index);
+        history.index = 0;
+        history.push("v");
+        assertEquals(List.of("u997", "v"), history.urls());
+        assertEquals(1, history.index);
+        assertEquals("v", history.current().url);
+    }
 }
\ No newline at end of file
@@ -32,22 +32,28 @@ public class MockPreferences extends Preferences {
 
     @Override
     public void putInt(String key, int value) {
-
+        map.put(key, Integer.toString(value));
     }
 
     @Override
     public int getInt(String key, int def) {
-        return 0;
+        if (!map.containsKey(key)) {
+            return def;
+        }
+        return Integer.parseInt(map.get(key));
     }
 
     @Override
     public void putLong(String key, long value) {
-
+        map.put(key, Long.toString(value));
     }
 
     @Override
     public long getLong(String key, long def) {
-        return 0;
+        if (!map.containsKey(key)) {
+            return def;
+        }
+        return Long.parseLong(map.get(key));
     }
 
     @Override
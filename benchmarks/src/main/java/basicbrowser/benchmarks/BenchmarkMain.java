@@ -0,0 +1,24 @@
+package basicbrowser.benchmarks;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// Runs JMH like its own main, but writes the results to jmh-result.json unless -rf or -rff say otherwise, so each run
+// leaves a file that can be compared with the one from the previous release.
+public final class BenchmarkMain {
+    static final String resultFile = "jmh-result.json";
+
+    private BenchmarkMain() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        List<String> options = new ArrayList<>(List.of(args));
+        if (!options.contains("-rf")) {
+            options.addAll(0, List.of("-rf", "json"));
+        }
+        if (!options.contains("-rff")) {
+            options.addAll(0, List.of("-rff", resultFile));
+        }
+        org.openjdk.jmh.Main.main(options.toArray(new String[0]));
+    }
+}
@@ -0,0 +1,96 @@
+package basicbrowser.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import javax.swing.JComboBox;
+import javax.swing.SwingUtilities;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Suggesting a completion of the url field from the bookmarks and the history, which runs off the event thread for
+// each key typed in it.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"-Djava.awt.headless=true", "-Xmx2g"})
+public class BookmarkBenchmark {
+    static final int boxes = 3;
+
+    @Param({"100", "10000", "100000"})
+    public int bookmarks;
+
+    Object suggestions;
+    long generation;
+    String[] typed;
+
+    @Setup
+    public void setUp() throws Throwable {
+        ArrayList<String> urls = new ArrayList<>();
+        for (int i = 0; i < bookmarks; i++) {
+            urls.add(url(i));
+        }
+        Collections.shuffle(urls, new Random(4));
+        Throwable[] error = new Throwable[1];
+        SwingUtilities.invokeAndWait(() -> {
+            try {
+                Object browser = Browser.newBrowser.invoke(new MemoryPreferences(), 2);
+                suggestions = Browser.getSuggestions.invoke(browser);
+                generation = ((AtomicLong) Browser.getGeneration.invoke(suggestions)).get();
+                List<JComboBox<String>> bookmarkBoxes = new ArrayList<>();
+                for (int box = 0; box < boxes; box++) {
+                    JComboBox<String> bookmarkBox = new JComboBox<>();
+                    for (int i = box; i < urls.size(); i += boxes) {
+                        bookmarkBox.addItem(urls.get(i));
+                    }
+                    bookmarkBox.addItem("Open All");
+                    bookmarkBoxes.add(bookmarkBox);
+                }
+                Browser.setBookmarkIndex.invoke(suggestions, Browser.bookmarkIndex(bookmarkBoxes));
+            } catch (Throwable e) {
+                error[0] = e;
+            }
+        });
+        if (error[0] != null) {
+            throw error[0];
+        }
+        String url = url(bookmarks / 2);
+        typed = new String[]{
+                "w",
+                url.substring("https://".length(), "https://www.site".length() + 1),
+                url.substring(0, url.length() - 3),
+                url,
+                "www.missing.example.com",
+                "https://www.site",
+        };
+    }
+
+    static String url(int i) {
+        return "https://www.site" + i + ".example.com/page/" + (i * 7919 % 1000);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(6)
+    public void suggest(Blackhole blackhole) throws Throwable {
+        for (String text : typed) {
+            blackhole.consume(Browser.suggest.invoke(suggestions, text, List.of(), generation));
+        }
+    }
+}
@@ -0,0 +1,140 @@
+package basicbrowser.benchmarks;
+
+import javax.swing.JComboBox;
+import javax.swing.JEditorPane;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.prefs.Preferences;
+
+// BasicBrowser is in the unnamed package, which cannot be imported from the named package that JMH needs for its
+// generated code, so its package-private members are reached through method handles. The handles are static final,
+// so the JIT treats them as constants and inlines the calls like direct ones.
+final class Browser {
+    static final Class<?> basicBrowser = type("BasicBrowser");
+    static final Class<?> htmlTab = type("BasicBrowser$HtmlTab");
+    static final Class<?> fetcher = type("BasicBrowser$Fetcher");
+    static final Class<?> loadBudget = type("BasicBrowser$LoadBudget");
+    static final Class<?> loadResult = type("BasicBrowser$LoadResult");
+    static final Class<?> inputClassifier = type("BasicBrowser$InputClassifier");
+    static final Class<?> bookmarkIndex = type("BasicBrowser$BookmarkIndex");
+    static final Class<?> suggestionService = type("BasicBrowser$SuggestionService");
+
+    static final MethodHandle newBrowser = constructor(basicBrowser, Preferences.class, int.class);
+    static final MethodHandle newFetcher = constructor(fetcher, int.class, int.class);
+    static final MethodHandle newLoadBudget = constructor(loadBudget, long.class, long.class, int.class);
+    static final MethodHandle newInputClassifier = constructor(inputClassifier, String.class);
+    static final MethodHandle newBookmarkIndex = constructor(bookmarkIndex, List.class);
+    static final MethodHandle updaterDoInBackground =
+            method(htmlTab, "updaterDoInBackground", fetcher, String.class, Consumer.class);
+    static final MethodHandle clean = method(htmlTab, "clean", org.jsoup.nodes.Document.class);
+    static final MethodHandle translate = method(inputClassifier, "translate", String.class);
+    static final MethodHandle isUrl = method(basicBrowser, "isUrl", String.class);
+    static final MethodHandle suggest =
+            method(suggestionService, "suggest", String.class, List.class, long.class);
+    static final MethodHandle setBudget = setter(fetcher, "budget");
+    static final MethodHandle setBookmarkIndex = setter(suggestionService, "bookmarkIndex");
+    static final MethodHandle getSuggestions = getter(basicBrowser, "suggestions");
+    static final MethodHandle getGeneration = getter(suggestionService, "generation");
+    static final MethodHandle getTabs = getter(basicBrowser, "tabs");
+    static final MethodHandle getEditorPane = getter(htmlTab, "editorPane");
+    static final MethodHandle getTitle = getter(loadResult, "title");
+    static final MethodHandle getMessage = getter(loadResult, "message");
+    static final String defaultQuickSearch = (String) constant(basicBrowser, "defaultQuickSearchStr");
+
+    private Browser() {
+    }
+
+    // A fetcher with the browser's default timeouts whose budget admits pages of up to maxBodyBytes.
+    static Object fetcher(long maxBodyBytes) throws Throwable {
+        Object fetcher = newFetcher.invoke(10_000, 60_000);
+        setBudget.invoke(fetcher, newLoadBudget.invoke(maxBodyBytes, 600_000L, Integer.MAX_VALUE));
+        return fetcher;
+    }
+
+    static Object load(Object fetcher, String url) throws Throwable {
+        Consumer<Object> store = page -> {
+        };
+        return updaterDoInBackground.invoke(fetcher, url, store);
+    }
+
+    // Loads url once and fails if the browser showed a message instead of the page.
+    static void checkLoads(Object fetcher, String url) throws Throwable {
+        Object result = load(fetcher, url);
+        String message = (String) getMessage.invoke(result);
+        if (message != null && !message.isEmpty()) {
+            throw new IllegalStateException(message);
+        }
+    }
+
+    static JEditorPane editorPane(Object browser) throws Throwable {
+        List<?> tabs = (List<?>) getTabs.invoke(browser);
+        return (JEditorPane) getEditorPane.invoke(tabs.get(0));
+    }
+
+    static Object bookmarkIndex(List<JComboBox<String>> boxes) throws Throwable {
+        return newBookmarkIndex.invoke(boxes);
+    }
+
+    private static Class<?> type(String name) {
+        try {
+            return Class.forName(name);
+        } catch (ClassNotFoundException e) {
+            throw new IllegalStateException("BasicBrowser is not on the class path", e);
+        }
+    }
+
+    private static MethodHandle constructor(Class<?> owner, Class<?>... parameterTypes) {
+        try {
+            Constructor<?> constructor = owner.getDeclaredConstructor(parameterTypes);
+            constructor.setAccessible(true);
+            return MethodHandles.lookup().unreflectConstructor(constructor);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static MethodHandle method(Class<?> owner, String name, Class<?>... parameterTypes) {
+        try {
+            Method method = owner.getDeclaredMethod(name, parameterTypes);
+            method.setAccessible(true);
+            return MethodHandles.lookup().unreflect(method);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static Field field(Class<?> owner, String name) throws NoSuchFieldException {
+        Field field = owner.getDeclaredField(name);
+        field.setAccessible(true);
+        return field;
+    }
+
+    private static MethodHandle getter(Class<?> owner, String name) {
+        try {
+            return MethodHandles.lookup().unreflectGetter(field(owner, name));
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static MethodHandle setter(Class<?> owner, String name) {
+        try {
+            return MethodHandles.lookup().unreflectSetter(field(owner, name));
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static Object constant(Class<?> owner, String name) {
+        try {
+            return field(owner, name).get(null);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,153 @@
+package basicbrowser.benchmarks;
+
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+// The pages the benchmarks load and render. A page named name is read from name.html in the directory given by the
+// corpus.dir system property when it is there, so saved pages can be measured with -p page=name. Otherwise the
+// article, wiki and report pages are generated from a fixed seed, so each run and release measures the same bytes.
+final class Corpus {
+    static final String dirProperty = "corpus.dir";
+    static final int articleBytes = 24 << 10;
+    static final int wikiBytes = 1 << 20;
+    static final int reportBytes = 20 << 20;
+
+    private static final String[] words = {"the", "browser", "page", "loads", "quickly", "from", "a", "server",
+            "and", "shows", "its", "text", "with", "links", "to", "other", "pages", "about", "history", "science",
+            "of", "network", "document", "table", "value", "report", "quarter", "growth", "model", "result"};
+
+    private Corpus() {
+    }
+
+    static String page(String name) throws IOException {
+        String dir = System.getProperty(dirProperty);
+        if (dir != null) {
+            Path saved = Path.of(dir, name + ".html");
+            if (Files.exists(saved)) {
+                return Files.readString(saved, StandardCharsets.UTF_8);
+            }
+        }
+        return switch (name) {
+            case "article" -> article(articleBytes);
+            case "wiki" -> wiki(wikiBytes);
+            case "report" -> report(reportBytes);
+            default -> throw new IOException("No page " + name + " in " + dirProperty + " |" + dir + "|");
+        };
+    }
+
+    // Serves bytes at /page.html on a loopback port, because the browser only opens local files by Windows paths.
+    // Without nodelay the server's separate header and body writes wait for delayed acks, adding about 40 ms to each
+    // load. The property is read when the first server is created.
+    static HttpServer serve(byte[] bytes) throws IOException {
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+        HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/page.html", exchange -> {
+            exchange.getResponseHeaders().add("Content-Type", "text/html; charset=utf-8");
+            exchange.sendResponseHeaders(200, bytes.length);
+            try (OutputStream body = exchange.getResponseBody()) {
+                body.write(bytes);
+            }
+        });
+        server.start();
+        return server;
+    }
+
+    static String url(HttpServer server) {
+        return "http://127.0.0.1:" + server.getAddress().getPort() + "/page.html";
+    }
+
+    // A news article: a header, paragraphs with a few links and images, and a footer.
+    static String article(int size) {
+        Random random = new Random(1);
+        StringBuilder html = start("Article");
+        html.append("<header><nav><a href=\"/\">Home</a> <a href=\"/news\">News</a></nav></header>\n<article>\n");
+        html.append("<h1>").append(sentence(random, 8)).append("</h1>\n");
+        for (int i = 0; html.length() < size; i++) {
+            html.append("<p>").append(sentence(random, 40)).append(" <a href=\"/news/").append(i).append("\">")
+                    .append(sentence(random, 3)).append("</a> ").append(sentence(random, 30)).append("</p>\n");
+            if (i % 6 == 5) {
+                html.append("<figure><img src=\"/images/").append(i).append(".png\" alt=\"figure ").append(i)
+                        .append("\"><figcaption>").append(sentence(random, 10)).append("</figcaption></figure>\n");
+            }
+        }
+        return html.append("</article>\n<footer>").append(sentence(random, 12)).append("</footer>\n")
+                .append(end()).toString();
+    }
+
+    // An encyclopedia page: nested sections with lists, info tables, many links, styles and scripts to clean.
+    static String wiki(int size) {
+        Random random = new Random(2);
+        StringBuilder html = start("Wiki");
+        html.append("<style>.infobox { float: right }</style>\n<script>var config = {};</script>\n");
+        html.append("<div id=\"content\"><h1>").append(sentence(random, 4)).append("</h1>\n");
+        for (int i = 0; html.length() < size; i++) {
+            html.append("<div class=\"section\"><h2 id=\"s").append(i).append("\">").append(sentence(random, 5))
+                    .append("</h2>\n<table class=\"infobox\">");
+            for (int row = 0; row < 4; row++) {
+                html.append("<tr><th>").append(sentence(random, 2)).append("</th><td>").append(random.nextInt(10000))
+                        .append("</td></tr>");
+            }
+            html.append("</table>\n");
+            for (int p = 0; p < 3; p++) {
+                html.append("<p>");
+                for (int link = 0; link < 6; link++) {
+                    String target = words[random.nextInt(words.length)];
+                    html.append(sentence(random, 12)).append(" <a href=\"/wiki/").append(target).append('_').append(i)
+                            .append("\" title=\"").append(sentence(random, 2)).append("\">")
+                            .append(sentence(random, 2)).append("</a> ");
+                }
+                html.append("<sup><a href=\"#cite").append(i).append("\">[").append(p).append("]</a></sup></p>\n");
+            }
+            html.append("<ul>");
+            for (int item = 0; item < 5; item++) {
+                html.append("<li><a href=\"/wiki/").append(i).append('_').append(item).append("\">")
+                        .append(sentence(random, 4)).append("</a></li>");
+            }
+            html.append("</ul>\n<script>config.s").append(i).append(" = ").append(i).append(";</script></div>\n");
+        }
+        return html.append("</div>\n").append(end()).toString();
+    }
+
+    // A generated report: a summary followed by one large table of numbers.
+    static String report(int size) {
+        Random random = new Random(3);
+        StringBuilder html = start("Report");
+        html.append("<h1>Report</h1>\n<p>").append(sentence(random, 60)).append("</p>\n<table>\n")
+                .append("<tr><th>Id</th><th>Name</th><th>Quarter</th><th>Value</th><th>Change</th></tr>\n");
+        for (int i = 0; html.length() < size; i++) {
+            html.append("<tr><td>").append(i).append("</td><td><a href=\"/item/").append(i).append("\">")
+                    .append(sentence(random, 2)).append("</a></td><td>Q").append(1 + i % 4).append("</td><td>")
+                    .append(random.nextInt(1_000_000)).append("</td><td>").append(random.nextInt(200) - 100)
+                    .append("%</td></tr>\n");
+        }
+        return html.append("</table>\n").append(end()).toString();
+    }
+
+    private static StringBuilder start(String title) {
+        return new StringBuilder("<!DOCTYPE html>\n<html><head><meta charset=\"utf-8\"><title>").append(title)
+                .append("</title></head>\n<body>\n");
+    }
+
+    private static String end() {
+        return "</body></html>\n";
+    }
+
+    private static String sentence(Random random, int length) {
+        StringBuilder sentence = new StringBuilder();
+        for (int i = 0; i < length; i++) {
+            if (i > 0) {
+                sentence.append(' ');
+            }
+            sentence.append(words[random.nextInt(words.length)]);
+        }
+        return sentence.toString();
+    }
+}
@@ -0,0 +1,60 @@
+package basicbrowser.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+// What runs on each press of enter in the url field: classifying the text and turning it into the url to load.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+public class InputBenchmark {
+    // One of each kind of input, with urls, hosts and searches of typical lengths.
+    static final String[] inputs = {
+            "https://en.wikipedia.org/wiki/Web_browser",
+            "http://localhost:8000/abc",
+            "C:\\Users\\user\\Documents\\page.html",
+            "example.com",
+            "www.example.com/path/to/page?query=1",
+            "w web browser history",
+            "how do web browsers render html pages",
+            "",
+    };
+
+    Object inputClassifier;
+
+    @Setup
+    public void setUp() throws Throwable {
+        inputClassifier = Browser.newInputClassifier.invoke(Browser.defaultQuickSearch);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(8)
+    public void translate(Blackhole blackhole) throws Throwable {
+        for (String input : inputs) {
+            blackhole.consume((String) Browser.translate.invoke(inputClassifier, input));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(8)
+    public void isUrl(Blackhole blackhole) throws Throwable {
+        for (String input : inputs) {
+            blackhole.consume((boolean) Browser.isUrl.invoke(input));
+        }
+    }
+}
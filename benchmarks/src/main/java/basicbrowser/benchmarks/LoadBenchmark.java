@@ -0,0 +1,53 @@
+package basicbrowser.benchmarks;
+
+import com.sun.net.httpserver.HttpServer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+// The whole background part of loading a page: fetching it over loopback, parsing, cleaning and serializing the html.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Djava.awt.headless=true", "-Xmx2g"})
+public class LoadBenchmark {
+    @Param({"article", "wiki", "report"})
+    public String page;
+
+    HttpServer server;
+    Object fetcher;
+    String url;
+
+    @Setup
+    public void setUp() throws Throwable {
+        byte[] bytes = Corpus.page(page).getBytes(StandardCharsets.UTF_8);
+        server = Corpus.serve(bytes);
+        url = Corpus.url(server);
+        fetcher = Browser.fetcher(2L * bytes.length);
+        Browser.checkLoads(fetcher, url);
+    }
+
+    @TearDown
+    public void tearDown() {
+        server.stop(0);
+    }
+
+    @Benchmark
+    public Object updaterDoInBackground() throws Throwable {
+        return Browser.load(fetcher, url);
+    }
+}
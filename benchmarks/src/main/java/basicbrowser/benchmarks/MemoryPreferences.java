@@ -0,0 +1,61 @@
+package basicbrowser.benchmarks;
+
+import java.util.HashMap;
+import java.util.prefs.AbstractPreferences;
+
+// Preferences kept in memory, so benchmarks start from the browser defaults and do not change the user's settings.
+final class MemoryPreferences extends AbstractPreferences {
+    private final HashMap<String, String> values = new HashMap<>();
+    private final HashMap<String, MemoryPreferences> children = new HashMap<>();
+
+    MemoryPreferences() {
+        this(null, "");
+    }
+
+    private MemoryPreferences(MemoryPreferences parent, String name) {
+        super(parent, name);
+    }
+
+    @Override
+    protected void putSpi(String key, String value) {
+        values.put(key, value);
+    }
+
+    @Override
+    protected String getSpi(String key) {
+        return values.get(key);
+    }
+
+    @Override
+    protected void removeSpi(String key) {
+        values.remove(key);
+    }
+
+    @Override
+    protected void removeNodeSpi() {
+        values.clear();
+    }
+
+    @Override
+    protected String[] keysSpi() {
+        return values.keySet().toArray(new String[0]);
+    }
+
+    @Override
+    protected String[] childrenNamesSpi() {
+        return children.keySet().toArray(new String[0]);
+    }
+
+    @Override
+    protected AbstractPreferences childSpi(String name) {
+        return children.computeIfAbsent(name, child -> new MemoryPreferences(this, child));
+    }
+
+    @Override
+    protected void syncSpi() {
+    }
+
+    @Override
+    protected void flushSpi() {
+    }
+}
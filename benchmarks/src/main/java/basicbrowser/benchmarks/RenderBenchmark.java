@@ -0,0 +1,75 @@
+package basicbrowser.benchmarks;
+
+import org.jsoup.Jsoup;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.swing.JEditorPane;
+import javax.swing.SwingUtilities;
+import java.awt.Dimension;
+import java.util.concurrent.TimeUnit;
+
+// What showing a loaded page costs the event thread: building the Swing document from the cleaned html, and also
+// laying it out at a window's width. The report is left out by default because the browser shows such a page in parts,
+// and one setText of all of it takes minutes; -p page=report measures it anyway.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Djava.awt.headless=true", "-Xmx2g"})
+public class RenderBenchmark {
+    @Param({"article", "wiki"})
+    public String page;
+
+    JEditorPane editorPane;
+    String body;
+
+    @Setup
+    public void setUp() throws Throwable {
+        body = (String) Browser.clean.invoke(Jsoup.parse(Corpus.page(page)));
+        Object[] pane = new Object[1];
+        Throwable[] error = new Throwable[1];
+        SwingUtilities.invokeAndWait(() -> {
+            try {
+                pane[0] = Browser.editorPane(Browser.newBrowser.invoke(new MemoryPreferences(), 2));
+            } catch (Throwable e) {
+                error[0] = e;
+            }
+        });
+        if (error[0] != null) {
+            throw error[0];
+        }
+        editorPane = (JEditorPane) pane[0];
+    }
+
+    @Benchmark
+    public int setText() throws Exception {
+        int[] length = new int[1];
+        SwingUtilities.invokeAndWait(() -> {
+            editorPane.setText(body);
+            length[0] = editorPane.getDocument().getLength();
+        });
+        return length[0];
+    }
+
+    @Benchmark
+    public Dimension setTextAndLayout() throws Exception {
+        Dimension[] size = new Dimension[1];
+        SwingUtilities.invokeAndWait(() -> {
+            editorPane.setText(body);
+            editorPane.setSize(1024, Integer.MAX_VALUE / 2);
+            size[0] = editorPane.getPreferredSize();
+        });
+        return size[0];
+    }
+}